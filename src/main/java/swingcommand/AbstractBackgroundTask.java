@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A Task with a background stage, which runs before doInEventThread(). The stage is either run in a background
+ * thread by a BackgroundTask, or started in a background thread and completed later by an AsyncTask.
+ *
+ * Cancellation is cooperative - calling cancel() requests cancellation through the task's CancellationToken.
+ * If cancel() is called before the background stage finishes the task ends in the CANCELLED state. Once the
+ * background stage has finished, cancel() has no effect - the cancellation and the end of the background
+ * stage are each recorded with a single compare and set, so exactly one of them wins.
+ */
+public abstract class AbstractBackgroundTask<P,E> extends Task<P,E> {
+
+    //state flags
+    private static final int CANCELLED = 1;
+    private static final int BACKGROUND_FINISHED = 2;
+
+    private final CancellationToken cancellationToken = new CancellationToken();
+    private final AtomicInteger state = new AtomicInteger();
+
+    final void setBackgroundFinished() {
+        while (true) {
+            int current = state.get();
+            if ( state.compareAndSet(current, current | BACKGROUND_FINISHED)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Subclasses which allocate heavily in their background stage may override this method to return an estimate
+     * of the heap they will use, so that the task is held in PENDING until there is room for it, see MemoryAdmissionControl
+     *
+     * @return estimated heap use in bytes, or 0 (the default) if the task should not wait for memory
+     */
+    public long getEstimatedMemoryCost() {
+        return 0;
+    }
+
+    /**
+     * @return the token which is cancelled when this task is cancelled
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * A cheap check for use in the background stage, to find out whether the task has been cancelled
+     */
+    protected boolean isCancellationRequested() {
+        return cancellationToken.isCancellationRequested();
+    }
+
+    public void cancel() {
+        while (true) {
+            int current = state.get();
+            if ( (current & (CANCELLED | BACKGROUND_FINISHED)) != 0 ) {
+                return;
+            }
+            if ( state.compareAndSet(current, current | CANCELLED)) {
+                cancellationToken.cancel();
+                return;
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return (state.get() & CANCELLED) != 0;
+    }
+
+    public boolean canCancel() {
+        return (state.get() & BACKGROUND_FINISHED) == 0;
+    }
+
+    protected void doReleaseResources() {
+        //callbacks registered by code in the background stage which did not remove them
+        cancellationToken.clearCancellationCallbacks();
+    }
+}
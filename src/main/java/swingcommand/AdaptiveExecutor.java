@@ -0,0 +1,420 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * An ExecutorFactory which sizes its thread pool from the observed profile of the tasks it runs.
+ *
+ * For each task class, the wall time and CPU time of each execution and the time spent waiting in the queue are
+ * measured. Every control interval the target pool size is recalculated:
+ *
+ * - by Little's law, the threads needed to keep up are the arrival rate multiplied by the mean wall time
+ * - by the blocking coefficient, more threads than cores x (wall time / CPU time) would only contend for CPU
+ *
+ * The target is the smaller of the two, within the min and max threads. A hill climbing check then reverses the
+ * last increase if it reduced throughput. Tasks wait in an unbounded queue, so the pool only grows when the
+ * controller raises the target - the pool's core and maximum size are both set to the target. With work stealing routing enabled, tasks of a class which has been
+ * measured as CPU bound run on a ForkJoinPool sized to the cores instead, so that they do not occupy threads
+ * in the elastic pool which blocking tasks need.
+ *
+ * The controller only holds the executor weakly, so an executor which is no longer referenced has its pools shut
+ * down and its controller cancelled once it has been garbage collected, even if shutdown() was never called.
+ *
+ * <pre>
+ * AdaptiveExecutor adaptiveExecutor = new AdaptiveExecutor(2, 32);
+ * exportCommand.setExecutorFactory(adaptiveExecutor);
+ * </pre>
+ */
+public class AdaptiveExecutor implements SwingCommand.ExecutorFactory {
+
+    public static final long DEFAULT_CONTROL_INTERVAL_MILLIS = 500;
+    private static final double CPU_BOUND_RATIO = 0.8;
+    private static final int MIN_SAMPLES_FOR_ROUTING = 5;
+    private static final double HILL_CLIMB_TOLERANCE = 0.9;
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final boolean cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+    private final int minThreads, maxThreads;
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final ThreadPoolExecutor elasticPool;
+    private final ForkJoinPool workStealingPool;
+    private final ConcurrentHashMap<Class, TaskProfile> profiles = new ConcurrentHashMap<Class, TaskProfile>();
+    private final Controller controller;
+    private volatile boolean workStealingRouting;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalWallNanos = new AtomicLong();
+    private final AtomicLong totalCpuNanos = new AtomicLong();
+    private final AtomicLong workStealingCount = new AtomicLong();
+
+    //guarded by this, only updated by the controller
+    private long lastControlNanos = System.nanoTime();
+    private long lastSubmitted, lastCompleted, lastWallNanos, lastCpuNanos;
+    private double lastThroughput, lastArrivalRate;
+    private boolean lastMoveWasIncrease;
+    private int targetPoolSize;
+    private long increaseCount, decreaseCount;
+    private String lastDecision = "initial size";
+
+    public AdaptiveExecutor(int minThreads, int maxThreads) {
+        this(minThreads, maxThreads, DEFAULT_CONTROL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public AdaptiveExecutor(int minThreads, int maxThreads, long controlInterval, TimeUnit timeUnit) {
+        if ( minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("minThreads must be at least 1 and no more than maxThreads");
+        }
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        this.targetPoolSize = minThreads;
+
+        elasticPool = new ThreadPoolExecutor(minThreads, minThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new AdaptiveThreadFactory()
+        );
+        elasticPool.allowCoreThreadTimeOut(true);
+        workStealingPool = new ForkJoinPool(cores);
+
+        controller = new Controller(this, elasticPool, workStealingPool);
+        controller.future = CommandSchedule.scheduler.scheduleWithFixedDelay(controller, controlInterval, controlInterval, timeUnit);
+    }
+
+    /**
+     * @param workStealingRouting, if true, tasks of a class measured as CPU bound are run on a ForkJoinPool
+     * with one thread per core, rather than on the elastic pool
+     */
+    public void setWorkStealingRouting(boolean workStealingRouting) {
+        this.workStealingRouting = workStealingRouting;
+    }
+
+    public Executor getExecutor(final Task task) {
+        final TaskProfile profile = getProfile(task.getClass());
+        return new Executor() {
+            public void execute(Runnable command) {
+                submittedCount.incrementAndGet();
+                ProfilingRunnable profilingRunnable = new ProfilingRunnable(profile, command);
+                if ( workStealingRouting && profile.isCpuBound()) {
+                    workStealingCount.incrementAndGet();
+                    workStealingPool.execute(profilingRunnable);
+                } else {
+                    elasticPool.execute(profilingRunnable);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the profile measured for tasks of this class
+     */
+    public TaskProfile getProfile(Class taskClass) {
+        TaskProfile profile = profiles.get(taskClass);
+        if ( profile == null ) {
+            profile = new TaskProfile(taskClass);
+            TaskProfile existing = profiles.putIfAbsent(taskClass, profile);
+            if ( existing != null ) {
+                profile = existing;
+            }
+        }
+        return profile;
+    }
+
+    public int getPoolSize() {
+        return elasticPool.getPoolSize();
+    }
+
+    public synchronized int getTargetPoolSize() {
+        return targetPoolSize;
+    }
+
+    /**
+     * @return the number of times the controller has increased the target pool size
+     */
+    public synchronized long getIncreaseCount() {
+        return increaseCount;
+    }
+
+    /**
+     * @return the number of times the controller has decreased the target pool size
+     */
+    public synchronized long getDecreaseCount() {
+        return decreaseCount;
+    }
+
+    /**
+     * @return tasks completed per second over the last control interval
+     */
+    public synchronized double getThroughput() {
+        return lastThroughput;
+    }
+
+    /**
+     * @return tasks submitted per second over the last control interval
+     */
+    public synchronized double getArrivalRate() {
+        return lastArrivalRate;
+    }
+
+    /**
+     * @return a description of the controller's last decision, for logging
+     */
+    public synchronized String getLastDecision() {
+        return lastDecision;
+    }
+
+    /**
+     * @return the number of tasks which have been routed to the work stealing pool
+     */
+    public long getWorkStealingCount() {
+        return workStealingCount.get();
+    }
+
+    public int getQueuedCount() {
+        return elasticPool.getQueue().size();
+    }
+
+    public void shutdown() {
+        controller.shutdown();
+    }
+
+    synchronized void adjustPoolSize() {
+        long now = System.nanoTime();
+        double intervalSeconds = (now - lastControlNanos) / 1000000000d;
+        long submitted = submittedCount.get();
+        long completed = completedCount.get();
+        long wallNanos = totalWallNanos.get();
+        long cpuNanos = totalCpuNanos.get();
+
+        long completedInInterval = completed - lastCompleted;
+        double throughput = completedInInterval / intervalSeconds;
+        double arrivalRate = (submitted - lastSubmitted) / intervalSeconds;
+
+        int target = targetPoolSize;
+        String decision;
+        if ( completedInInterval == 0 ) {
+            if ( elasticPool.getQueue().isEmpty()) {
+                target = minThreads;
+                decision = "idle";
+            } else {
+                //nothing finished, but work is waiting - every thread is blocked, so add one
+                target = targetPoolSize + 1;
+                decision = "stalled with " + elasticPool.getQueue().size() + " queued";
+            }
+        } else if ( lastMoveWasIncrease && throughput < lastThroughput * HILL_CLIMB_TOLERANCE) {
+            target = targetPoolSize - 1;
+            decision = "throughput fell from " + format(lastThroughput) + " to " + format(throughput) + " after increase";
+        } else {
+            double meanWallSeconds = (wallNanos - lastWallNanos) / (double)completedInInterval / 1000000000d;
+            double meanCpuSeconds = (cpuNanos - lastCpuNanos) / (double)completedInInterval / 1000000000d;
+
+            //the backlog is also demand, which must be worked off in the next interval
+            double demandRate = Math.max(arrivalRate, throughput) + elasticPool.getQueue().size() / intervalSeconds;
+            int littleTarget = (int)Math.ceil(demandRate * meanWallSeconds);
+            int blockingTarget = (int)Math.ceil(cores * meanWallSeconds / Math.max(meanCpuSeconds, meanWallSeconds / maxThreads));
+            target = Math.min(littleTarget, blockingTarget);
+            decision = "little's law " + littleTarget + ", blocking coefficient " + blockingTarget;
+        }
+
+        target = Math.max(minThreads, Math.min(maxThreads, target));
+        if ( target > targetPoolSize) {
+            increaseCount++;
+        } else if ( target < targetPoolSize) {
+            decreaseCount++;
+        }
+        lastMoveWasIncrease = target > targetPoolSize;
+        setPoolSize(target);
+        lastDecision = decision + ", target " + target;
+
+        lastControlNanos = now;
+        lastSubmitted = submitted;
+        lastCompleted = completed;
+        lastWallNanos = wallNanos;
+        lastCpuNanos = cpuNanos;
+        lastThroughput = throughput;
+        lastArrivalRate = arrivalRate;
+    }
+
+    //should be called holding the lock
+    private void setPoolSize(int target) {
+        targetPoolSize = target;
+        //with an unbounded queue the pool only grows to the core size, the maximum is kept equal to it
+        if ( target > elasticPool.getMaximumPoolSize()) {
+            elasticPool.setMaximumPoolSize(target);
+            elasticPool.setCorePoolSize(target);
+        } else {
+            elasticPool.setCorePoolSize(target);
+            elasticPool.setMaximumPoolSize(target);
+        }
+    }
+
+    private static String format(double d) {
+        return String.format("%.1f", d);
+    }
+
+    private static long getCpuTime() {
+        return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Adjusts the pool size of the executor every control interval. The executor is held weakly, so that the
+     * scheduler does not keep an executor which is no longer used, or its pools, alive
+     */
+    private static class Controller implements Runnable {
+        private final WeakReference<AdaptiveExecutor> executorReference;
+        private final ThreadPoolExecutor elasticPool;
+        private final ForkJoinPool workStealingPool;
+        private volatile ScheduledFuture<?> future;
+
+        public Controller(AdaptiveExecutor executor, ThreadPoolExecutor elasticPool, ForkJoinPool workStealingPool) {
+            this.executorReference = new WeakReference<AdaptiveExecutor>(executor);
+            this.elasticPool = elasticPool;
+            this.workStealingPool = workStealingPool;
+        }
+
+        public void run() {
+            AdaptiveExecutor executor = executorReference.get();
+            if ( executor == null ) {
+                shutdown();
+            } else {
+                executor.adjustPoolSize();
+            }
+        }
+
+        public void shutdown() {
+            ScheduledFuture<?> f = future;
+            if ( f != null ) {
+                f.cancel(false);
+            }
+            elasticPool.shutdown();
+            workStealingPool.shutdown();
+        }
+    }
+
+    //a static class, so that the pool's threads do not hold a reference to the executor
+    private static class AdaptiveThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadId = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "SwingCommand adaptive executor " + threadId.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    private class ProfilingRunnable implements Runnable {
+        private final TaskProfile profile;
+        private final Runnable command;
+        private final long queuedNanos = System.nanoTime();
+
+        public ProfilingRunnable(TaskProfile profile, Runnable command) {
+            this.profile = profile;
+            this.command = command;
+        }
+
+        public void run() {
+            long startNanos = System.nanoTime();
+            long startCpu = getCpuTime();
+            try {
+                command.run();
+            } finally {
+                long wallNanos = System.nanoTime() - startNanos;
+                //if CPU time cannot be measured, assume the task was CPU bound, so the pool is never oversized
+                long cpuNanos = startCpu == -1 ? wallNanos : getCpuTime() - startCpu;
+                profile.addExecution(startNanos - queuedNanos, wallNanos, cpuNanos);
+                totalWallNanos.addAndGet(wallNanos);
+                totalCpuNanos.addAndGet(cpuNanos);
+                completedCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * The measured profile of the executions of one task class
+     */
+    public static class TaskProfile {
+        private final Class taskClass;
+
+        //guarded by this
+        private long executionCount, totalQueueWaitNanos, totalWallNanos, totalCpuNanos;
+
+        TaskProfile(Class taskClass) {
+            this.taskClass = taskClass;
+        }
+
+        synchronized void addExecution(long queueWaitNanos, long wallNanos, long cpuNanos) {
+            executionCount++;
+            totalQueueWaitNanos += queueWaitNanos;
+            totalWallNanos += wallNanos;
+            totalCpuNanos += cpuNanos;
+        }
+
+        public Class getTaskClass() {
+            return taskClass;
+        }
+
+        public synchronized long getExecutionCount() {
+            return executionCount;
+        }
+
+        public synchronized long getMeanQueueWait(TimeUnit timeUnit) {
+            return executionCount == 0 ? 0 : timeUnit.convert(totalQueueWaitNanos / executionCount, TimeUnit.NANOSECONDS);
+        }
+
+        public synchronized long getMeanWallTime(TimeUnit timeUnit) {
+            return executionCount == 0 ? 0 : timeUnit.convert(totalWallNanos / executionCount, TimeUnit.NANOSECONDS);
+        }
+
+        public synchronized long getMeanCpuTime(TimeUnit timeUnit) {
+            return executionCount == 0 ? 0 : timeUnit.convert(totalCpuNanos / executionCount, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the fraction of the wall time spent using CPU, between 0 for tasks which only block, and 1
+         */
+        public synchronized double getCpuRatio() {
+            return totalWallNanos == 0 ? 0 : Math.min(1, totalCpuNanos / (double)totalWallNanos);
+        }
+
+        /**
+         * @return true once enough executions have been measured to show that tasks of this class are CPU bound
+         */
+        public synchronized boolean isCpuBound() {
+            return executionCount >= MIN_SAMPLES_FOR_ROUTING && getCpuRatio() >= CPU_BOUND_RATIO;
+        }
+
+        public String toString() {
+            return "TaskProfile{" + taskClass.getName() + ", executions=" + getExecutionCount() +
+                ", cpuRatio=" + format(getCpuRatio()) + "}";
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A Task whose background stage is asynchronous, for example a read from an AsynchronousFileChannel or an
+ * AsynchronousSocketChannel.
+ *
+ * Rather than blocking in a background thread, the subclass starts its operation in doInBackgroundAsync() and
+ * returns a CompletionStage which completes when the operation completes. No thread is held while the operation
+ * is in progress - the executor thread is only used to start it, and doInEventThread() is scheduled on the event
+ * thread when the stage completes. Any result needed in doInEventThread() should be saved from the stage,
+ * e.g. with thenAccept(), as a BackgroundTask would save it from doInBackground().
+ *
+ * Cancelling the task cancels the returned stage, if it is a Future such as a CompletableFuture, and calls doAbort(),
+ * which subclasses should override to close the channel or otherwise abort the pending operation. A cancelled task
+ * ends in the CANCELLED state as soon as the stage completes, and any exception from the aborted operation is ignored.
+ *
+ * Where tasks are run one after another, as the children of a CompositeCommandTask or for a key of a
+ * KeyedSerialExecutor, the next task is not started until an AsyncTask has finished, rather than once its
+ * operation has been started.
+ */
+public abstract class AsyncTask<P,E> extends AbstractBackgroundTask<P,E> {
+
+    /**
+     * Start the background operation. This method is called in a background thread, and should not block
+     *
+     * @return a stage which completes when the background operation completes, or null if there is nothing to wait for
+     */
+    protected abstract CompletionStage<?> doInBackgroundAsync() throws Exception;
+
+    /**
+     * Subclasses may override this method to abort the pending operation when the task is cancelled,
+     * for example by closing the channel
+     */
+    protected void doAbort() {
+    }
+
+    /**
+     * Start the background operation, the callback is passed the error from the background stage,
+     * or null, once it has completed
+     */
+    final void startBackgroundProcessing(final BackgroundCompletionCallback callback) {
+        CompletionStage<?> stage = null;
+        if ( ! isCancelled()) {
+            try {
+                stage = doInBackgroundAsync();
+            } catch (Throwable t) {
+                backgroundCompleted(t, callback);
+                return;
+            }
+        }
+
+        if ( stage == null ) {
+            backgroundCompleted(null, callback);
+        } else {
+            final CompletionStage<?> pendingStage = stage;
+            final Runnable abort = new Runnable() {
+                public void run() {
+                    abort(pendingStage);
+                }
+            };
+            getCancellationToken().addCancellationCallback(abort);
+
+            pendingStage.whenComplete(new BiConsumer<Object, Throwable>() {
+                public void accept(Object result, Throwable t) {
+                    getCancellationToken().removeCancellationCallback(abort);
+                    backgroundCompleted(t, callback);
+                }
+            });
+        }
+    }
+
+    private void abort(CompletionStage<?> stage) {
+        try {
+            doAbort();
+        } finally {
+            //otherwise the stage does not support cancellation, so we have to wait for doAbort() to complete it
+            if ( stage instanceof Future ) {
+                ((Future<?>)stage).cancel(false);
+            }
+        }
+    }
+
+    private void backgroundCompleted(Throwable t, BackgroundCompletionCallback callback) {
+        if ( t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
+        }
+        //an exception raised because the task was cancelled, e.g. from closing the channel, is not an error
+        if ( getCancellationToken().isCancellationRequested() ) {
+            t = null;
+        }
+        setBackgroundFinished();
+        callback.backgroundCompleted(t);
+    }
+
+    static interface BackgroundCompletionCallback {
+        void backgroundCompleted(Throwable backgroundError);
+    }
+}
@@ -24,11 +24,32 @@ package swingcommand;
  * Time: 14:52:16
  *
  * A Task which runs partly in a background thread
+ *
+ * A BackgroundTask supports cooperative cancellation - calling cancel() does not interrupt the background thread,
+ * but requests cancellation through the task's CancellationToken. doInBackground() should poll
+ * isCancellationRequested() (or register a callback on the token) and return early once cancellation is requested.
+ * If cancel() is called before the background processing finishes the task ends in the CANCELLED state. Once the
+ * background processing has finished, cancel() has no effect.
+ * doInEventThread() is still called for a cancelled task, so it should check isCancelled() before updating the UI.
  */
-public abstract class BackgroundTask<P,E> extends Task<P,E> {
+public abstract class BackgroundTask<P,E> extends AbstractBackgroundTask<P,E> {
 
     protected void doBackgroundProcessing() throws Exception {
-        doInBackground();
+        try {
+            if ( ! isCancelled() ) {
+                try {
+                    doInBackground();
+                } catch ( Exception e ) {
+                    //an exception raised because the task was cancelled, e.g. from
+                    //CancellationToken.throwIfCancellationRequested(), is not an error
+                    if ( ! getCancellationToken().isCancellationRequested() ) {
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            setBackgroundFinished();
+        }
     }
 
     /**
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A command which coalesces many calls to execute(P) into a single background operation over a List of items.
+ *
+ * Each call to execute still returns its own Task, and receives its own events, but rather than running
+ * doInBackground() once per Task the parameters are collected into a batch. A batch is run once it contains
+ * maxBatchSize items, or maxDelay after its first item was added, whichever comes first. For example, a lookup
+ * command executed once for each visible grid cell can load all the cells with a single query.
+ *
+ * doInBackground(List) should set a result or an error for each item. If it throws, every item which does not
+ * already have a result or error fails with that exception. Once the batch completes each Task is started and
+ * finished in a single event thread delivery - it remains PENDING while it is waiting for its batch.
+ *
+ * An item may be cancelled at any time before it finishes. If its batch has not yet run it is removed from the
+ * batch, and if the batch is already running its result is discarded. Either way it ends in the CANCELLED state.
+ *
+ * Each batch is run on the Executor which would otherwise have run its tasks - the Executor or ExecutorFactory set
+ * on the command or passed to execute(), or getDefaultBackgroundTaskExecutor() by default. Only items executed
+ * with the same Executor are batched together. prefetch() does nothing, since a prefetched task would not join a batch.
+ */
+public abstract class BatchingCommand<P,R,E> extends SwingCommand<P,E> {
+
+    private static final ScheduledExecutorService flushTimer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "BatchingCommand flush timer");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+
+    private static final int HISTOGRAM_BUCKETS = 32;
+
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final Object batchLock = new Object();
+    private final Map<Executor, OpenBatch> openBatches = new HashMap<Executor, OpenBatch>(); //guarded by batchLock
+
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong batchedItemCount = new AtomicLong();
+    private final AtomicLongArray batchSizeHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    /**
+     * @param maxBatchSize, the number of items at which a batch is run straight away
+     * @param maxDelay, the longest time an item waits for other items to join its batch
+     */
+    public BatchingCommand(int maxBatchSize, long maxDelay, TimeUnit timeUnit) {
+        if ( maxBatchSize < 1) {
+            throw new IllegalArgumentException("maxBatchSize must be at least 1");
+        }
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayNanos = timeUnit.toNanos(maxDelay);
+    }
+
+    //every task joins a batch, which is run on the executor which would otherwise have run the task
+    @SuppressWarnings("unchecked")
+    Executor chooseExecutor(Task<P,E> task, Executor executor, ExecutorFactory executorFactory) {
+        return new BatchExecutor((BatchTask<P,R,E>)task, super.chooseExecutor(task, executor, executorFactory));
+    }
+
+    //a prefetched task would run without joining a batch
+    boolean isPrefetchSupported() {
+        return false;
+    }
+
+    /**
+     * Subclasses implement this method to process a batch of items in a background thread,
+     * calling setResult or setError on each of them.
+     */
+    protected abstract void doInBackground(List<BatchItem<P,R>> batch) throws Exception;
+
+    /**
+     * Subclasses may override this method to update the UI with the result for a single item
+     * This is called on the event thread, for each item which completed successfully and was not cancelled
+     */
+    protected void doInEventThread(P parameters, R result) throws Exception {
+    }
+
+    protected final Task<P,E> createTask() {
+        return new BatchTask<P,R,E>(this);
+    }
+
+    //the batch tasks do not access Swing when they are created, so there is no need to create them on the event thread
+    protected Task<P,E> doCreateTask() {
+        return createTask();
+    }
+
+    /**
+     * @return the number of batches which have been run
+     */
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    /**
+     * @return the total number of items processed by all the batches which have been run
+     */
+    public long getBatchedItemCount() {
+        return batchedItemCount.get();
+    }
+
+    /**
+     * @return the distribution of batch sizes, element n is the number of batches with a size from 2^n to 2^(n+1) - 1
+     * Batches in which every item was cancelled before the batch ran are not included
+     */
+    public long[] getBatchSizeHistogram() {
+        long[] result = new long[HISTOGRAM_BUCKETS];
+        for ( int loop=0; loop < HISTOGRAM_BUCKETS; loop++) {
+            result[loop] = batchSizeHistogram.get(loop);
+        }
+        return result;
+    }
+
+    private void recordBatchSize(int size) {
+        batchCount.incrementAndGet();
+        batchedItemCount.addAndGet(size);
+        batchSizeHistogram.incrementAndGet(31 - Integer.numberOfLeadingZeros(size));
+    }
+
+    private void addToBatch(BatchEntry entry) {
+        OpenBatch fullBatch = null;
+        synchronized (batchLock) {
+            OpenBatch batch = openBatches.get(entry.executor);
+            if ( batch == null ) {
+                batch = new OpenBatch(entry.executor);
+                openBatches.put(entry.executor, batch);
+                final OpenBatch batchToFlush = batch;
+                batch.flushFuture = flushTimer.schedule(new Runnable() {
+                    public void run() {
+                        flush(batchToFlush);
+                    }
+                }, maxDelayNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.entries.add(entry);
+            if ( batch.entries.size() >= maxBatchSize) {
+                takeOpenBatch(batch);
+                fullBatch = batch;
+            }
+        }
+
+        if ( fullBatch != null ) {
+            runBatch(fullBatch);
+        }
+    }
+
+    private void flush(OpenBatch batch) {
+        synchronized (batchLock) {
+            if ( openBatches.get(batch.executor) != batch ) {
+                return; //already run because it filled up
+            }
+            takeOpenBatch(batch);
+        }
+        runBatch(batch);
+    }
+
+    //should be called holding the batchLock
+    private void takeOpenBatch(OpenBatch batch) {
+        openBatches.remove(batch.executor);
+        batch.flushFuture.cancel(false);
+    }
+
+    /**
+     * @return true if the entry was still waiting for its batch to run, and has been removed from it
+     */
+    private boolean removeFromOpenBatch(BatchEntry entry) {
+        synchronized (batchLock) {
+            OpenBatch batch = openBatches.get(entry.executor);
+            return batch != null && batch.entries.remove(entry);
+        }
+    }
+
+    private void runBatch(OpenBatch batch) {
+        try {
+            batch.executor.execute(new BatchRunnable(batch.entries));
+        } catch (RuntimeException e) {
+            //e.g. the executor has been shut down, so the items fail rather than staying PENDING
+            for ( BatchEntry entry : batch.entries) {
+                entry.execution.rejected(e);
+            }
+        }
+    }
+
+    /**
+     * An item in a batch, passed to doInBackground(List)
+     */
+    public static interface BatchItem<P,R> {
+
+        P getParameters();
+
+        /**
+         * @return true if the Task for this item has been cancelled, in which case any result will be discarded
+         */
+        boolean isCancelled();
+
+        void setResult(R result);
+
+        void setError(Throwable error);
+    }
+
+    /**
+     * The Task created for each call to execute
+     */
+    public static class BatchTask<P,R,E> extends BackgroundTask<P,E> implements BatchItem<P,R> {
+
+        private final BatchingCommand<P,R,E> command;
+        private volatile R result;
+        private volatile Throwable error;
+        private volatile boolean completed;
+
+        BatchTask(BatchingCommand<P,R,E> command) {
+            this.command = command;
+        }
+
+        public void setResult(R result) {
+            this.result = result;
+            completed = true;
+        }
+
+        public void setError(Throwable error) {
+            this.error = error;
+            completed = true;
+        }
+
+        /**
+         * @return the result set for this item by the batch, or null if no result was set
+         */
+        public R getResult() {
+            return result;
+        }
+
+        boolean isCompleted() {
+            return completed;
+        }
+
+        //the batch has already done the background work by the time this is called,
+        //so all that is left is to report the error for this item, if there was one
+        protected void doInBackground() throws Exception {
+            Throwable t = error;
+            if ( t instanceof Exception) {
+                throw (Exception)t;
+            } else if ( t instanceof Error) {
+                throw (Error)t;
+            } else if ( t != null) {
+                throw new SwingCommandException("Batch failed for " + getParameters(), t);
+            }
+        }
+
+        protected void doInEventThread() throws Exception {
+            if ( ! isCancelled()) {
+                command.doInEventThread(getParameters(), result);
+            }
+        }
+    }
+
+    /**
+     * The items waiting to be run together on an executor
+     */
+    private class OpenBatch {
+        private final Executor executor;
+        private final List<BatchEntry> entries = new ArrayList<BatchEntry>();
+        private ScheduledFuture<?> flushFuture; //guarded by batchLock
+
+        public OpenBatch(Executor executor) {
+            this.executor = executor;
+        }
+    }
+
+    private class BatchEntry {
+        private final BatchTask<P,R,E> task;
+        private final SwingCommand.TaskExecution execution;
+        private final Executor executor;
+
+        public BatchEntry(BatchTask<P,R,E> task, SwingCommand.TaskExecution execution, Executor executor) {
+            this.task = task;
+            this.execution = execution;
+            this.executor = executor;
+        }
+
+        //the task's background stage only reports the item's error, so it is run here, and just the completion
+        //is queued for the event thread, after any events already queued for the task
+        public void complete() {
+            Throwable backgroundError = null;
+            try {
+                task.doBackgroundProcessing();
+            } catch (Throwable t) {
+                backgroundError = t;
+            }
+            execution.backgroundStageCompleted(backgroundError);
+        }
+    }
+
+    private class BatchRunnable implements Runnable {
+        private final List<BatchEntry> batch;
+
+        public BatchRunnable(List<BatchEntry> batch) {
+            this.batch = batch;
+        }
+
+        public void run() {
+            try {
+                List<BatchItem<P,R>> items = new ArrayList<BatchItem<P,R>>(batch.size());
+                for ( BatchEntry entry : batch) {
+                    if ( ! entry.task.isCancelled()) {
+                        items.add(entry.task);
+                    }
+                }
+
+                if ( items.size() > 0 ) {
+                    recordBatchSize(items.size());
+                    try {
+                        doInBackground(items);
+                    } catch (Throwable t) {
+                        for ( BatchItem<P,R> item : items) {
+                            if ( ! ((BatchTask)item).isCompleted()) {
+                                item.setError(t);
+                            }
+                        }
+                    }
+                }
+            } finally {
+                for ( BatchEntry entry : batch) {
+                    entry.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * The Executor for a BatchTask, which adds it to the open batch for the task's executor, rather than running it
+     */
+    private class BatchExecutor implements Executor {
+        private final BatchTask<P,R,E> task;
+        private final Executor batchExecutor;
+
+        public BatchExecutor(BatchTask<P,R,E> task, Executor batchExecutor) {
+            this.task = task;
+            this.batchExecutor = batchExecutor;
+        }
+
+        public void execute(Runnable command) {
+            final BatchEntry entry = new BatchEntry(task, (SwingCommand.TaskExecution)command, batchExecutor);
+
+            //a task cancelled while waiting for its batch is removed from it and completed straight away
+            task.getCancellationToken().addCancellationCallback(new Runnable() {
+                public void run() {
+                    if ( removeFromOpenBatch(entry)) {
+                        entry.complete();
+                    }
+                }
+            });
+            addToBatch(entry);
+        }
+    }
+}
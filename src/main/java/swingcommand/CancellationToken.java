@@ -0,0 +1,142 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A cooperative cancellation signal.
+ *
+ * Every BackgroundTask and AsyncTask has a token, which is cancelled when the task is cancelled. Code running in
+ * the background stage can poll isCancellationRequested() cheaply (it is a single volatile read), or register
+ * a callback to be told when cancellation is requested, for example to abort a blocking call which does not
+ * respond to interrupts.
+ *
+ * Child tokens may be created or linked, so that cancelling a parent token also cancels its children.
+ * Cancellation is one way - a token cannot be reset once cancelled.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancellationRequested;
+    private List<Runnable> callbacks; //created lazily, guarded by this
+
+    /**
+     * @return true if cancel() has been called on this token, or on a token it is linked to
+     */
+    public boolean isCancellationRequested() {
+        return cancellationRequested;
+    }
+
+    /**
+     * @throws CancellationException if cancellation has been requested
+     */
+    public void throwIfCancellationRequested() {
+        if ( cancellationRequested ) {
+            throw new CancellationException("Cancellation requested");
+        }
+    }
+
+    /**
+     * Request cancellation. The first call runs the registered callbacks in the calling thread,
+     * subsequent calls have no effect
+     */
+    public void cancel() {
+        List<Runnable> callbacksToRun;
+        synchronized (this) {
+            if ( cancellationRequested ) {
+                return;
+            }
+            cancellationRequested = true;
+            callbacksToRun = callbacks;
+            callbacks = null;
+        }
+
+        if ( callbacksToRun != null ) {
+            for ( Runnable callback : callbacksToRun) {
+                runCallback(callback);
+            }
+        }
+    }
+
+    /**
+     * Add a callback to be run when cancellation is requested. If cancellation has already been
+     * requested the callback is run immediately in the calling thread
+     *
+     * If the callback throws an Exception, a stack trace will be printed to standard error
+     */
+    public void addCancellationCallback(Runnable callback) {
+        synchronized (this) {
+            if ( ! cancellationRequested ) {
+                if ( callbacks == null ) {
+                    callbacks = new ArrayList<Runnable>(2);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        runCallback(callback);
+    }
+
+    public void removeCancellationCallback(Runnable callback) {
+        synchronized (this) {
+            if ( callbacks != null ) {
+                callbacks.remove(callback);
+            }
+        }
+    }
+
+    /**
+     * Drop any registered callbacks, without running them
+     */
+    void clearCancellationCallbacks() {
+        synchronized (this) {
+            callbacks = null;
+        }
+    }
+
+    /**
+     * @return a new token which will be cancelled when this token is cancelled
+     */
+    public CancellationToken createChildToken() {
+        CancellationToken child = new CancellationToken();
+        linkChildToken(child);
+        return child;
+    }
+
+    /**
+     * Link an existing token to this one, so that it is cancelled when this token is cancelled
+     */
+    public void linkChildToken(final CancellationToken child) {
+        addCancellationCallback(new Runnable() {
+            public void run() {
+                child.cancel();
+            }
+        });
+    }
+
+    private void runCallback(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+}
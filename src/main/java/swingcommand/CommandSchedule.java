@@ -0,0 +1,331 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.SwingUtilities;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * Periodic execution of a SwingCommand, created by SwingCommand.scheduleAtFixedRate() or scheduleWithFixedDelay()
+ *
+ * All schedules share a single timer thread, which only triggers executions - each execution is started on the
+ * Swing event thread, and the tasks themselves run on the command's usual executors. An execution is never started
+ * while the previous one is still running. With a fixed rate, a tick which occurs while an execution is running is either skipped (SKIP_IF_RUNNING),
+ * or remembered and run as soon as the running execution finishes (COALESCE_MISSED_TICKS - however many ticks
+ * were missed, only one execution is run to catch up). With a fixed delay, the delay is measured from the end of
+ * each execution, so there is nothing to skip.
+ *
+ * If adaptive back-off is enabled, an execution which takes longer than the period doubles the period (up to a
+ * maximum), and an execution which takes less than half the period halves it again, down to the original period.
+ *
+ * While paused no executions are started. On resume, if any ticks were missed while paused, one execution is run
+ * straight away.
+ */
+public class CommandSchedule<P,E> {
+
+    //also used to expire prefetched tasks
+    static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SwingCommand scheduler");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+
+    private final SwingCommand<P,E> command;
+    private final boolean fixedRate;
+    private final long periodNanos;
+
+    //all guarded by this
+    private OverlapPolicy overlapPolicy = OverlapPolicy.SKIP_IF_RUNNING;
+    private long maxPeriodNanos; //zero if adaptive back-off is disabled
+    private long currentPeriodNanos;
+    private long throttledPeriodNanos; //zero unless throttled, e.g. by a VisibilityBinding
+    private P parameters;
+    private boolean paused, cancelled, running, tickMissedWhileRunning;
+    private long nextTickNanos, executionStartNanos, lastExecutionNanos;
+    private long executionCount, skippedTickCount;
+    private ScheduledFuture<?> nextTick;
+
+    private final Runnable periodicTick = new Runnable() {
+        public void run() {
+            tick(true);
+        }
+    };
+
+    private final Runnable catchUpTick = new Runnable() {
+        public void run() {
+            tick(false);
+        }
+    };
+
+    private final TaskListener<E> executionListener = new TaskListenerAdapter<E>() {
+        public void finished(Task task) {
+            executionFinished();
+        }
+    };
+
+    CommandSchedule(SwingCommand<P,E> command, boolean fixedRate, long initialDelay, long period, TimeUnit timeUnit) {
+        if ( period <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        this.command = command;
+        this.fixedRate = fixedRate;
+        this.periodNanos = timeUnit.toNanos(period);
+        this.currentPeriodNanos = periodNanos;
+        synchronized (this) {
+            scheduleTick(System.nanoTime() + timeUnit.toNanos(initialDelay));
+        }
+    }
+
+    /**
+     * @param parameters, passed to the command for each execution
+     */
+    public synchronized void setParameters(P parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Set what happens to a fixed rate tick when the previous execution is still running
+     */
+    public synchronized void setOverlapPolicy(OverlapPolicy overlapPolicy) {
+        this.overlapPolicy = overlapPolicy;
+    }
+
+    public synchronized OverlapPolicy getOverlapPolicy() {
+        return overlapPolicy;
+    }
+
+    /**
+     * Enable adaptive back-off, increasing the period while executions take longer than the period
+     * @param maxPeriod, the longest period to back off to, or zero to disable back-off
+     */
+    public synchronized void setAdaptiveBackOff(long maxPeriod, TimeUnit timeUnit) {
+        this.maxPeriodNanos = timeUnit.toNanos(maxPeriod);
+        if ( maxPeriodNanos == 0) {
+            currentPeriodNanos = periodNanos;
+        }
+    }
+
+    /**
+     * Stop starting executions until resume() is called. An execution which is already running is not affected
+     */
+    public synchronized void pause() {
+        paused = true;
+        cancelNextTick();
+    }
+
+    /**
+     * Start executing again after a pause. If a tick was due while paused, an execution is started immediately
+     */
+    public synchronized void resume() {
+        if ( ! paused || cancelled ) {
+            return;
+        }
+        paused = false;
+        if ( running && ! fixedRate ) {
+            return; //the next tick is scheduled when the running execution finishes
+        }
+        scheduleTick(Math.max(nextTickNanos, System.nanoTime()));
+    }
+
+    /**
+     * Stop this schedule permanently. An execution which is already running is not affected
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        cancelNextTick();
+    }
+
+    public synchronized boolean isPaused() {
+        return paused;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return true if an execution started by this schedule has not yet finished
+     */
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of executions which have finished
+     */
+    public synchronized long getExecutionCount() {
+        return executionCount;
+    }
+
+    /**
+     * @return the number of ticks which did not start an execution because the previous execution was still running
+     */
+    public synchronized long getSkippedTickCount() {
+        return skippedTickCount;
+    }
+
+    /**
+     * @return the current period, which is longer than the configured period while backing off or throttled
+     */
+    public synchronized long getCurrentPeriod(TimeUnit timeUnit) {
+        return timeUnit.convert(getEffectivePeriodNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run no more often than the throttled period, until throttling is removed by setting a period of zero.
+     * The next tick is moved to reflect the change, so removing throttling runs an execution straight away
+     * if one is already due at the normal rate
+     */
+    synchronized void setThrottledPeriod(long throttledPeriodNanos) {
+        long previousPeriodNanos = getEffectivePeriodNanos();
+        this.throttledPeriodNanos = throttledPeriodNanos;
+        if ( cancelled || paused || nextTick == null || (running && ! fixedRate)) {
+            return; //the new period is used when the next tick is scheduled
+        }
+        long lastTickNanos = nextTickNanos - previousPeriodNanos;
+        scheduleTick(Math.max(lastTickNanos + getEffectivePeriodNanos(), System.nanoTime()));
+    }
+
+    //should be called holding the lock
+    private long getEffectivePeriodNanos() {
+        return Math.max(currentPeriodNanos, throttledPeriodNanos);
+    }
+
+    /**
+     * @return the duration of the most recent execution, from the tick which started it to the finished event
+     */
+    public synchronized long getLastExecutionTime(TimeUnit timeUnit) {
+        return timeUnit.convert(lastExecutionNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void tick(boolean periodic) {
+        final P executionParameters;
+        synchronized (this) {
+            if ( cancelled || paused ) {
+                return;
+            }
+
+            if ( periodic && fixedRate ) {
+                scheduleTick(getNextFixedRateTick());
+            }
+
+            if ( running ) {
+                skippedTickCount++;
+                tickMissedWhileRunning = overlapPolicy == OverlapPolicy.COALESCE_MISSED_TICKS;
+                return;
+            }
+            running = true;
+            executionStartNanos = System.nanoTime();
+            executionParameters = parameters;
+        }
+
+        //the execution is started on the event thread, so that creating the task does not hold up the scheduler
+        //thread in invokeAndWait(), delaying every other schedule and prefetch expiry until the event thread is free
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    command.execute(executionParameters, executionListener);
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                    executionFinished();
+                }
+            }
+        });
+    }
+
+    private void executionFinished() {
+        synchronized (this) {
+            running = false;
+            executionCount++;
+            long now = System.nanoTime();
+            lastExecutionNanos = now - executionStartNanos;
+            if ( maxPeriodNanos > 0 ) {
+                adjustPeriod();
+            }
+
+            if ( cancelled ) {
+                return;
+            }
+
+            if ( ! fixedRate ) {
+                nextTickNanos = now + getEffectivePeriodNanos();
+                if ( ! paused ) {
+                    scheduleTick(nextTickNanos);
+                }
+            } else if ( tickMissedWhileRunning && ! paused ) {
+                tickMissedWhileRunning = false;
+                scheduler.execute(catchUpTick);
+            }
+        }
+    }
+
+    //should be called holding the lock
+    private void adjustPeriod() {
+        if ( lastExecutionNanos > currentPeriodNanos ) {
+            currentPeriodNanos = Math.min(maxPeriodNanos, Math.max(currentPeriodNanos * 2, periodNanos));
+        } else if ( lastExecutionNanos < currentPeriodNanos / 2 ) {
+            currentPeriodNanos = Math.max(periodNanos, currentPeriodNanos / 2);
+        }
+    }
+
+    //should be called holding the lock
+    //if we have fallen behind, e.g. after a pause, the missed ticks are dropped rather than run back to back
+    private long getNextFixedRateTick() {
+        long now = System.nanoTime();
+        long next = nextTickNanos + getEffectivePeriodNanos();
+        return next - now > 0 ? next : now + getEffectivePeriodNanos();
+    }
+
+    //should be called holding the lock
+    private void scheduleTick(long tickNanos) {
+        cancelNextTick();
+        nextTickNanos = tickNanos;
+        nextTick = scheduler.schedule(periodicTick, Math.max(0, tickNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    //should be called holding the lock
+    private void cancelNextTick() {
+        if ( nextTick != null ) {
+            nextTick.cancel(false);
+            nextTick = null;
+        }
+    }
+
+    public static enum OverlapPolicy {
+
+        /**
+         * A tick which occurs while the previous execution is still running is ignored
+         */
+        SKIP_IF_RUNNING,
+
+        /**
+         * Ticks which occur while the previous execution is still running result in a single execution
+         * as soon as it finishes
+         */
+        COALESCE_MISSED_TICKS
+    }
+}
@@ -16,9 +16,9 @@
 
 package swingcommand;
 
-import javax.swing.*;
-import java.lang.reflect.InvocationTargetException;
+import javax.swing.SwingUtilities;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 
 /**
@@ -40,8 +40,7 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
 
     private final List<SwingCommand> childCommands = new ArrayList<SwingCommand>();
     private volatile int currentCommandId, totalCommandsExecuting;
-    private TaskListenerProxy taskListenerProxy = new TaskListenerProxy();
-    private volatile boolean cancelled;
+    private volatile TaskListenerProxy taskListenerProxy = new TaskListenerProxy();
 
     public CompositeCommandTask() {
     }
@@ -55,12 +54,15 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
     }
 
     public boolean isCancelled() {
-        return cancelled;
+        return getCancellationToken().isCancellationRequested();
     }
 
+    /**
+     * Cancel the composite. The running child task is linked to the composite's CancellationToken,
+     * so it is cancelled too, and no further child commands are executed
+     */
     public void cancel() {
-        cancelled = true;
-        taskListenerProxy.cancelCurrentChild();
+        getCancellationToken().cancel();
     }
 
     public boolean canCancel() {
@@ -79,7 +81,16 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
         for (final SwingCommand command : children) {
             currentCommandId++;
 
-            excecuteChildCommand(command);
+            TaskFlightRecorder.Recording recording = getFlightRecording();
+            TaskFlightRecorder.Span childSpan = recording == null ? null : recording.beginCompositeChild(command, currentCommandId);
+            try {
+                excecuteChildCommand(command);
+            } finally {
+                if ( childSpan != null ) {
+                    recording.setCompositeChildTask(childSpan, taskListenerProxy.getCurrentChildTask());
+                    childSpan.end();
+                }
+            }
 
             if (taskListenerProxy.isErrorOccurred()) {
                 throw new CompositeCommandTaskException(taskListenerProxy.getLastCommandError());
@@ -104,6 +115,16 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
     public void doInEventThread() throws Exception {
     }
 
+    /**
+     * Once finished, the composite drops its child commands and the listener proxy, along with
+     * the reference it holds to the last child task
+     */
+    protected void doReleaseResources() {
+        super.doReleaseResources();
+        clearChildCommands();
+        taskListenerProxy = null;
+    }
+
     public void addCommand(SwingCommand command) {
         synchronized (childCommands) {
             childCommands.add(command);
@@ -140,8 +161,12 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
         }
     }
 
+    /**
+     * @return the child task currently running, or null if the composite has finished
+     */
     public Task getCurrentChildTask() {
-        return taskListenerProxy.getCurrentChildTask();
+        TaskListenerProxy proxy = taskListenerProxy;
+        return proxy == null ? null : proxy.getCurrentChildTask();
     }
 
     public int getCompletedCommandCount() {
@@ -159,18 +184,26 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
         private volatile Task currentChildTask;
         private volatile boolean lastCommandCancelled;
         private volatile Throwable lastCommandError;
+        private volatile Runnable childCancellation;
 
         public TaskListenerProxy() {
         }
 
         @Override
-        public void started(Task task) {
+        public void started(final Task task) {
             this.currentChildTask = task;
+            childCancellation = new Runnable() {
+                public void run() {
+                    task.cancel();
+                }
+            };
+            getCancellationToken().addCancellationCallback(childCancellation);
             fireProgress(getProgress(currentCommandId, totalCommandsExecuting, task));
         }
 
         @Override
         public void finished(Task task) {
+            getCancellationToken().removeCancellationCallback(childCancellation);
             lastCommandCancelled = task.isCancelled();
         }
 
@@ -195,13 +228,6 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
         public Throwable getLastCommandError() {
             return lastCommandError;
         }
-
-        public void cancelCurrentChild() {
-            Task currentTask = currentChildTask;
-            if ( currentTask != null) {
-                currentTask.cancel();
-            }
-        }
     }
 
     private static class CompositeCommandTaskException extends Exception {
@@ -214,10 +240,44 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
     private static class CompositeExecutorFactory implements SwingCommand.ExecutorFactory {
 
         public Executor getExecutor(Task e) {
-            if (e instanceof BackgroundTask) {
+            if (e instanceof AsyncTask) {
+                return new AwaitFinishedExecutor(e);
+            } else if (e instanceof BackgroundTask) {
                 return SYNCHRONOUS_EXECUTOR;
             } else {
-                return INVOKE_AND_WAIT_EXECUTOR;
+                //a child executed by the composite inherits its priority
+                return new IfSubThreadInvokeAndWaitExecutor(e.getPriority());
+            }
+        }
+    }
+
+    /**
+     * Runs an AsyncTask child and waits until it has finished, since returning once its background operation
+     * has started would let the composite move on to the next child while this one is still running
+     */
+    static class AwaitFinishedExecutor implements Executor {
+        private final Task task;
+
+        public AwaitFinishedExecutor(Task task) {
+            this.task = task;
+        }
+
+        public void execute(Runnable command) {
+            final CountDownLatch finished = new CountDownLatch(1);
+            task.addTaskListener(new TaskListenerAdapter() {
+                public void finished(Task task) {
+                    finished.countDown();
+                }
+            });
+            command.run();
+
+            //the task is completed on the event thread, so we cannot wait for it there
+            if ( ! SwingUtilities.isEventDispatchThread()) {
+                try {
+                    finished.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
             }
         }
     }
@@ -229,18 +289,19 @@ public abstract class CompositeCommandTask<P,E> extends BackgroundTask<P,E> {
      * Time: 11:43:44
      */
     static class IfSubThreadInvokeAndWaitExecutor implements Executor {
+        private final EventThreadScheduler.Priority priority;
+
+        public IfSubThreadInvokeAndWaitExecutor() {
+            this(EventThreadScheduler.Priority.BACKGROUND);
+        }
+
+        public IfSubThreadInvokeAndWaitExecutor(EventThreadScheduler.Priority priority) {
+            this.priority = priority;
+        }
+
         public void execute(Runnable command) {
-            if (SwingUtilities.isEventDispatchThread()) {
-                command.run();
-            } else {
-                try {
-                    SwingUtilities.invokeAndWait(command);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (InvocationTargetException e) {
-                    e.printStackTrace();
-                }
-            }
+            //go through the scheduler so that the child task cannot overtake its own pending event
+            EventThreadScheduler.invokeAndWait(priority, command);
         }
     }
 }
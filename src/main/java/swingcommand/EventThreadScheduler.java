@@ -0,0 +1,294 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * Schedules the work which tasks need to perform on the Swing event thread.
+ *
+ * Rather than posting an InvocationEvent for each callback, work is queued here and run in batches by a single
+ * drain runnable on the event queue. A drain stops once it has used up the frame budget and re-posts itself, so
+ * that paint and input events which arrived in the meantime are processed before any more command work.
+ *
+ * The queues are lock free, so threads queueing work never contend with each other or with the event thread.
+ * At most one drain runnable is ever waiting on the event queue. Each drain runs only the work which was queued when
+ * it started - anything queued while it is running is left for the next drain, so a busy producer cannot hold the
+ * event thread indefinitely.
+ *
+ * While a drain is running work, the next drain is already posted whenever there is more work queued. So if the
+ * work enters a nested event loop, e.g. by showing a modal dialog, the remaining work is run from the nested loop
+ * rather than waiting for the dialog to close, just as it would have been if each callback were posted separately.
+ *
+ * Work for INTERACTIVE tasks (by default those executed from the event thread, in response to the user) is always
+ * run before work for BACKGROUND tasks. Work for a single task is always queued at the same priority, so callbacks
+ * for a task are still received in the order they were fired.
+ */
+public final class EventThreadScheduler {
+
+    public static final long DEFAULT_FRAME_BUDGET_MILLIS = 8;
+
+    private static final Queue<Runnable> interactiveQueue = new ConcurrentLinkedQueue<Runnable>();
+    private static final Queue<Runnable> backgroundQueue = new ConcurrentLinkedQueue<Runnable>();
+    private static final AtomicInteger queueDepth = new AtomicInteger();
+    private static final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+    private static final AtomicLong drainCount = new AtomicLong();
+    private static final AtomicLong drainedRunnableCount = new AtomicLong();
+    private static volatile int lastBatchSize, maxBatchSize;
+    private static volatile long frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FRAME_BUDGET_MILLIS);
+    private static volatile long lastFrameWorkNanos, maxFrameWorkNanos;
+
+    private static final Runnable drainRunnable = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private EventThreadScheduler() {
+    }
+
+    /**
+     * Run the runnable on the event thread, after any work already queued at the same priority
+     * If called on the event thread the runnable is run immediately
+     */
+    static void invokeLater(Priority priority, Runnable runnable) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            runSafely(runnable);
+        } else {
+            enqueue(priority, runnable);
+        }
+    }
+
+    /**
+     * Run the runnable on the event thread, after any work already queued at the same priority
+     * The runnable is queued even if called on the event thread, so that it cannot overtake work queued earlier
+     * from a background thread
+     */
+    static void invokeAfterQueued(Priority priority, Runnable runnable) {
+        enqueue(priority, runnable);
+    }
+
+    /**
+     * Run the runnable on the event thread, after any work already queued at the same priority, and block
+     * the calling thread until it has completed. If called on the event thread the runnable is run immediately
+     *
+     * The wait is not interruptible, since returning early would let later stages of a task overtake this one.
+     * If the calling thread is interrupted while waiting its interrupted status is restored before returning.
+     */
+    static void invokeAndWait(Priority priority, final Runnable runnable) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            runSafely(runnable);
+        } else {
+            final CountDownLatch latch = new CountDownLatch(1);
+            enqueue(priority, new Runnable() {
+                public void run() {
+                    try {
+                        runnable.run();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    latch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void enqueue(Priority priority, Runnable runnable) {
+        //count the runnable before it is visible to the drain, so the depth can never go negative
+        queueDepth.incrementAndGet();
+        if (priority == Priority.INTERACTIVE) {
+            interactiveQueue.offer(runnable);
+        } else {
+            backgroundQueue.offer(runnable);
+        }
+        scheduleDrain();
+    }
+
+    private static void scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(drainRunnable);
+        }
+    }
+
+    private static void drain() {
+        //from here on, work which is queued posts a new drain
+        drainScheduled.set(false);
+
+        //only run what was queued when this drain started
+        int remaining = queueDepth.get();
+        if (remaining == 0) {
+            return; //the work was run by a drain in a nested event loop
+        }
+
+        long startTime = System.nanoTime();
+        long deadline = startTime + frameBudgetNanos;
+        int batchSize = 0;
+        Runnable runnable;
+        while (remaining-- > 0 && (runnable = poll()) != null) {
+            //if the runnable enters a nested event loop the next drain runs there, otherwise it runs after this one
+            if (queueDepth.get() > 0) {
+                scheduleDrain();
+            }
+            runSafely(runnable);
+            batchSize++;
+            if (System.nanoTime() - deadline >= 0) {
+                break;
+            }
+        }
+
+        long workNanos = System.nanoTime() - startTime;
+        lastFrameWorkNanos = workNanos;
+        if (workNanos > maxFrameWorkNanos) {
+            maxFrameWorkNanos = workNanos;
+        }
+        lastBatchSize = batchSize;
+        if (batchSize > maxBatchSize) {
+            maxBatchSize = batchSize;
+        }
+        drainCount.incrementAndGet();
+        drainedRunnableCount.addAndGet(batchSize);
+
+        //if there is still work queued, post the drain to the back of the event queue, so that any paint
+        //or input events which are waiting get processed first
+        if (queueDepth.get() > 0) {
+            scheduleDrain();
+        }
+    }
+
+    private static Runnable poll() {
+        Runnable result = interactiveQueue.poll();
+        if (result == null) {
+            result = backgroundQueue.poll();
+        }
+        if (result != null) {
+            queueDepth.decrementAndGet();
+        }
+        return result;
+    }
+
+    private static void runSafely(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of runnables currently waiting to be run on the event thread
+     */
+    public static int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the number of times the queue has been drained on the event thread
+     */
+    public static long getDrainCount() {
+        return drainCount.get();
+    }
+
+    /**
+     * @return the total number of runnables run by all drains of the queue
+     */
+    public static long getDrainedRunnableCount() {
+        return drainedRunnableCount.get();
+    }
+
+    /**
+     * @return the number of runnables run by the most recent drain of the queue
+     */
+    public static int getLastBatchSize() {
+        return lastBatchSize;
+    }
+
+    /**
+     * @return the largest number of runnables run by a single drain of the queue
+     */
+    public static int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * @return the time spent running queued work during the most recent drain of the queue
+     */
+    public static long getLastFrameWorkNanos() {
+        return lastFrameWorkNanos;
+    }
+
+    /**
+     * @return the longest time spent running queued work during a single drain of the queue
+     */
+    public static long getMaxFrameWorkNanos() {
+        return maxFrameWorkNanos;
+    }
+
+    public static void resetMaxFrameWorkNanos() {
+        maxFrameWorkNanos = 0;
+    }
+
+    public static void resetMaxBatchSize() {
+        maxBatchSize = 0;
+    }
+
+    /**
+     * Set the time for which queued work may run on the event thread before the scheduler yields to
+     * other events on the event queue. At least one runnable is always run each time the queue is drained.
+     */
+    public static void setFrameBudget(long budget, TimeUnit timeUnit) {
+        frameBudgetNanos = timeUnit.toNanos(budget);
+    }
+
+    public static long getFrameBudget(TimeUnit timeUnit) {
+        return timeUnit.convert(frameBudgetNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static enum Priority {
+
+        /**
+         * Work for tasks initiated by the user, which should update the UI as soon as possible
+         */
+        INTERACTIVE,
+
+        /**
+         * Work for tasks such as background refreshes, which runs only when there is no INTERACTIVE work queued
+         */
+        BACKGROUND
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.awt.*;
+import java.awt.event.AWTEventListener;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * An ExecutorFactory for low priority work, such as warming caches or prefetching, which should only run while
+ * the user is not interacting with the application.
+ *
+ * Tasks are queued, and started one at a time on a single low priority thread once the application is idle -
+ * that is, when there has been no user input or event thread activity for the quiet interval, no events are
+ * waiting on the event queue, and the foreground background executors have no active threads. As soon as user
+ * input arrives, the running task is cancelled (if cancelRunningOnInput is set), and queued tasks are deferred
+ * until the application is idle again.
+ *
+ * The executor only listens for user input while it has tasks queued or running, so an executor which is
+ * no longer used holds no global listener. shutdown() stops the idle thread and fails any queued tasks.
+ *
+ * <pre>
+ * IdleExecutor idleExecutor = new IdleExecutor(500, TimeUnit.MILLISECONDS);
+ * warmCacheCommand.setExecutorFactory(idleExecutor);
+ * </pre>
+ */
+public class IdleExecutor implements SwingCommand.ExecutorFactory {
+
+    private static final long INPUT_EVENT_MASK = AWTEvent.KEY_EVENT_MASK | AWTEvent.MOUSE_EVENT_MASK |
+            AWTEvent.MOUSE_MOTION_EVENT_MASK | AWTEvent.MOUSE_WHEEL_EVENT_MASK;
+
+    private final long quietIntervalNanos;
+    private final ScheduledExecutorService idleThread;
+    private final List<ThreadPoolExecutor> foregroundExecutors = new CopyOnWriteArrayList<ThreadPoolExecutor>();
+    private volatile boolean cancelRunningOnInput = true;
+
+    //the input listener is added and removed holding this lock, never while holding the lock on this executor
+    private final Object inputListenerLock = new Object();
+    private boolean listeningForInput; //guarded by inputListenerLock
+
+    //guarded by this
+    private final LinkedList<IdleWork> queue = new LinkedList<IdleWork>();
+    private IdleWork running;
+    private boolean checkScheduled, shutdown;
+    private long lastActivityNanos = System.nanoTime();
+    private long lastDrainCount = EventThreadScheduler.getDrainCount();
+    private long executedCount, preemptedCount;
+
+    private final AWTEventListener inputListener = new AWTEventListener() {
+        public void eventDispatched(AWTEvent event) {
+            userInput();
+        }
+    };
+
+    private final Runnable idleCheck = new Runnable() {
+        public void run() {
+            runIfIdle();
+        }
+    };
+
+    public IdleExecutor(long quietInterval, TimeUnit timeUnit) {
+        this.quietIntervalNanos = timeUnit.toNanos(quietInterval);
+        this.idleThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SwingCommand idle executor");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @param cancelRunningOnInput, if true (the default) the running task is cancelled when user input arrives,
+     * otherwise it is allowed to finish, and only the queued tasks are deferred
+     */
+    public void setCancelRunningOnInput(boolean cancelRunningOnInput) {
+        this.cancelRunningOnInput = cancelRunningOnInput;
+    }
+
+    /**
+     * Also wait for this executor to have no active threads before starting idle work.
+     * The default background executor is always checked
+     */
+    public void addForegroundExecutor(ThreadPoolExecutor executor) {
+        foregroundExecutors.add(executor);
+    }
+
+    public Executor getExecutor(final Task task) {
+        return new IdleTaskExecutor(task);
+    }
+
+    /**
+     * @return the number of tasks waiting for the application to become idle
+     */
+    public synchronized int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of tasks which have been started
+     */
+    public synchronized long getExecutedCount() {
+        return executedCount;
+    }
+
+    /**
+     * @return the number of running tasks which have been cancelled because user input arrived
+     */
+    public synchronized long getPreemptedCount() {
+        return preemptedCount;
+    }
+
+    /**
+     * Stop listening for user input and stop the idle thread. Queued tasks are not run, they fail with a
+     * RejectedExecutionException
+     */
+    public void shutdown() {
+        List<IdleWork> dropped;
+        synchronized (this) {
+            shutdown = true;
+            dropped = new ArrayList<IdleWork>(queue);
+            queue.clear();
+        }
+        updateInputListener();
+        idleThread.shutdown();
+
+        RejectedExecutionException e = new RejectedExecutionException("IdleExecutor has been shut down");
+        for ( IdleWork work : dropped) {
+            if ( work.command instanceof SwingCommand.TaskExecution ) {
+                ((SwingCommand.TaskExecution)work.command).rejected(e);
+            }
+        }
+    }
+
+    private void enqueue(IdleWork work) {
+        synchronized (this) {
+            if ( shutdown ) {
+                throw new RejectedExecutionException("IdleExecutor has been shut down");
+            }
+            if ( queue.isEmpty() && running == null ) {
+                //there was no listener to see any recent input, so wait for a full quiet interval from now
+                lastActivityNanos = System.nanoTime();
+            }
+            queue.add(work);
+            scheduleCheck();
+        }
+        updateInputListener();
+    }
+
+    /**
+     * @return true if the command was removed from the queue before it was started
+     */
+    private boolean remove(Runnable command) {
+        boolean removed = false;
+        synchronized (this) {
+            for ( Iterator<IdleWork> i = queue.iterator(); i.hasNext(); ) {
+                if ( i.next().command == command) {
+                    i.remove();
+                    removed = true;
+                    break;
+                }
+            }
+        }
+        if ( removed ) {
+            updateInputListener();
+        }
+        return removed;
+    }
+
+    //listen for input only while there are tasks queued or running
+    private void updateInputListener() {
+        synchronized (inputListenerLock) {
+            boolean listenerRequired;
+            synchronized (this) {
+                listenerRequired = ! shutdown && (running != null || ! queue.isEmpty());
+            }
+            if ( listenerRequired != listeningForInput ) {
+                if ( listenerRequired ) {
+                    Toolkit.getDefaultToolkit().addAWTEventListener(inputListener, INPUT_EVENT_MASK);
+                } else {
+                    Toolkit.getDefaultToolkit().removeAWTEventListener(inputListener);
+                }
+                listeningForInput = listenerRequired;
+            }
+        }
+    }
+
+    //should be called holding the lock
+    private void scheduleCheck() {
+        if ( ! checkScheduled && ! shutdown) {
+            checkScheduled = true;
+            idleThread.schedule(idleCheck, Math.max(quietIntervalNanos / 4, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void userInput() {
+        Task toCancel = null;
+        synchronized (this) {
+            lastActivityNanos = System.nanoTime();
+            if ( running != null && cancelRunningOnInput && ! running.task.isCancelled()) {
+                toCancel = running.task;
+                preemptedCount++;
+            }
+        }
+        if ( toCancel != null ) {
+            toCancel.cancel();
+        }
+    }
+
+    private void runIfIdle() {
+        IdleWork work = null;
+        synchronized (this) {
+            checkScheduled = false;
+            if ( isIdle() ) {
+                work = queue.poll();
+                running = work;
+                if ( work != null ) {
+                    executedCount++;
+                }
+            }
+        }
+
+        if ( work != null ) {
+            try {
+                work.command.run();
+            } catch (Throwable t) {
+                //a task's execution reports its own failures, so anything else is treated as uncaught on the idle thread
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, t);
+            } finally {
+                synchronized (this) {
+                    running = null;
+                    //the work we just ran counts as activity, so the next task waits for another quiet interval
+                    lastActivityNanos = System.nanoTime();
+                }
+                updateInputListener();
+            }
+        }
+
+        synchronized (this) {
+            if ( ! queue.isEmpty()) {
+                scheduleCheck();
+            }
+        }
+    }
+
+    //should be called holding the lock
+    private boolean isIdle() {
+        long now = System.nanoTime();
+        long drainCount = EventThreadScheduler.getDrainCount();
+        if ( drainCount != lastDrainCount || EventThreadScheduler.getQueueDepth() > 0 || isEventQueueBusy() || isForegroundBusy()) {
+            lastDrainCount = drainCount;
+            lastActivityNanos = now;
+        }
+        return now - lastActivityNanos >= quietIntervalNanos;
+    }
+
+    private boolean isEventQueueBusy() {
+        return Toolkit.getDefaultToolkit().getSystemEventQueue().peekEvent() != null;
+    }
+
+    private boolean isForegroundBusy() {
+        if ( SwingCommand.getDefaultBackgroundExecutorActiveCount() > 0) {
+            return true;
+        }
+        for ( ThreadPoolExecutor executor : foregroundExecutors) {
+            if ( executor.getActiveCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Queues a task's execution until the application is idle. If the task is cancelled while it is still
+     * queued, SwingCommand removes it from the queue
+     */
+    class IdleTaskExecutor implements Executor {
+        private final Task task;
+
+        public IdleTaskExecutor(Task task) {
+            this.task = task;
+        }
+
+        public void execute(Runnable command) {
+            enqueue(new IdleWork(task, command));
+        }
+
+        /**
+         * @return true if the command was removed before it was started
+         */
+        public boolean remove(Runnable command) {
+            return IdleExecutor.this.remove(command);
+        }
+    }
+
+    private static class IdleWork {
+        private final Task task;
+        private final Runnable command;
+
+        public IdleWork(Task task, Runnable command) {
+            this.task = task;
+            this.command = command;
+        }
+    }
+}
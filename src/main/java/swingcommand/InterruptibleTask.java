@@ -15,34 +15,43 @@
  */
 package swingcommand;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Created by IntelliJ IDEA.
  * User: nick
  * Date: 27-Apr-2009
  * Time: 22:29:28
  * To change this template use File | Settings | File Templates.
+ *
+ * The lifecycle of the background processing is held in a single atomic state word, and all transitions are
+ * made by compare and set, so cancel() never blocks on the background thread, or vice versa.
  */
 public abstract class InterruptibleTask<P,E> extends BackgroundTask<P,E> {
 
-    private volatile boolean isCancelled;
-    private boolean cancelCalled;
-    private boolean isBackgroundStarted, isBackgroundFinished;
-    private Thread backgroundThread;
-    private final Object localLock = new Object();
+    //state flags
+    private static final int STARTED = 1;           //doBackgroundProcessing has been entered
+    private static final int FINISHED = 2;          //doBackgroundProcessing is about to exit, cancel() will no longer interrupt
+    private static final int CANCEL_REQUESTED = 4;  //cancel() has been called
+    private static final int CANCELLED = 8;         //the task has been cancelled
+    private static final int INTERRUPTING = 16;     //cancel() is interrupting the background thread, FINISHED may not be set
+    private static final int ABANDONED = 32;        //interrupted because a hedged attempt won, not reported as cancelled
+
+    private final AtomicInteger state = new AtomicInteger();
+    private volatile Thread backgroundThread;
 
     protected void doBackgroundProcessing() throws Exception {
+        //the thread must be visible before STARTED, since cancel() will interrupt it once STARTED is set
+        backgroundThread = Thread.currentThread();
+        setFlags(STARTED);
         try {
-            synchronized (localLock) {
-                backgroundThread = Thread.currentThread();
-                isBackgroundStarted = true;
-            }
-            if ( ! isCancelled() ) {
+            if ( ! isFlagSet(CANCELLED | ABANDONED) ) {
                 try {
                     doInBackground();
                 } catch ( Exception e ) {
-                    if ( cancelCalled) {
-                        isCancelled = true;
-                    } else {
+                    if ( isFlagSet(CANCEL_REQUESTED)) {
+                        setFlags(CANCELLED);
+                    } else if ( ! isFlagSet(ABANDONED)) {
                         //this was not caused by a cancellation therefore
                         //we re-throw the error
                         throw e;
@@ -50,16 +59,58 @@ public abstract class InterruptibleTask<P,E> extends BackgroundTask<P,E> {
                 }
             }
         } finally {
-            synchronized (localLock) {
-                backgroundThread = null;
-                isCancelled |= (cancelCalled && Thread.interrupted());
-                isBackgroundFinished = true;
+            int finishedState = setFinished();
+            backgroundThread = null;
+            //clear the interrupt raised by cancel or abandon, so it does not leak into the next task run by this thread
+            if ( (finishedState & (CANCEL_REQUESTED | ABANDONED)) != 0) {
+                boolean interrupted = Thread.interrupted();
+                if ( interrupted && (finishedState & CANCEL_REQUESTED) != 0) {
+                    setFlags(CANCELLED);
+                }
+            }
+        }
+    }
+
+    /**
+     * Set FINISHED, waiting for any interrupt in progress to be delivered first
+     * Once FINISHED is set, cancel() will not interrupt this thread
+     * @return the state at the point FINISHED was set
+     */
+    private int setFinished() {
+        while (true) {
+            int current = state.get();
+            if ( (current & INTERRUPTING) != 0) {
+                Thread.yield();
+            } else if ( state.compareAndSet(current, current | FINISHED)) {
+                return current;
             }
         }
     }
 
+    private void setFlags(int flags) {
+        while (true) {
+            int current = state.get();
+            if ( state.compareAndSet(current, current | flags)) {
+                return;
+            }
+        }
+    }
+
+    private void clearFlags(int flags) {
+        while (true) {
+            int current = state.get();
+            if ( state.compareAndSet(current, current & ~flags)) {
+                return;
+            }
+        }
+    }
+
+    private boolean isFlagSet(int flag) {
+        return (state.get() & flag) != 0;
+    }
+
     public boolean canCancel() {
-        return ! isBackgroundFinished;
+        return ! isFlagSet(FINISHED) || (isFlagSet(ABANDONED) && ! getExecutionState().isFinalState());
     }
 
      /**
@@ -70,6 +121,7 @@ public abstract class InterruptibleTask<P,E> extends BackgroundTask<P,E> {
      *
      * Subclasses may throw an InterruptedException if a blocking call is interrupted, or may check for cancellation programatically
      * To check for cancellation programatically, call the isInterrupted() method periodically and simply break processing and return if isInterrupted() ever returns true
+     * The task's CancellationToken is also cancelled, so isCancellationRequested() may be polled instead
      *
      * Once this method exits isCancelled() will then be true for this task either if:
      * a) This method threw InterruptedExecption
@@ -81,21 +133,77 @@ public abstract class InterruptibleTask<P,E> extends BackgroundTask<P,E> {
 
 
     public boolean isCancelled() {
-        return isCancelled;
+        return isFlagSet(CANCELLED);
     }
 
     public void cancel() {
+        //once a hedged attempt has won, the execution carries on with the attempt's result, so it may still be
+        //cancelled after this task's own background processing has finished - up until the execution completes
+        if ( isFlagSet(ABANDONED) && getExecutionState().isFinalState()) {
+            return;
+        }
+        stop(CANCEL_REQUESTED);
+    }
+
+    /**
+     * Stop the background processing of the loser of a hedged execution, by interrupting it.
+     * Unlike cancel(), the task's cancellation token is not cancelled and isCancelled() stays false,
+     * since the execution as a whole succeeds with the result of the winner. The task may still be cancelled later
+     */
+    void abandon() {
+        stop(ABANDONED);
+    }
+
+    boolean isAbandoned() {
+        return isFlagSet(ABANDONED);
+    }
+
+    /**
+     * Called in the event thread if a hedged attempt, created by the command with the same parameters,
+     * finished before this task. The attempt's doInEventThread() has been called rather than this task's, and this
+     * task's background processing was interrupted. Tasks which hold a result for the caller should override this
+     * to copy it from the attempt, since the caller holds this task rather than the attempt
+     */
+    protected void copyResultFromHedgedAttempt(InterruptibleTask<P,E> winningAttempt) throws Exception {
+    }
+
+    /**
+     * @param stopFlag CANCEL_REQUESTED or ABANDONED
+     */
+    private void stop(int stopFlag) {
         boolean cancelledThisTime = false;
-        synchronized(localLock) {
-            cancelCalled = true;
-            if ( !isBackgroundStarted) {
-                isCancelled = true;
-            } else if ( !isBackgroundFinished) {
-                backgroundThread.interrupt();
+        while (true) {
+            int current = state.get();
+            if ( (current & stopFlag) != 0 || (current & (FINISHED | ABANDONED)) == FINISHED) {
+                //already stopped, or too late to stop
+                return;
+            } else if ( (current & ABANDONED) != 0) {
+                //cancelling an abandoned task, which has already been interrupted
+                if ( state.compareAndSet(current, current | CANCEL_REQUESTED | CANCELLED)) {
+                    break;
+                }
+            } else if ( (current & STARTED) == 0) {
+                int stopped = stopFlag == CANCEL_REQUESTED ? CANCEL_REQUESTED | CANCELLED : ABANDONED;
+                if ( state.compareAndSet(current, current | stopped)) {
+                    break;
+                }
+            } else if ( state.compareAndSet(current, current | stopFlag | INTERRUPTING)) {
+                //FINISHED cannot be set while INTERRUPTING is set, so the interrupt cannot leak out of this task
+                try {
+                    backgroundThread.interrupt();
+                } finally {
+                    clearFlags(INTERRUPTING);
+                }
                 cancelledThisTime = true;
+                break;
             }
         }
 
+        //signal code which polls the cancellation token rather than the interrupted flag
+        if ( stopFlag == CANCEL_REQUESTED) {
+            getCancellationToken().cancel();
+        }
+
         //give the subclass a chance to do some extra interrupting
         if ( cancelledThisTime) {
             try {
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * An ExecutorFactory which runs tasks with the same key one at a time, in the order they were executed, while
+ * tasks with different keys run concurrently on a shared executor. The key is derived from each Task's parameters,
+ * so for example a command which saves an order can be prevented from saving the same order twice at once:
+ *
+ * <pre>
+ * saveOrderCommand.setExecutorFactory(new KeyedSerialExecutor&lt;Order&gt;(4, new KeyedSerialExecutor.KeyExtractor&lt;Order&gt;() {
+ *     public Object getKey(Order order) {
+ *         return order.getId();
+ *     }
+ * }));
+ * </pre>
+ *
+ * Per key state only exists while a key has tasks running or waiting - once the last one finishes it is removed,
+ * so memory use does not grow with the number of distinct keys seen.
+ */
+public class KeyedSerialExecutor<P> implements SwingCommand.ExecutorFactory {
+
+    private static final Object NULL_KEY = new Object();
+
+    private final Executor executor;
+    private final KeyExtractor<P> keyExtractor;
+    private final ConcurrentMap<Object, SerialQueue> queues = new ConcurrentHashMap<Object, SerialQueue>();
+
+    /**
+     * Use the Task parameters as the key
+     */
+    public KeyedSerialExecutor(int threads) {
+        this(threads, new IdentityKeyExtractor<P>());
+    }
+
+    /**
+     * @param threads, size of the shared pool of daemon threads used to run tasks for all keys
+     */
+    public KeyedSerialExecutor(int threads, KeyExtractor<P> keyExtractor) {
+        this(Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SwingCommand keyed serial executor " + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        }), keyExtractor);
+    }
+
+    /**
+     * @param executor, the shared executor used to run tasks for all keys
+     */
+    public KeyedSerialExecutor(Executor executor, KeyExtractor<P> keyExtractor) {
+        this.executor = executor;
+        this.keyExtractor = keyExtractor;
+    }
+
+    @SuppressWarnings("unchecked")
+    public Executor getExecutor(final Task task) {
+        final Executor keyExecutor = getExecutorForKey(keyExtractor.getKey((P)task.getParameters()));
+        if ( ! (task instanceof AsyncTask)) {
+            return keyExecutor;
+        }
+        return new Executor() {
+            public void execute(Runnable command) {
+                keyExecutor.execute(new AsyncCommand(task, command));
+            }
+        };
+    }
+
+    /**
+     * @return an Executor which runs commands serially with any others for the same key
+     */
+    public Executor getExecutorForKey(Object key) {
+        final Object k = key == null ? NULL_KEY : key;
+        return new Executor() {
+            public void execute(Runnable command) {
+                KeyedSerialExecutor.this.execute(k, command);
+            }
+        };
+    }
+
+    private void execute(Object key, Runnable command) {
+        while (true) {
+            SerialQueue queue = queues.get(key);
+            if ( queue == null) {
+                queue = new SerialQueue(key, command);
+                if ( queues.putIfAbsent(key, queue) == null) {
+                    try {
+                        executor.execute(queue);
+                    } catch (RuntimeException e) {
+                        //the caller fails the first command, any offered since then are failed here
+                        failDropped(queue.rejected(), e);
+                        throw e;
+                    }
+                    return;
+                }
+            } else if ( queue.offer(command)) {
+                return;
+            } else {
+                //the queue has just run out of work and is being removed, help to remove it then try again
+                queues.remove(key, queue);
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys which currently have tasks running or waiting
+     */
+    public int getActiveKeyCount() {
+        return queues.size();
+    }
+
+    /**
+     * Derives the key used to serialise a Task from its parameters
+     */
+    public static interface KeyExtractor<P> {
+        Object getKey(P parameters);
+    }
+
+    private static class IdentityKeyExtractor<P> implements KeyExtractor<P> {
+        public Object getKey(P parameters) {
+            return parameters;
+        }
+    }
+
+    /**
+     * The work for a single key. Runs one command at a time, resubmitting itself to the shared executor
+     * between commands so that a key with a long queue cannot starve the others
+     */
+    private class SerialQueue implements Runnable {
+        private final Object key;
+        private final LinkedList<Runnable> waiting = new LinkedList<Runnable>();
+        private Runnable current;
+        private boolean closed;
+
+        public SerialQueue(Object key, Runnable first) {
+            this.key = key;
+            this.current = first;
+        }
+
+        /**
+         * @return false if this queue has closed because it ran out of work
+         */
+        public synchronized boolean offer(Runnable command) {
+            if ( closed ) {
+                return false;
+            }
+            waiting.add(command);
+            return true;
+        }
+
+        public void run() {
+            Runnable command;
+            synchronized (this) {
+                command = current;
+            }
+            if ( command instanceof AsyncCommand ) {
+                ((AsyncCommand)command).start(new Runnable() {
+                    public void run() {
+                        commandFinished();
+                    }
+                });
+                return;
+            }
+
+            try {
+                command.run();
+            } finally {
+                commandFinished();
+            }
+        }
+
+        private void commandFinished() {
+            boolean hasMoreWork;
+            synchronized (this) {
+                current = waiting.poll();
+                hasMoreWork = current != null;
+                closed = ! hasMoreWork;
+            }
+
+            if ( hasMoreWork ) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    //e.g. the shared executor has been shut down, there is no thread to run the waiting commands
+                    failDropped(rejected(), e);
+                }
+            } else {
+                queues.remove(key, this);
+            }
+        }
+
+        /**
+         * The executor would not run this queue, so remove it rather than leave the key busy forever.
+         * Any commands waiting for the key are dropped
+         *
+         * @return the dropped commands, including the current command if it has not been run
+         */
+        public List<Runnable> rejected() {
+            List<Runnable> dropped = new ArrayList<Runnable>();
+            synchronized (this) {
+                closed = true;
+                if ( current != null ) {
+                    dropped.add(current);
+                    current = null;
+                }
+                dropped.addAll(waiting);
+                waiting.clear();
+            }
+            queues.remove(key, this);
+            return dropped;
+        }
+    }
+
+    /**
+     * Fail the tasks of commands which were accepted but will now never run, so that they do not stay PENDING
+     */
+    private static void failDropped(List<Runnable> dropped, RuntimeException e) {
+        for ( Runnable command : dropped) {
+            if ( command instanceof AsyncCommand ) {
+                command = ((AsyncCommand)command).command;
+            }
+            if ( command instanceof SwingCommand.TaskExecution ) {
+                ((SwingCommand.TaskExecution)command).rejected(e);
+            }
+        }
+    }
+
+    /**
+     * Runs an AsyncTask, which holds its key until the task finishes, rather than only until its background
+     * operation has been started. The executor thread is not held while the operation is in progress
+     */
+    private static class AsyncCommand implements Runnable {
+        private final Task task;
+        private final Runnable command;
+
+        public AsyncCommand(Task task, Runnable command) {
+            this.task = task;
+            this.command = command;
+        }
+
+        public void run() {
+            command.run();
+        }
+
+        /**
+         * @param onFinished, run once the task has finished
+         */
+        public void start(final Runnable onFinished) {
+            final AtomicBoolean finished = new AtomicBoolean();
+            TaskListener finishedListener = new TaskListenerAdapter() {
+                public void finished(Task task) {
+                    if ( finished.compareAndSet(false, true)) {
+                        onFinished.run();
+                    }
+                }
+            };
+            task.addTaskListener(finishedListener);
+
+            boolean started = false;
+            try {
+                command.run();
+                started = true;
+            } finally {
+                if ( ! started ) {
+                    task.removeTaskListener(finishedListener);
+                    if ( finished.compareAndSet(false, true)) {
+                        onFinished.run();
+                    }
+                }
+            }
+        }
+    }
+}
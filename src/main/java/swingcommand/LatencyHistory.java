@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.Arrays;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A fixed size window of the most recent latency samples, from which a percentile can be read
+ */
+class LatencyHistory {
+
+    private final long[] samples;
+    private int nextIndex;   //guarded by this
+    private int sampleCount; //guarded by this
+
+    public LatencyHistory(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public synchronized void addSample(long nanos) {
+        samples[nextIndex] = nanos;
+        nextIndex = (nextIndex + 1) % samples.length;
+        sampleCount = Math.min(sampleCount + 1, samples.length);
+    }
+
+    public synchronized int getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param percentile, between 0 and 100
+     * @return the latency in nanos at this percentile of the samples in the window, or -1 if there are no samples
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if ( sampleCount == 0 ) {
+                return -1;
+            }
+            sorted = new long[sampleCount];
+            System.arraycopy(samples, 0, sorted, 0, sampleCount);
+        }
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
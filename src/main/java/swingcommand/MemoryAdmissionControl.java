@@ -0,0 +1,265 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * Holds heap heavy tasks in PENDING until there is room for them in the heap.
+ *
+ * A task which declares an estimated memory cost (see AbstractBackgroundTask.getEstimatedMemoryCost()) reserves
+ * that many bytes before it is handed to its executor. It is only admitted while the live heap, plus the bytes
+ * reserved by tasks already running, plus its own cost, is within the heap threshold - otherwise it waits, in
+ * order, until a task releases its reservation by reaching a final state, or a garbage collection frees memory.
+ * A task is always admitted if nothing is reserved, so a task whose cost alone exceeds the threshold still runs.
+ *
+ * The live heap is the heap in use after the most recent garbage collection, summed over all the heap pools, which
+ * is read from each garbage collection notification, so that admission does not count garbage in the young
+ * generation which has yet to be collected. The usage of the old generation after a young collection is included,
+ * since a collector may go a long time without collecting it. Until the first notification, the heap in use is used.
+ */
+public final class MemoryAdmissionControl {
+
+    public static final double DEFAULT_HEAP_THRESHOLD = 0.75;
+    private static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    private static final Object lock = new Object();
+    private static double heapThreshold = DEFAULT_HEAP_THRESHOLD; //guarded by lock
+    private static long reservedBytes; //guarded by lock
+    private static final LinkedList<Reservation> waiting = new LinkedList<Reservation>(); //guarded by lock
+    private static boolean gcListenerInstalled; //guarded by lock
+
+    private static volatile long liveHeapBytes = -1;
+    private static final AtomicLong heldCount = new AtomicLong();
+
+    private MemoryAdmissionControl() {
+    }
+
+    /**
+     * @param heapThreshold, the fraction of the maximum heap which admitted tasks may fill, between 0 and 1
+     */
+    public static void setHeapThreshold(double heapThreshold) {
+        if ( heapThreshold <= 0 || heapThreshold > 1) {
+            throw new IllegalArgumentException("heapThreshold must be greater than 0 and no more than 1");
+        }
+        synchronized (lock) {
+            MemoryAdmissionControl.heapThreshold = heapThreshold;
+        }
+        admitWaiting();
+    }
+
+    public static double getHeapThreshold() {
+        synchronized (lock) {
+            return heapThreshold;
+        }
+    }
+
+    /**
+     * @return the bytes reserved by admitted tasks which have not yet reached a final state
+     */
+    public static long getReservedBytes() {
+        synchronized (lock) {
+            return reservedBytes;
+        }
+    }
+
+    /**
+     * @return the number of tasks currently waiting for memory
+     */
+    public static int getWaitingCount() {
+        synchronized (lock) {
+            return waiting.size();
+        }
+    }
+
+    /**
+     * @return the number of tasks which have had to wait for memory before they were admitted
+     */
+    public static long getHeldCount() {
+        return heldCount.get();
+    }
+
+    /**
+     * @return the heap in use after the most recent garbage collection
+     */
+    public static long getLiveHeapBytes() {
+        long live = liveHeapBytes;
+        return live == -1 ? getUsedHeap() : live;
+    }
+
+    /**
+     * Reserve memory for a task, or queue it until the memory is available
+     *
+     * @param onAdmit, run once the reservation has been made, if the task had to wait
+     * @return true if the reservation was made straight away
+     */
+    static boolean reserve(long bytes, Runnable onAdmit) {
+        synchronized (lock) {
+            installGcListener();
+            if ( waiting.isEmpty() && canReserve(bytes)) {
+                reservedBytes += bytes;
+                return true;
+            }
+            waiting.add(new Reservation(bytes, onAdmit));
+        }
+        heldCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @return true if the waiting reservation was removed, false if it had already been admitted
+     */
+    static boolean cancelWaiting(Runnable onAdmit) {
+        synchronized (lock) {
+            for ( Iterator<Reservation> i = waiting.iterator(); i.hasNext(); ) {
+                if ( i.next().onAdmit == onAdmit) {
+                    i.remove();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    static void release(long bytes) {
+        synchronized (lock) {
+            reservedBytes -= bytes;
+        }
+        admitWaiting();
+    }
+
+    private static void admitWaiting() {
+        List<Runnable> toAdmit = Collections.emptyList();
+        synchronized (lock) {
+            while ( ! waiting.isEmpty() && canReserve(waiting.getFirst().bytes)) {
+                Reservation reservation = waiting.removeFirst();
+                reservedBytes += reservation.bytes;
+                if ( toAdmit.isEmpty()) {
+                    toAdmit = new ArrayList<Runnable>(1);
+                }
+                toAdmit.add(reservation.onAdmit);
+            }
+        }
+
+        for ( Runnable onAdmit : toAdmit) {
+            try {
+                onAdmit.run();
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    //should be called holding the lock
+    private static boolean canReserve(long bytes) {
+        if ( reservedBytes == 0 ) {
+            return true;
+        }
+        long limit = (long)(getMaxHeap() * heapThreshold);
+        return getLiveHeapBytes() + reservedBytes + bytes <= limit;
+    }
+
+    private static long getMaxHeap() {
+        long max = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax();
+        return max == -1 ? Runtime.getRuntime().maxMemory() : max;
+    }
+
+    private static long getUsedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return the heap in use after the collection described by this notification, or -1 if it cannot be read
+     */
+    private static long readLiveHeap(Notification notification, Set<String> heapPoolNames) {
+        if ( ! (notification.getUserData() instanceof CompositeData)) {
+            return -1;
+        }
+        Map<String,MemoryUsage> usageAfterGc = GarbageCollectionNotificationInfo.from(
+            (CompositeData)notification.getUserData()
+        ).getGcInfo().getMemoryUsageAfterGc();
+
+        long live = 0;
+        for ( Map.Entry<String,MemoryUsage> poolUsage : usageAfterGc.entrySet()) {
+            if ( heapPoolNames.contains(poolUsage.getKey())) {
+                live += poolUsage.getValue().getUsed();
+            }
+        }
+        return live;
+    }
+
+    //should be called holding the lock
+    private static void installGcListener() {
+        if ( gcListenerInstalled ) {
+            return;
+        }
+        gcListenerInstalled = true;
+
+        final Set<String> heapPoolNames = new HashSet<String>();
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if ( pool.getType() == MemoryType.HEAP) {
+                heapPoolNames.add(pool.getName());
+            }
+        }
+
+        NotificationListener gcListener = new NotificationListener() {
+            public void handleNotification(Notification notification, Object handback) {
+                if ( GC_NOTIFICATION.equals(notification.getType())) {
+                    long live = readLiveHeap(notification, heapPoolNames);
+                    liveHeapBytes = live == -1 ? getUsedHeap() : live;
+                    admitWaiting();
+                }
+            }
+        };
+        for ( GarbageCollectorMXBean gcBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if ( gcBean instanceof NotificationEmitter ) {
+                ((NotificationEmitter)gcBean).addNotificationListener(gcListener, null, null);
+            }
+        }
+    }
+
+    private static class Reservation {
+        private final long bytes;
+        private final Runnable onAdmit;
+
+        public Reservation(long bytes, Runnable onAdmit) {
+            this.bytes = bytes;
+            this.onAdmit = onAdmit;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * Optional accounting of the CPU time used and the heap allocated by each task, so that a slow user action can be
+ * attributed to CPU, allocation, or waiting.
+ *
+ * When accounting is on, the thread CPU time and allocated bytes are read at the start and end of the background
+ * stage and of doInEventThread(). The result is set on the task (see Task.getResourceUsage()) before its final
+ * state events are fired, and added to the totals for the class of the command which executed it.
+ *
+ * In SAMPLED mode only one in every samplingInterval executions is measured, which keeps the overhead negligible
+ * in production while still giving representative per command totals. Accounting is OFF by default.
+ *
+ * The background stage of an AsyncTask is not measured, since it does not run on a single thread.
+ */
+public final class ResourceAccounting {
+
+    public static final int DEFAULT_SAMPLING_INTERVAL = 100;
+
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private static final com.sun.management.ThreadMXBean allocationBean = threadBean instanceof com.sun.management.ThreadMXBean ?
+        (com.sun.management.ThreadMXBean)threadBean : null;
+
+    private static volatile Mode mode = Mode.OFF;
+    private static volatile int samplingInterval = DEFAULT_SAMPLING_INTERVAL;
+    private static final AtomicLong executionCount = new AtomicLong();
+    private static final ConcurrentHashMap<Class, Aggregate> aggregates = new ConcurrentHashMap<Class, Aggregate>();
+
+    private ResourceAccounting() {
+    }
+
+    public static void setMode(Mode mode) {
+        if ( mode != Mode.OFF && threadBean.isThreadCpuTimeSupported() && ! threadBean.isThreadCpuTimeEnabled()) {
+            threadBean.setThreadCpuTimeEnabled(true);
+        }
+        ResourceAccounting.mode = mode;
+    }
+
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * @param samplingInterval, in SAMPLED mode, one in every samplingInterval executions is measured
+     */
+    public static void setSamplingInterval(int samplingInterval) {
+        if ( samplingInterval < 1) {
+            throw new IllegalArgumentException("samplingInterval must be at least 1");
+        }
+        ResourceAccounting.samplingInterval = samplingInterval;
+    }
+
+    public static int getSamplingInterval() {
+        return samplingInterval;
+    }
+
+    /**
+     * @return the totals for the tasks executed by commands of this class, or null if none have been measured
+     */
+    public static Aggregate getAggregate(Class commandClass) {
+        return aggregates.get(commandClass);
+    }
+
+    /**
+     * @return a snapshot of the totals for each command class
+     */
+    public static Map<Class, Aggregate> getAggregates() {
+        return new HashMap<Class, Aggregate>(aggregates);
+    }
+
+    public static void resetAggregates() {
+        aggregates.clear();
+    }
+
+    /**
+     * @return a measurement for a new execution, or null if this execution is not to be measured
+     */
+    static Measurement startExecution() {
+        switch (mode) {
+            case ALL:
+                return new Measurement();
+            case SAMPLED:
+                return executionCount.incrementAndGet() % samplingInterval == 0 ? new Measurement() : null;
+            default:
+                return null;
+        }
+    }
+
+    static void addToAggregate(Class commandClass, TaskResourceUsage usage) {
+        Aggregate aggregate = aggregates.get(commandClass);
+        if ( aggregate == null ) {
+            aggregate = new Aggregate();
+            Aggregate existing = aggregates.putIfAbsent(commandClass, aggregate);
+            if ( existing != null ) {
+                aggregate = existing;
+            }
+        }
+        aggregate.add(usage);
+    }
+
+    private static long getCpuTime() {
+        return threadBean.isCurrentThreadCpuTimeSupported() ? threadBean.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long getAllocatedBytes() {
+        return allocationBean != null && allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled() ?
+            allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+    }
+
+    public static enum Mode {
+        OFF,
+        ALL,
+        SAMPLED
+    }
+
+    /**
+     * Accumulates the usage of one execution, each stage is started and ended on the thread which runs it
+     */
+    static final class Measurement {
+        //guarded by this
+        private long backgroundCpuNanos, backgroundAllocatedBytes, eventThreadCpuNanos, eventThreadAllocatedBytes;
+        private long startCpu, startAllocated;
+
+        synchronized void startStage() {
+            startCpu = getCpuTime();
+            startAllocated = getAllocatedBytes();
+        }
+
+        synchronized void endBackgroundStage() {
+            backgroundCpuNanos += getCpuTime() - startCpu;
+            backgroundAllocatedBytes += allocatedSinceStart();
+        }
+
+        synchronized void endEventThreadStage() {
+            eventThreadCpuNanos += getCpuTime() - startCpu;
+            eventThreadAllocatedBytes += allocatedSinceStart();
+        }
+
+        private long allocatedSinceStart() {
+            return startAllocated == -1 ? 0 : getAllocatedBytes() - startAllocated;
+        }
+
+        synchronized TaskResourceUsage getUsage() {
+            boolean allocationMeasured = getAllocatedBytes() != -1;
+            return new TaskResourceUsage(
+                backgroundCpuNanos,
+                allocationMeasured ? backgroundAllocatedBytes : -1,
+                eventThreadCpuNanos,
+                allocationMeasured ? eventThreadAllocatedBytes : -1
+            );
+        }
+    }
+
+    /**
+     * The total resource usage of the measured tasks executed by one command class
+     */
+    public static class Aggregate {
+        //guarded by this
+        private long measuredCount, backgroundCpuNanos, backgroundAllocatedBytes, eventThreadCpuNanos, eventThreadAllocatedBytes;
+
+        synchronized void add(TaskResourceUsage usage) {
+            measuredCount++;
+            backgroundCpuNanos += usage.getBackgroundCpuTime(TimeUnit.NANOSECONDS);
+            backgroundAllocatedBytes += Math.max(0, usage.getBackgroundAllocatedBytes());
+            eventThreadCpuNanos += usage.getEventThreadCpuTime(TimeUnit.NANOSECONDS);
+            eventThreadAllocatedBytes += Math.max(0, usage.getEventThreadAllocatedBytes());
+        }
+
+        public synchronized long getMeasuredCount() {
+            return measuredCount;
+        }
+
+        public synchronized long getBackgroundCpuTime(TimeUnit timeUnit) {
+            return timeUnit.convert(backgroundCpuNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public synchronized long getBackgroundAllocatedBytes() {
+            return backgroundAllocatedBytes;
+        }
+
+        public synchronized long getEventThreadCpuTime(TimeUnit timeUnit) {
+            return timeUnit.convert(eventThreadCpuNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public synchronized long getEventThreadAllocatedBytes() {
+            return eventThreadAllocatedBytes;
+        }
+
+        /**
+         * @return the mean usage of the measured tasks
+         */
+        public synchronized TaskResourceUsage getMeanUsage() {
+            long count = Math.max(1, measuredCount);
+            return new TaskResourceUsage(
+                backgroundCpuNanos / count,
+                backgroundAllocatedBytes / count,
+                eventThreadCpuNanos / count,
+                eventThreadAllocatedBytes / count
+            );
+        }
+
+        public synchronized String toString() {
+            return "Aggregate{measured=" + measuredCount + ", mean=" + getMeanUsage() + "}";
+        }
+    }
+}
@@ -20,9 +20,22 @@ import javax.swing.*;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 
 /**
  * Created by IntelliJ IDEA.
@@ -37,9 +50,56 @@ public abstract class SwingCommand<P,E> {
     private static Executor DEFAULT_SIMPLE_EXECUTOR = new IfSubThreadInvokeLaterExecutor();
     private ExecutorFactory DEFAULT_EXECUTOR_FACTORY = new DefaultExecutorFactory();
 
-    private final List<TaskListener<? super E>> taskListeners = new ArrayList<TaskListener<? super E>>();
+    private static final AtomicLong reclaimedQueueSlots = new AtomicLong();
+
+    public static final int DEFAULT_MAX_PREFETCHES = 4;
+    private static final Object NULL_PARAMETERS_KEY = new Object();
+
+    public static final int DEFAULT_HEDGING_MIN_SAMPLES = 20;
+
+    //hedged attempts need a thread of their own, the task's executor may be synchronous or serial
+    private static final ExecutorService HEDGE_EXECUTOR = Executors.newCachedThreadPool(
+        new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "SwingCommand Hedge");
+                t.setDaemon(true);
+                return t;
+            }
+        }
+    );
+    private static final int LATENCY_HISTORY_SIZE = 256;
+
+    private final List<ListenerReference<E>> taskListeners = new ArrayList<ListenerReference<E>>();
+    private final ReferenceQueue<Object> clearedListeners = new ReferenceQueue<Object>();
+    private long expungedListenerCount; //guarded by taskListeners
+    private final List<TaskEventPublisher<E>> eventPublishers = new CopyOnWriteArrayList<TaskEventPublisher<E>>();
 
     private volatile Executor executor;
+    private volatile ExecutorFactory executorFactory;
+    private volatile EventThreadScheduler.Priority priority;
+
+    private volatile boolean detached;
+
+    private final Map<Object, Prefetch> prefetches = new LinkedHashMap<Object, Prefetch>(); //guarded by itself
+    private volatile int maxPrefetches = DEFAULT_MAX_PREFETCHES;
+    private final AtomicLong promotedPrefetchCount = new AtomicLong();
+    private final AtomicLong discardedPrefetchCount = new AtomicLong();
+
+    private volatile double hedgingPercentile; //hedging is disabled while zero
+    private volatile int hedgingMinSamples = DEFAULT_HEDGING_MIN_SAMPLES;
+    private final LatencyHistory backgroundLatency = new LatencyHistory(LATENCY_HISTORY_SIZE);
+    private final AtomicLong hedgedAttemptCount = new AtomicLong();
+    private final AtomicLong hedgeWinCount = new AtomicLong();
+
+    private final Object admissionLock = new Object();
+    private int maxInFlight = Integer.MAX_VALUE;  //guarded by admissionLock
+    private AdmissionPolicy admissionPolicy = AdmissionPolicy.QUEUE; //guarded by admissionLock
+    private int inFlightCount; //guarded by admissionLock
+    private final LinkedList<ExecutionManager> admissionQueue = new LinkedList<ExecutionManager>(); //guarded by admissionLock
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    //the task whose background stage is running in the current thread, if any
+    private static final ThreadLocal<Task> backgroundStageTask = new ThreadLocal<Task>();
 
     public SwingCommand() {
     }
@@ -58,6 +118,43 @@ public abstract class SwingCommand<P,E> {
         this.executor = executor;
     }
 
+    /**
+     * @param executorFactory, used to choose the Executor for each Task created by this command, if no Executor
+     * is set or passed to execute(). If null, the default executors are used
+     */
+    public void setExecutorFactory(ExecutorFactory executorFactory) {
+        this.executorFactory = executorFactory;
+    }
+
+    /**
+     * Set the priority at which the event thread work for this command's tasks is scheduled.
+     *
+     * By default (or if set to null) the priority is inferred when execute is called -
+     * tasks executed on the event thread are INTERACTIVE, tasks executed from within the background stage
+     * of another task inherit its priority, and tasks executed from other threads are BACKGROUND
+     */
+    public void setPriority(EventThreadScheduler.Priority priority) {
+        this.priority = priority;
+    }
+
+    public EventThreadScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * By default, a task executed from within the background stage of another task becomes a child of that task.
+     * Children are cancelled if the parent is cancelled or fails, and the parent does not finish until all
+     * its children have finished. Tasks created by a detached command are never children, so they may outlive
+     * the task which executed them.
+     */
+    public void setDetached(boolean detached) {
+        this.detached = detached;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
     public Task<P,E> execute() {
         return execute(null, executor, null);
     }
@@ -99,24 +196,391 @@ public abstract class SwingCommand<P,E> {
     }
 
     public Task<P,E> execute(P parameters, Executor executor, TaskListener<? super E> taskListener) {
-        Task<P, E> task = createTaskAndSetParams(parameters);
+        return execute(parameters, executor, null, taskListener);
+    }
+
+    public Task<P,E> execute(P parameters, ExecutorFactory executorFactory, TaskListener<? super E> taskListener) {
+        return execute(parameters, null, executorFactory, taskListener);
+    }
+
+    private Task<P,E> execute(P parameters, Executor executor, ExecutorFactory executorFactory, TaskListener<? super E> taskListener) {
+        Task<P,E> prefetchedTask = executePrefetched(parameters, taskListener);
+        if ( prefetchedTask != null ) {
+            return prefetchedTask;
+        }
+
+        //admission is decided before the task is created, so that a rejected execution costs almost nothing
+        AdmissionPolicy policy;
+        synchronized (admissionLock) {
+            policy = tryAdmit() ? null : admissionPolicy;
+        }
+        if ( policy == AdmissionPolicy.REJECT) {
+            return executeRejected(parameters, taskListener);
+        }
+
+        boolean executed = false;
+        try {
+            Task<P, E> task = createTaskAndSetParams(parameters);
+            executor = chooseExecutor(task, executor, executorFactory);
+
+            ExecutionManager executionManager = createExecutionManager(executor, task, taskListener);
+            if ( policy == null ) {
+                executionManager.admitted = true;
+                executionManager.executeCommand();
+            } else {
+                executionManager.executeWhenAdmitted(policy);
+            }
+            executed = true;
+            return task;
+        } finally {
+            if ( ! executed && policy == null) {
+                //the task could not be created or executed, so release its slot
+                admittedTaskFinished();
+            }
+        }
+    }
+
+    /**
+     * Limit the number of tasks created by this command which may be in flight at once. A task is in flight from
+     * when it is admitted and handed to its executor until it has finished. When the limit has been reached, an
+     * execution is handled according to the policy:
+     *
+     * QUEUE - the task is created and moves to PENDING, but is only handed to its executor once another task
+     * has finished and the tasks queued before it have been admitted
+     * REJECT - createTask() is not called. execute() returns a placeholder task which moves straight to ERROR
+     * with a RejectedExecutionException
+     * REPLACE_OLDEST - the task is queued, and the oldest task still waiting for admission is cancelled, so that
+     * the most recent execution is always the next to run
+     *
+     * Tasks promoted from a prefetch are not subject to the limit
+     *
+     * @param maxInFlight, the maximum number of tasks in flight, or Integer.MAX_VALUE for no limit
+     */
+    public void setConcurrencyLimit(int maxInFlight, AdmissionPolicy admissionPolicy) {
+        if ( maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        }
+        List<ExecutionManager> toAdmit;
+        synchronized (admissionLock) {
+            this.maxInFlight = maxInFlight;
+            this.admissionPolicy = admissionPolicy;
+            toAdmit = pollAdmissionQueue();
+        }
+        executeAdmitted(toAdmit);
+    }
+
+    public final int getMaxInFlight() {
+        synchronized (admissionLock) {
+            return maxInFlight;
+        }
+    }
+
+    /**
+     * @return the number of tasks which have been admitted and have not yet finished
+     */
+    public final int getInFlightCount() {
+        synchronized (admissionLock) {
+            return inFlightCount;
+        }
+    }
+
+    /**
+     * @return the number of tasks waiting for admission because the concurrency limit has been reached
+     */
+    public final int getAdmissionQueueSize() {
+        synchronized (admissionLock) {
+            return admissionQueue.size();
+        }
+    }
+
+    /**
+     * @return the number of executions rejected because the concurrency limit had been reached
+     */
+    public final long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    //should be called holding the admissionLock
+    private boolean tryAdmit() {
+        if ( inFlightCount < maxInFlight && admissionQueue.isEmpty()) {
+            inFlightCount++;
+            return true;
+        }
+        return false;
+    }
 
-        //use the supplied Executor or the default, if null
-        if (executor == null) {
-            executor = getExecutor(task);
+    //should be called holding the admissionLock
+    private List<ExecutionManager> pollAdmissionQueue() {
+        List<ExecutionManager> toAdmit = Collections.emptyList();
+        while ( inFlightCount < maxInFlight && ! admissionQueue.isEmpty()) {
+            if ( toAdmit.isEmpty()) {
+                toAdmit = new ArrayList<ExecutionManager>(1);
+            }
+            toAdmit.add(admissionQueue.removeFirst());
+            inFlightCount++;
+        }
+        return toAdmit;
+    }
+
+    private void executeAdmitted(List<ExecutionManager> toAdmit) {
+        for ( ExecutionManager executionManager : toAdmit) {
+            executionManager.admitted = true;
+            executionManager.submit();
         }
+    }
+
+    private void admittedTaskFinished() {
+        List<ExecutionManager> toAdmit;
+        synchronized (admissionLock) {
+            inFlightCount--;
+            toAdmit = pollAdmissionQueue();
+        }
+        executeAdmitted(toAdmit);
+    }
 
-        executeCommand(executor, task, taskListener);
+    private Task<P,E> executeRejected(P parameters, TaskListener<? super E> taskListener) {
+        rejectedCount.incrementAndGet();
+        Task<P,E> task = new RejectedTask();
+        if ( parameters != null) {
+            task.setParameters(parameters);
+        }
+        task.setPriority(getPriorityForNewTask());
+        createExecutionManager(null, task, taskListener).executeRejected();
         return task;
     }
 
-    public Task<P,E> execute(P parameters, ExecutorFactory executorFactory, TaskListener<? super E> taskListener) {
-        Task<P, E> task = createTaskAndSetParams(parameters);
-        
-        //use the ExecutorFactory to create an Executor based on the Task
-        Executor executor = executorFactory.getExecutor(task);
+    public static enum AdmissionPolicy {
+        QUEUE,
+        REJECT,
+        REPLACE_OLDEST
+    }
+
+    /**
+     * Execute this command periodically, at a fixed rate. An execution is never started while the previous
+     * execution is still running, see CommandSchedule
+     */
+    public final CommandSchedule<P,E> scheduleAtFixedRate(long initialDelay, long period, TimeUnit timeUnit) {
+        return new CommandSchedule<P,E>(this, true, initialDelay, period, timeUnit);
+    }
+
+    /**
+     * Execute this command periodically, with a fixed delay between the end of one execution and the start of the next
+     */
+    public final CommandSchedule<P,E> scheduleWithFixedDelay(long initialDelay, long delay, TimeUnit timeUnit) {
+        return new CommandSchedule<P,E>(this, false, initialDelay, delay, timeUnit);
+    }
+
+    /**
+     * Speculatively start a task for these parameters, for example when the user hovers over or selects the item
+     * which the next execution is likely to be for. The task runs its background stage at low priority without
+     * any events being fired. If execute() is then called with equal parameters before the prefetch expires,
+     * the prefetched task is promoted and returned by execute() - it receives the execute priority and listeners,
+     * fires its events, and completes with doInEventThread() as soon as its background stage has finished.
+     *
+     * A prefetch which is not used within timeToLive is cancelled, as is the oldest prefetch if more than
+     * maxPrefetches are outstanding. Only commands which create a BackgroundTask can prefetch.
+     *
+     * @return true if a prefetch was started, false if one was already outstanding for these parameters,
+     * the task created cannot be prefetched, or the executor rejected it
+     */
+    public final boolean prefetch(P parameters, long timeToLive, TimeUnit timeUnit) {
+        if ( ! isPrefetchSupported()) {
+            return false;
+        }
+        Object key = getPrefetchKey(parameters);
+        synchronized (prefetches) {
+            if ( prefetches.containsKey(key)) {
+                return false;
+            }
+        }
+
+        Task<P,E> task = doCreateTask();
+        if ( ! (task instanceof BackgroundTask)) {
+            return false;
+        }
+        if ( parameters != null ) {
+            task.setParameters(parameters);
+        }
+        task.setPriority(EventThreadScheduler.Priority.BACKGROUND);
+
+        final Prefetch prefetch = new Prefetch(key, task);
+        Prefetch evicted = null;
+        synchronized (prefetches) {
+            if ( prefetches.containsKey(key)) {
+                return false;
+            }
+            prefetches.put(key, prefetch);
+            if ( prefetches.size() > maxPrefetches) {
+                Iterator<Prefetch> i = prefetches.values().iterator();
+                evicted = i.next();
+                i.remove();
+            }
+        }
+        if ( evicted != null ) {
+            evicted.discard();
+        }
+
+        prefetch.expiry = CommandSchedule.scheduler.schedule(new Runnable() {
+            public void run() {
+                if ( removePrefetch(prefetch)) {
+                    prefetch.discard();
+                }
+            }
+        }, timeToLive, timeUnit);
+        try {
+            chooseExecutor(task, executor, null).execute(prefetch);
+        } catch (RuntimeException e) {
+            removePrefetch(prefetch);
+            prefetch.rejected(e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Cancel all the outstanding prefetches which have not been promoted by a call to execute
+     */
+    public final void cancelPrefetches() {
+        List<Prefetch> toDiscard;
+        synchronized (prefetches) {
+            toDiscard = new ArrayList<Prefetch>(prefetches.values());
+            prefetches.clear();
+        }
+        for ( Prefetch prefetch : toDiscard) {
+            prefetch.discard();
+        }
+    }
+
+    /**
+     * @param maxPrefetches, the maximum number of outstanding prefetches, beyond which the oldest is cancelled
+     */
+    public void setMaxPrefetches(int maxPrefetches) {
+        this.maxPrefetches = maxPrefetches;
+    }
+
+    /**
+     * @return the number of prefetched tasks which have been promoted by a call to execute
+     */
+    public final long getPromotedPrefetchCount() {
+        return promotedPrefetchCount.get();
+    }
+
+    /**
+     * @return the number of prefetched tasks which were cancelled because they expired or were evicted or cancelled
+     */
+    public final long getDiscardedPrefetchCount() {
+        return discardedPrefetchCount.get();
+    }
+
+    /**
+     * Enable hedged execution, to cut the tail latency of a command whose tasks are idempotent InterruptibleTasks.
+     *
+     * The latency of the background stage of each task is recorded. Once minSamples have been recorded, if a task's
+     * background stage is still running after the given percentile of the recent latencies, a second task is created
+     * with the same parameters and its background stage is started. The first attempt to finish wins and the other
+     * is cancelled. An attempt which fails does not win while the other is still running.
+     *
+     * Only the winner's doInEventThread() is called, and the lifecycle events are fired once, for the task returned by
+     * execute(). If the second attempt wins, the background thread of the task returned by execute() is interrupted,
+     * but the task is not cancelled, and copyResultFromHedgedAttempt() is called on it so that it can take the
+     * attempt's result. The second attempt runs on a thread of its own rather than on the command's executor, since
+     * that executor may run tasks synchronously, or one at a time
+     *
+     * @param percentile, between 0 and 100, e.g. 95 to hedge the slowest 5% of tasks
+     */
+    public void setHedging(double percentile, int minSamples) {
+        if ( percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be greater than 0 and no more than 100");
+        }
+        this.hedgingMinSamples = minSamples;
+        this.hedgingPercentile = percentile;
+    }
+
+    public void disableHedging() {
+        this.hedgingPercentile = 0;
+    }
+
+    /**
+     * @return the time after which a running task would be hedged, or -1 if hedging is disabled
+     * or not enough latencies have been recorded yet
+     */
+    public final long getHedgeDelay(TimeUnit timeUnit) {
+        long delay = getHedgeDelayNanos();
+        return delay == -1 ? -1 : timeUnit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of second attempts started because a task was slower than the hedging percentile
+     */
+    public final long getHedgedAttemptCount() {
+        return hedgedAttemptCount.get();
+    }
+
+    /**
+     * @return the number of second attempts which finished before the task they were hedging
+     */
+    public final long getHedgeWinCount() {
+        return hedgeWinCount.get();
+    }
+
+    private long getHedgeDelayNanos() {
+        double percentile = hedgingPercentile;
+        if ( percentile == 0 || backgroundLatency.getSampleCount() < hedgingMinSamples) {
+            return -1;
+        }
+        return backgroundLatency.getPercentile(percentile);
+    }
+
+    private void recordBackgroundLatency(Task t, long startNanos, Throwable backgroundError) {
+        boolean abandoned = t instanceof InterruptibleTask && ((InterruptibleTask)t).isAbandoned();
+        if ( hedgingPercentile != 0 && backgroundError == null && ! t.isCancelled() && ! abandoned) {
+            backgroundLatency.addSample(System.nanoTime() - startNanos);
+        }
+    }
+
+    private Object getPrefetchKey(P parameters) {
+        return parameters == null ? NULL_PARAMETERS_KEY : parameters;
+    }
+
+    private boolean removePrefetch(Prefetch prefetch) {
+        synchronized (prefetches) {
+            if ( prefetches.get(prefetch.key) == prefetch) {
+                prefetches.remove(prefetch.key);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the prefetched task for these parameters, now promoted, or null if there is no prefetch to use
+     */
+    private Task<P,E> executePrefetched(P parameters, TaskListener<? super E> taskListener) {
+        Prefetch prefetch;
+        synchronized (prefetches) {
+            if ( prefetches.isEmpty()) {
+                return null;
+            }
+            prefetch = prefetches.remove(getPrefetchKey(parameters));
+        }
+        if ( prefetch == null ) {
+            return null;
+        }
+
+        prefetch.cancelExpiry();
+        Task<P,E> task = prefetch.task;
+        if ( task.isCancelled()) {
+            prefetch.discard();
+            return null;
+        }
+        task.setPriority(getPriorityForNewTask());
 
-        executeCommand(executor, task, taskListener);
+        final List<TaskListener<? super E>> allListeners = getListenerSnapshot();
+        if ( taskListener != null) {
+            allListeners.add(taskListener);
+        }
+        new ExecutionManager(null, task, allListeners).executePrefetched(prefetch);
+        promotedPrefetchCount.incrementAndGet();
         return task;
     }
 
@@ -125,9 +589,42 @@ public abstract class SwingCommand<P,E> {
         if ( parameters != null) {
             task.setParameters(parameters);
         }
+        task.setPriority(getPriorityForNewTask());
         return task;
     }
 
+    /**
+     * A background stage may run synchronously within another, e.g. a child of a CompositeCommandTask,
+     * so the outer stage's task is restored when the inner stage exits
+     * @return the task of the enclosing background stage, or null
+     */
+    private static Task enterBackgroundStage(Task task) {
+        Task previous = backgroundStageTask.get();
+        backgroundStageTask.set(task);
+        return previous;
+    }
+
+    private static void exitBackgroundStage(Task previous) {
+        if ( previous == null ) {
+            backgroundStageTask.remove();
+        } else {
+            backgroundStageTask.set(previous);
+        }
+    }
+
+    private EventThreadScheduler.Priority getPriorityForNewTask() {
+        EventThreadScheduler.Priority result = priority;
+        if ( result == null) {
+            if ( SwingUtilities.isEventDispatchThread()) {
+                result = EventThreadScheduler.Priority.INTERACTIVE;
+            } else {
+                Task parent = backgroundStageTask.get();
+                result = parent != null ? parent.getPriority() : EventThreadScheduler.Priority.BACKGROUND;
+            }
+        }
+        return result;
+    }
+
     private List<TaskListener<? super E>> getList(TaskListener<? super E> taskListener) {
         List<TaskListener<? super E>> l = new ArrayList<TaskListener<? super E>>();
         l.add(taskListener);
@@ -160,25 +657,150 @@ public abstract class SwingCommand<P,E> {
         }
     }
 
+    /**
+     * @return the Executor for a new task, given the Executor or ExecutorFactory passed to execute(), either of which may be null
+     */
+    Executor chooseExecutor(Task<P,E> task, Executor executor, ExecutorFactory executorFactory) {
+        if (executorFactory != null) {
+            //use the ExecutorFactory to create an Executor based on the Task
+            return executorFactory.getExecutor(task);
+        } else if (executor == null) {
+            //use the supplied Executor or the default, if null
+            return getExecutor(task);
+        }
+        return executor;
+    }
+
+    /**
+     * @return false if tasks created by this command cannot be prefetched, whatever their type
+     */
+    boolean isPrefetchSupported() {
+        return true;
+    }
+
     private Executor getExecutor(Task task) {
-        return DEFAULT_EXECUTOR_FACTORY.getExecutor(task);
+        ExecutorFactory factory = executorFactory;
+        return factory != null ? factory.getExecutor(task) : DEFAULT_EXECUTOR_FACTORY.getExecutor(task);
+    }
+
+    /**
+     * @return the number of threads in the default background executor which are running tasks
+     */
+    static int getDefaultBackgroundExecutorActiveCount() {
+        return ((ThreadPoolExecutor)DEFAULT_BACKGROUND_EXECUTOR).getActiveCount();
+    }
+
+    /**
+     * @return the number of tasks which were removed from an executor's queue because they were cancelled before
+     * they started. Only tasks queued by a ThreadPoolExecutor or an IdleExecutor can be removed in this way.
+     */
+    public static long getReclaimedQueueSlotCount() {
+        return reclaimedQueueSlots.get();
     }
 
     public final void addTaskListener(TaskListener<? super E> taskListener) {
         synchronized (this.taskListeners) {
-            this.taskListeners.add(taskListener);
+            expungeClearedListeners();
+            this.taskListeners.add(new ListenerReference<E>(taskListener, null));
+        }
+    }
+
+    /**
+     * Add a listener which is only weakly referenced by this command, so that registering does not prevent the
+     * listener (and any dialog or panel it refers to) from being garbage collected. Once collected, the listener
+     * is removed automatically. The caller must keep a strong reference to the listener for as long as it should
+     * receive events - an anonymous listener which is not referenced elsewhere may be collected straight away.
+     *
+     * Tasks which have already been executed hold their listeners strongly until the task finishes
+     */
+    public final void addWeakTaskListener(TaskListener<? super E> taskListener) {
+        synchronized (this.taskListeners) {
+            expungeClearedListeners();
+            this.taskListeners.add(new ListenerReference<E>(taskListener, clearedListeners));
         }
     }
 
+    /**
+     * Remove the first listener equal to taskListener, whether it was registered strongly or weakly
+     */
     public final void removeTaskListener(TaskListener<? super E> taskListener) {
         synchronized (this.taskListeners) {
-            this.taskListeners.remove(taskListener);
+            for ( Iterator<ListenerReference<E>> i = taskListeners.iterator(); i.hasNext(); ) {
+                TaskListener<? super E> listener = i.next().get();
+                if ( taskListener == null ? listener == null : taskListener.equals(listener)) {
+                    i.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of weakly registered listeners which have been removed from this command
+     * because they were garbage collected
+     */
+    public final long getExpungedListenerCount() {
+        synchronized (this.taskListeners) {
+            return expungedListenerCount;
         }
     }
 
     private List<TaskListener<? super E>> getListenerSnapshot()  {
         synchronized (taskListeners) {
-            return new ArrayList<TaskListener<? super E>>(taskListeners);
+            drainClearedListenerQueue();
+            List<TaskListener<? super E>> snapshot = new ArrayList<TaskListener<? super E>>(taskListeners.size());
+            for ( Iterator<ListenerReference<E>> i = taskListeners.iterator(); i.hasNext(); ) {
+                TaskListener<? super E> listener = i.next().get();
+                if ( listener == null) {
+                    i.remove();
+                    expungedListenerCount++;
+                } else {
+                    snapshot.add(listener);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    //should be called holding the taskListeners lock
+    //the reference queue tells us whether any weak listener has been collected, so we only scan the list if one has
+    private void expungeClearedListeners() {
+        if ( ! drainClearedListenerQueue()) {
+            return;
+        }
+        for ( Iterator<ListenerReference<E>> i = taskListeners.iterator(); i.hasNext(); ) {
+            if ( i.next().get() == null) {
+                i.remove();
+                expungedListenerCount++;
+            }
+        }
+    }
+
+    /**
+     * @return a publisher of the lifecycle and progress events for every task subsequently executed by this command,
+     * which delivers the events to its subscribers on the executor, rather than the event thread
+     */
+    public final TaskEventPublisher<E> createEventPublisher(Executor executor) {
+        return createEventPublisher(executor, TaskEventPublisher.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize, the number of events buffered for a subscriber with no outstanding demand,
+     * before progress events are dropped
+     */
+    public final TaskEventPublisher<E> createEventPublisher(Executor executor, int bufferSize) {
+        TaskEventPublisher<E> publisher = new TaskEventPublisher<E>(executor, bufferSize, false);
+        eventPublishers.add(publisher);
+        return publisher;
+    }
+
+    /**
+     * Stop publishing events for new tasks to the publisher, and complete its subscriptions
+     * once they have received the events already published
+     */
+    public final void removeEventPublisher(TaskEventPublisher<E> publisher) {
+        if ( eventPublishers.remove(publisher)) {
+            publisher.complete();
         }
     }
 
@@ -188,7 +810,7 @@ public abstract class SwingCommand<P,E> {
     protected abstract Task<P,E> createTask();
 
 
-    private void executeCommand(Executor executor, Task<P,E> execution, TaskListener<? super E> taskListener) {
+    private ExecutionManager createExecutionManager(Executor executor, Task<P,E> execution, TaskListener<? super E> taskListener) {
 
         //get a snapshot list of the execution observers which will receive the events for this execution
         final List<TaskListener<? super E>> allListeners = getListenerSnapshot();
@@ -199,8 +821,7 @@ public abstract class SwingCommand<P,E> {
         }
 
         //create a new execution controller for this execution
-        ExecutionManager executionManager = new ExecutionManager(executor, execution, allListeners);
-        executionManager.executeCommand();
+        return new ExecutionManager(executor, execution, allListeners);
     }
 
     static class IfSubThreadInvokeLaterExecutor implements Executor {
@@ -211,7 +832,9 @@ public abstract class SwingCommand<P,E> {
             } else {
                 //if command kicked off on a subthread we don't want to block it on the event thread
                 //longer than necessary for performance reasons, so use invoke later rather than invokeAndWait
-                SwingUtilities.invokeLater(command);
+                //This goes through the scheduler rather than straight onto the event queue, so that it cannot
+                //overtake the pending event for the task. Pending is never queued at a lower priority than this.
+                EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, command);
             }
         }
     }
@@ -234,7 +857,7 @@ public abstract class SwingCommand<P,E> {
 
     class DefaultExecutorFactory implements ExecutorFactory {
         public Executor getExecutor(Task e) {
-            return (e instanceof BackgroundTask) ? getDefaultBackgroundTaskExecutor() : getDefaultTaskExecutor();
+            return (e instanceof AbstractBackgroundTask) ? getDefaultBackgroundTaskExecutor() : getDefaultTaskExecutor();
         }
     }
 
@@ -242,6 +865,23 @@ public abstract class SwingCommand<P,E> {
         Executor getExecutor(Task e);
     }
 
+    /**
+     * The runnable for a task which is handed to its executor. An executor which accepts it, but later finds that
+     * it cannot run it, e.g. because the pool it hands work on to has been shut down, calls rejected() so that
+     * the task fails rather than staying PENDING
+     */
+    interface TaskExecution extends Runnable {
+        void rejected(RuntimeException e);
+
+        /**
+         * Start and complete the task in a single event thread delivery, without running its background stage,
+         * for an executor which has done the background work itself, e.g. as part of a BatchingCommand's batch
+         *
+         * @param backgroundError, the error from the background work, or null if it succeeded
+         */
+        void backgroundStageCompleted(Throwable backgroundError);
+    }
+
 
     class ExecutionManager {
 
@@ -262,56 +902,455 @@ public abstract class SwingCommand<P,E> {
          */
         private final Object memorySync = new Object();
 
+        private volatile Runnable queuedTaskCancellation;
+        private volatile Hedge hedge;
+
+        //true if the task holds one of the command's in flight slots, which is released as it finishes
+        volatile boolean admitted;
+        private volatile Runnable admissionCancellation;
+        private volatile long reservedMemory;
+        private final ResourceAccounting.Measurement measurement = ResourceAccounting.startExecution();
+
         public void executeCommand() {
+            announce();
+            submit();
+        }
+
+        /**
+         * Move the task to PENDING and queue it until the command's concurrency limit allows it to be admitted
+         */
+        public void executeWhenAdmitted(AdmissionPolicy policy) {
+            announce();
+
+            if ( task instanceof AbstractBackgroundTask ) {
+                //if the task is cancelled while waiting for admission, it is removed from the queue straight away
+                admissionCancellation = new Runnable() {
+                    public void run() {
+                        boolean removed;
+                        synchronized (admissionLock) {
+                            removed = admissionQueue.remove(ExecutionManager.this);
+                        }
+                        if ( removed ) {
+                            completeCancelledWhileQueued();
+                        }
+                    }
+                };
+                ((AbstractBackgroundTask)task).getCancellationToken().addCancellationCallback(admissionCancellation);
+            }
+
+            List<ExecutionManager> toAdmit;
+            ExecutionManager replaced = null;
+            synchronized (admissionLock) {
+                if ( policy == AdmissionPolicy.REPLACE_OLDEST && ! admissionQueue.isEmpty()) {
+                    replaced = admissionQueue.removeFirst();
+                }
+                admissionQueue.add(this);
+                //a slot may have been released while the task was being created
+                toAdmit = pollAdmissionQueue();
+            }
+            if ( replaced != null ) {
+                replaced.cancelWhileQueued();
+            }
+            executeAdmitted(toAdmit);
+        }
 
+        /**
+         * A placeholder task for a rejected execution moves straight from PENDING to ERROR
+         */
+        public void executeRejected() {
+            task.setExecutionState(Task.ExecutionState.PENDING);
+            startFlightRecording();
+            TaskRegistry.register(SwingCommand.this, task, executor);
             task.addTaskListeners(taskListeners);
+            TaskListenerSupport.firePending(task.getTaskListeners(), task);
+            TaskListenerSupport.executeAsynchronouslyIfBackgroundThread(task, new Runnable() {
+                public void run() {
+                    try {
+                        task.setExecutionException(new RejectedExecutionException(
+                            "Concurrency limit of " + getMaxInFlight() + " reached for " + SwingCommand.this.getClass().getName()
+                        ));
+                        task.setExecutionState(Task.ExecutionState.ERROR);
+                        TaskListenerSupport.fireError(task.getTaskListeners(), task, task.getExecutionException());
+                    } finally {
+                        TaskListenerSupport.fireFinished(task.getTaskListeners(), task);
+                        finishFlightRecording();
+                        TaskRegistry.taskFinished(task);
+                        task.releaseResources();
+                    }
+                }
+            });
+        }
+
+        private void cancelWhileQueued() {
+            if ( task instanceof AbstractBackgroundTask ) {
+                ((AbstractBackgroundTask)task).getCancellationToken().removeCancellationCallback(admissionCancellation);
+            }
+            task.cancel();
+            completeCancelledWhileQueued();
+        }
+
+        private void announce() {
+            //fails with IllegalStateException if the task has already been executed
+            task.setExecutionState(Task.ExecutionState.PENDING);
+            startFlightRecording();
+            TaskRegistry.register(SwingCommand.this, task, executor);
+            task.addTaskListeners(taskListeners);
+            for ( TaskEventPublisher<E> publisher : eventPublishers) {
+                task.addEventPublisher(publisher);
+            }
 
             //Call fire pending before spawning a new thread. Provided execute was called on the
             //event thread, no more ui work can possibly get finished before fireStarting is called
             //If fireStarting is used, for example, to disable a button, this guarantees that the button will be
             //disabled before the action listener triggering the swingcommand returns.
             //otherwise the user might be able to click the button again before the fireStarting callback
-            task.setExecutionState(Task.ExecutionState.PENDING);
             TaskListenerSupport.firePending(task.getTaskListeners(), task);
 
-             executor.execute(new Runnable() {
+            Task parent = backgroundStageTask.get();
+            if ( parent != null && ! detached ) {
+                parent.addChildTask(task);
+            }
+        }
+
+        /**
+         * Hand the task to its executor
+         */
+        void submit() {
+            Runnable cancellation = admissionCancellation;
+            if ( cancellation != null) {
+                ((AbstractBackgroundTask)task).getCancellationToken().removeCancellationCallback(cancellation);
+                if ( task.isCancelled()) {
+                    //cancelled after it was admitted, but before its cancellation callback was removed
+                    completeCancelledWhileQueued();
+                    return;
+                }
+            }
+
+            if ( reservedMemory == 0 && ! reserveMemory()) {
+                return; //submitted again once there is room in the heap
+            }
+
+            final TaskExecution executionRunnable = new TaskExecution() {
                 public void run() {
+                    Runnable cancellation = queuedTaskCancellation;
+                    if ( cancellation != null) {
+                        ((AbstractBackgroundTask)task).getCancellationToken().removeCancellationCallback(cancellation);
+                    }
                     doExecuteTask();
                 }
+
+                public void rejected(RuntimeException e) {
+                    backgroundStageCompleted(e);
+                }
+
+                public void backgroundStageCompleted(Throwable backgroundError) {
+                    Runnable queuedCancellation = queuedTaskCancellation;
+                    if ( queuedCancellation != null) {
+                        ((AbstractBackgroundTask)task).getCancellationToken().removeCancellationCallback(queuedCancellation);
+                    }
+                    completeWithoutBackgroundStage(backgroundError);
+                }
+            };
+
+            //if the task is cancelled while it is still in the executor's queue, remove it from the queue so that
+            //the slot is freed straight away, rather than when a thread eventually picks the task up
+            if ( task instanceof AbstractBackgroundTask && (executor instanceof ThreadPoolExecutor || executor instanceof IdleExecutor.IdleTaskExecutor)) {
+                queuedTaskCancellation = new Runnable() {
+                    public void run() {
+                        reclaimQueuedTask(executionRunnable);
+                    }
+                };
+                ((AbstractBackgroundTask)task).getCancellationToken().addCancellationCallback(queuedTaskCancellation);
+            }
+
+            try {
+                executor.execute(executionRunnable);
+            } catch (RuntimeException e) {
+                //e.g. a RejectedExecutionException from an executor which has been shut down
+                executionRunnable.rejected(e);
+            }
+        }
+
+        /**
+         * Used when the executor would not accept the task, so that it fails without running, or when the executor
+         * has done the background work itself. The task goes through the same started and completion callbacks
+         * as a task which runs its own background stage
+         */
+        private void completeWithoutBackgroundStage(final Throwable backgroundError) {
+            TaskListenerSupport.executeAsynchronouslyIfBackgroundThread(task, new Runnable() {
+                public void run() {
+                    task.setExecutionState(Task.ExecutionState.STARTED);
+                    flightRecordingStarted();
+                    TaskRegistry.taskStarted(task);
+                    TaskListenerSupport.fireStarted(task.getTaskListeners(), task);
+                    new CompletionRunnable(backgroundError).run();
+                }
+            });
+        }
+
+        /**
+         * Announce a prefetched task, whose background stage has been started speculatively, and complete it once
+         * the background stage has finished
+         */
+        public void executePrefetched(Prefetch prefetch) {
+            task.setExecutionState(Task.ExecutionState.PENDING);
+            startFlightRecording();
+            TaskRegistry.register(SwingCommand.this, task, executor);
+            task.addTaskListeners(taskListeners);
+            for ( TaskEventPublisher<E> publisher : eventPublishers) {
+                task.addEventPublisher(publisher);
+            }
+            TaskListenerSupport.firePending(task.getTaskListeners(), task);
+
+            Task parent = backgroundStageTask.get();
+            if ( parent != null && ! detached ) {
+                parent.addChildTask(task);
+            }
+
+            TaskListenerSupport.executeSynchronouslyOnEventThread(task, new Runnable() {
+                public void run() {
+                    task.setExecutionState(Task.ExecutionState.STARTED);
+                    flightRecordingStarted();
+                    TaskRegistry.taskStarted(task);
+                    TaskListenerSupport.fireStarted(task.getTaskListeners(), task);
+                }
+            });
+            prefetch.promote(this);
+        }
+
+        void completePrefetched(Throwable backgroundError) {
+            if ( ! completeWhenChildrenFinished(backgroundError)) {
+                TaskListenerSupport.executeAsynchronouslyIfBackgroundThread(task, new CompletionRunnable(backgroundError));
+            }
+        }
+
+        private void reclaimQueuedTask(Runnable executionRunnable) {
+            if ( task.isCancelled() && removeQueued(executionRunnable)) {
+                reclaimedQueueSlots.incrementAndGet();
+                completeCancelledWhileQueued();
+            }
+        }
+
+        private boolean removeQueued(Runnable executionRunnable) {
+            return executor instanceof ThreadPoolExecutor ?
+                ((ThreadPoolExecutor)executor).remove(executionRunnable) :
+                ((IdleExecutor.IdleTaskExecutor)executor).remove(executionRunnable);
+        }
+
+        /**
+         * @return true if the task may be submitted now, false if it is waiting for memory
+         */
+        private boolean reserveMemory() {
+            final long cost = task instanceof AbstractBackgroundTask ? ((AbstractBackgroundTask)task).getEstimatedMemoryCost() : 0;
+            if ( cost <= 0 ) {
+                return true;
+            }
+
+            final CancellationToken token = ((AbstractBackgroundTask)task).getCancellationToken();
+            final Runnable[] memoryCancellation = new Runnable[1];
+            final Runnable onAdmit = new Runnable() {
+                public void run() {
+                    token.removeCancellationCallback(memoryCancellation[0]);
+                    reservedMemory = cost;
+                    submit();
+                }
+            };
+            memoryCancellation[0] = new Runnable() {
+                public void run() {
+                    if ( MemoryAdmissionControl.cancelWaiting(onAdmit)) {
+                        completeCancelledWhileQueued();
+                    }
+                }
+            };
+
+            if ( MemoryAdmissionControl.reserve(cost, onAdmit)) {
+                reservedMemory = cost;
+                return true;
+            }
+            //if the task is cancelled while waiting for memory, it stops waiting straight away
+            token.addCancellationCallback(memoryCancellation[0]);
+            return false;
+        }
+
+        //the task never started, so it goes straight from PENDING to CANCELLED in a single event thread delivery
+        //the task may be cancelled on the event thread while its pending event, fired from a background thread, is
+        //still queued, so the cancellation is always queued behind it rather than run straight away
+        private void completeCancelledWhileQueued() {
+            TaskListenerSupport.executeAsynchronouslyAfterQueuedEvents(task, new Runnable() {
+                public void run() {
+                    try {
+                        task.setExecutionState(Task.ExecutionState.CANCELLED);
+                        TaskListenerSupport.fireCancelled(task.getTaskListeners(), task);
+                    } finally {
+                        TaskListenerSupport.fireFinished(task.getTaskListeners(), task);
+                        finishFlightRecording();
+                        TaskRegistry.taskFinished(task);
+                        task.releaseResources();
+                        releaseAdmission();
+                    }
+                }
             });
         }
+
+        //null unless swingcommand flight recorder events are enabled, see TaskFlightRecorder
+        private void startFlightRecording() {
+            final TaskFlightRecorder.Recording recording = TaskFlightRecorder.startRecording(SwingCommand.this, task);
+            if ( recording != null ) {
+                recording.pending();
+                task.setFlightRecording(recording);
+                if ( task instanceof AbstractBackgroundTask ) {
+                    ((AbstractBackgroundTask)task).getCancellationToken().addCancellationCallback(new Runnable() {
+                        public void run() {
+                            recording.cancellationRequested();
+                        }
+                    });
+                }
+            }
+        }
+
+        private void flightRecordingStarted() {
+            TaskFlightRecorder.Recording recording = task.getFlightRecording();
+            if ( recording != null ) {
+                recording.started();
+            }
+        }
+
+        //the final state is now known, so the task's events can be committed
+        private void finishFlightRecording() {
+            TaskFlightRecorder.Recording recording = task.getFlightRecording();
+            if ( recording != null ) {
+                task.setFlightRecording(null);
+                recording.taskFinished(task.getExecutionState());
+            }
+        }
+
+        //release the task's concurrency slot and memory reservation. This is done once the task has finished, since
+        //a task admitted in its place may run to completion straight away, e.g. on the event thread, and its events
+        //must not reach shared listeners before this task's finished event
+        private void releaseAdmission() {
+            long memory = reservedMemory;
+            if ( memory > 0 ) {
+                reservedMemory = 0;
+                MemoryAdmissionControl.release(memory);
+            }
+            if ( admitted ) {
+                admitted = false;
+                admittedTaskFinished();
+            }
+        }
     
         private void doExecuteTask() {
-            //this try block makes sure we always call end up calling fireFinished
+            Throwable backgroundError = null;
             try {
                 Thread.interrupted(); // clear any interrupted state before starting
 
-                setExecutionState(Task.ExecutionState.STARTED);
-                TaskListenerSupport.fireStarted(task.getTaskListeners(), task);
-
-                if ( task instanceof BackgroundTask) {
-                    synchronized (memorySync) {
-                        //STAGE1  - in the current swingcommand processing thread
-                        ((BackgroundTask) task).doBackgroundProcessing();
+                //the state change is made in the same event thread delivery as the started event, so listeners
+                //still handling an earlier event for this task (e.g. pending) never see a later state
+                TaskListenerSupport.executeSynchronouslyOnEventThread(task, new Runnable() {
+                    public void run() {
+                        task.setExecutionState(Task.ExecutionState.STARTED);
+                        flightRecordingStarted();
+                        TaskRegistry.taskStarted(task);
+                        TaskListenerSupport.fireStarted(task.getTaskListeners(), task);
+                    }
+                });
+
+                if ( task instanceof AsyncTask) {
+                    startAsyncBackgroundProcessing();
+                    return;
+                } else if ( task instanceof BackgroundTask) {
+                    startHedgeTimer();
+                    if ( measurement != null ) {
+                        measurement.startStage();
                     }
+                    long startNanos = System.nanoTime();
+                    TaskFlightRecorder.Recording recording = task.getFlightRecording();
+                    TaskFlightRecorder.Span backgroundSpan = recording == null ? null : recording.beginBackgroundStage();
+                    Task previousStageTask = enterBackgroundStage(task);
+                    try {
+                        synchronized (memorySync) {
+                            //STAGE1  - in the current swingcommand processing thread
+                            ((BackgroundTask) task).doBackgroundProcessing();
+                        }
+                    } finally {
+                        exitBackgroundStage(previousStageTask);
+                        if ( backgroundSpan != null ) {
+                            backgroundSpan.end();
+                        }
+                        if ( measurement != null ) {
+                            measurement.endBackgroundStage();
+                        }
+                    }
+                    recordBackgroundLatency(task, startNanos, null);
                 }
+            } catch (Throwable t) {
+                backgroundError = t;
+            }
 
-                //STAGE2 - this needs to be finished on the event thread
-                runDoInEventThread(task);
+            Hedge h = hedge;
+            if ( h != null && ! h.attemptFinished(task, backgroundError)) {
+                return; //the hedged attempt won, or is still running after this attempt failed
+            }
 
-                if ( task.isCancelled() ) {
-                    setExecutionState(Task.ExecutionState.CANCELLED);
-                    TaskListenerSupport.fireCancelled(task.getTaskListeners(), task);
-                } else {
-                    setExecutionState(Task.ExecutionState.SUCCESS);
-                    TaskListenerSupport.fireSuccess(task.getTaskListeners(), task);                    
+            //STAGE2 - this needs to be finished on the event thread
+            //doInEventThread and all the end state callbacks are delivered as a single unit of work for the event thread
+            if ( ! completeWhenChildrenFinished(backgroundError)) {
+                TaskListenerSupport.executeSynchronouslyOnEventThread(task, new CompletionRunnable(backgroundError));
+            }
+        }
+
+        private void startHedgeTimer() {
+            long delay = getHedgeDelayNanos();
+            if ( delay != -1 && task instanceof InterruptibleTask) {
+                Hedge h = new Hedge();
+                hedge = h;
+                h.timer = CommandSchedule.scheduler.schedule(h, delay, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * If the task has child tasks, the task is completed once they have all finished, rather than blocking
+         * the background thread to wait for them. If the background stage failed, the children are cancelled
+         *
+         * @return false if the task has no unfinished children, in which case the caller must complete the task
+         */
+        private boolean completeWhenChildrenFinished(Throwable backgroundError) {
+            return completeWhenChildrenFinished(new CompletionRunnable(backgroundError));
+        }
+
+        private boolean completeWhenChildrenFinished(final CompletionRunnable completion) {
+            TaskGroup children = task.getChildTaskGroup();
+            if ( children == null ) {
+                return false;
+            }
+
+            if ( completion.backgroundError != null ) {
+                children.cancelAll();
+            }
+            return children.runWhenEmpty(new Runnable() {
+                public void run() {
+                    TaskListenerSupport.executeAsynchronouslyIfBackgroundThread(task, completion);
+                }
+            });
+        }
+
+        //the executor thread is released once the operation has been started, rather than waiting for it to complete
+        private void startAsyncBackgroundProcessing() {
+            Task previousStageTask = enterBackgroundStage(task);
+            try {
+                synchronized (memorySync) {
+                    //STAGE1  - started in the current swingcommand processing thread, completes in any thread
+                    ((AsyncTask) task).startBackgroundProcessing(new AsyncTask.BackgroundCompletionCallback() {
+                        public void backgroundCompleted(Throwable backgroundError) {
+                            //STAGE2 - queued for the event thread, so that the thread which completed the operation is not blocked
+                            if ( ! completeWhenChildrenFinished(backgroundError)) {
+                                TaskListenerSupport.executeAsynchronouslyIfBackgroundThread(task, new CompletionRunnable(backgroundError));
+                            }
+                        }
+                    });
                 }
-            } catch (Throwable t ) {
-                setTaskException(t);
-                setExecutionState(Task.ExecutionState.ERROR);
-                TaskListenerSupport.fireError(task.getTaskListeners(), task, t);
             } finally {
-                TaskListenerSupport.fireFinished(task.getTaskListeners(), task);
+                exitBackgroundStage(previousStageTask);
             }
         }
 
@@ -323,35 +1362,347 @@ public abstract class SwingCommand<P,E> {
             }
         }
 
-        private void setExecutionState(final Task.ExecutionState newState) {
-            TaskListenerSupport.executeSynchronouslyOnEventThread(new Runnable(){
-                public void run() {
-                    task.setExecutionState(newState);
+        class CompletionRunnable implements Runnable {
+
+            private final Throwable backgroundError;
+            private final Task<P,E> eventThreadTask;
+            private final Object eventThreadMemorySync;
+
+            public CompletionRunnable(Throwable backgroundError) {
+                this(backgroundError, task, memorySync);
+            }
+
+            /**
+             * @param eventThreadTask, the task whose doInEventThread() is called, which may be a hedged attempt
+             * rather than the task whose state is changed and whose listeners are notified
+             */
+            public CompletionRunnable(Throwable backgroundError, Task<P,E> eventThreadTask, Object eventThreadMemorySync) {
+                this.backgroundError = backgroundError;
+                this.eventThreadTask = eventThreadTask;
+                this.eventThreadMemorySync = eventThreadMemorySync;
+            }
+
+            //this try block makes sure we always call end up calling fireFinished
+            public void run() {
+                try {
+                    //a task cancelled after its hedged attempt won completes as cancelled, without the attempt's result
+                    boolean cancelledAfterHedge = eventThreadTask != task && task.isCancelled();
+                    Throwable error = backgroundError;
+                    if ( error == null && ! cancelledAfterHedge ) {
+                        error = runDoInEventThread();
+                    }
+
+                    if ( measurement != null ) {
+                        TaskResourceUsage usage = measurement.getUsage();
+                        task.setResourceUsage(usage);
+                        ResourceAccounting.addToAggregate(SwingCommand.this.getClass(), usage);
+                    }
+
+                    if ( error != null ) {
+                        setTaskException(error);
+                        task.setExecutionState(Task.ExecutionState.ERROR);
+                        TaskListenerSupport.fireError(task.getTaskListeners(), task, error);
+                    } else if ( cancelledAfterHedge || eventThreadTask.isCancelled() ) {
+                        task.setExecutionState(Task.ExecutionState.CANCELLED);
+                        TaskListenerSupport.fireCancelled(task.getTaskListeners(), task);
+                    } else {
+                        task.setExecutionState(Task.ExecutionState.SUCCESS);
+                        TaskListenerSupport.fireSuccess(task.getTaskListeners(), task);
+                    }
+                } finally {
+                    TaskListenerSupport.fireFinished(task.getTaskListeners(), task);
+                    finishFlightRecording();
+                    TaskRegistry.taskFinished(task);
+                    task.releaseResources();
+                    releaseAdmission();
                 }
-            });
+            }
+
+            private Throwable runDoInEventThread() {
+                synchronized (eventThreadMemorySync) {  //make sure the event thread sees the latest state
+                    if ( measurement != null ) {
+                        measurement.startStage();
+                    }
+                    TaskFlightRecorder.Recording recording = task.getFlightRecording();
+                    TaskFlightRecorder.Span eventThreadSpan = recording == null ? null : recording.beginEventThreadStage();
+                    try {
+                        eventThreadTask.doInEventThread();
+                        if ( eventThreadTask != task ) {
+                            ((InterruptibleTask<P,E>)task).copyResultFromHedgedAttempt((InterruptibleTask<P,E>)eventThreadTask);
+                        }
+                        return null;
+                    } catch (Throwable e) {
+                        return new SwingCommandException("Failed while invoking doInEventThread() on " + eventThreadTask.getClass().getName(), e);
+                    } finally {
+                        if ( measurement != null ) {
+                            measurement.endEventThreadStage();
+                        }
+                        if ( eventThreadSpan != null ) {
+                            eventThreadSpan.end();
+                        }
+                    }
+                }
+            }
         }
 
-        private void runDoInEventThread(final Task task) throws Exception {
-            class DoAfterExecuteRunnable implements Runnable {
-                volatile Throwable throwable;
+        /**
+         * Races a second attempt against the task, if the task's background stage is still running when the timer fires
+         */
+        class Hedge implements Runnable {
+            private volatile ScheduledFuture<?> timer;
+            private final Object attemptMemorySync = new Object();
+
+            //guarded by this
+            private Task<P,E> hedgedAttempt;
+            private Task<P,E> winner;
+            private int attempts = 1, finishedAttempts;
+
+            //called by the timer, the attempt is run on a hedge thread so that the shared timer thread is not held
+            public void run() {
+                synchronized (this) {
+                    if ( finishedAttempts > 0 ) {
+                        return;
+                    }
+                }
+                HEDGE_EXECUTOR.execute(new Runnable() {
+                    public void run() {
+                        runHedgedAttempt();
+                    }
+                });
+            }
 
-                public void run() {
-                    synchronized (memorySync) {  //make sure the event thread sees the latest state
-                        try {
-                            task.doInEventThread();
-                        } catch (Throwable e) {
-                            throwable = e;
-                        }
+            private void runHedgedAttempt() {
+                final Task<P,E> attempt = doCreateTask();
+                if ( ! (attempt instanceof InterruptibleTask)) {
+                    return;
+                }
+                if ( task.getParameters() != null ) {
+                    attempt.setParameters(task.getParameters());
+                }
+                attempt.setPriority(task.getPriority());
+                synchronized (this) {
+                    if ( finishedAttempts > 0 ) {
+                        return;
+                    }
+                    hedgedAttempt = attempt;
+                    attempts++;
+                }
+                hedgedAttemptCount.incrementAndGet();
+
+                //if the task is cancelled, the attempt is cancelled too
+                Runnable attemptCancellation = new Runnable() {
+                    public void run() {
+                        ((InterruptibleTask)attempt).cancel();
+                    }
+                };
+                CancellationToken token = ((InterruptibleTask)task).getCancellationToken();
+                token.addCancellationCallback(attemptCancellation);
+
+                Throwable backgroundError = null;
+                long startNanos = System.nanoTime();
+                //tasks executed by the attempt are children of the hedged task, which waits for them to finish
+                Task previousStageTask = enterBackgroundStage(task);
+                try {
+                    synchronized (attemptMemorySync) {
+                        ((InterruptibleTask) attempt).doBackgroundProcessing();
+                    }
+                } catch (Throwable t) {
+                    backgroundError = t;
+                } finally {
+                    exitBackgroundStage(previousStageTask);
+                    token.removeCancellationCallback(attemptCancellation);
+                }
+                recordBackgroundLatency(attempt, startNanos, backgroundError);
+
+                if ( attemptFinished(attempt, backgroundError)) {
+                    hedgeWinCount.incrementAndGet();
+                    CompletionRunnable completion = new CompletionRunnable(backgroundError, attempt, attemptMemorySync);
+                    if ( ! completeWhenChildrenFinished(completion)) {
+                        TaskListenerSupport.executeSynchronouslyOnEventThread(task, completion);
                     }
                 }
             }
-            DoAfterExecuteRunnable doAfterExecuteRunnable = new DoAfterExecuteRunnable();
-            TaskListenerSupport.executeSynchronouslyOnEventThread(doAfterExecuteRunnable);
-            if (doAfterExecuteRunnable.throwable != null) {
-                throw new SwingCommandException("Failed while invoking doInEventThread() on " + getClass().getName(), doAfterExecuteRunnable.throwable);
+
+            /**
+             * @return true if this attempt has won, in which case the other attempt is cancelled and the caller
+             * must complete the task
+             */
+            public boolean attemptFinished(Task<P,E> attempt, Throwable backgroundError) {
+                Task<P,E> loser;
+                synchronized (this) {
+                    finishedAttempts++;
+                    if ( winner != null || (backgroundError != null && finishedAttempts < attempts)) {
+                        return false;
+                    }
+                    winner = attempt;
+                    loser = attempt == task ? hedgedAttempt : task;
+                }
+
+                ScheduledFuture<?> t = timer;
+                if ( t != null ) {
+                    t.cancel(false);
+                }
+                if ( loser == task ) {
+                    //stopped without being cancelled, since the execution succeeds with the attempt's result
+                    ((InterruptibleTask)task).abandon();
+                } else if ( loser != null ) {
+                    ((InterruptibleTask)loser).cancel();
+                }
+                return true;
             }
         }
+    }
+
+    /**
+     * Runs the background stage of a prefetched task, at low thread priority until it is promoted
+     */
+    class Prefetch implements Runnable {
+        private final Object key;
+        private final Task<P,E> task;
+        private volatile ScheduledFuture<?> expiry;
+        private volatile Thread backgroundThread;
+
+        //guarded by this
+        private boolean backgroundFinished, discarded;
+        private Throwable backgroundError;
+        private ExecutionManager promotedManager;
+
+        public Prefetch(Object key, Task<P,E> task) {
+            this.key = key;
+            this.task = task;
+        }
 
+        public void run() {
+            Thread thread = Thread.currentThread();
+            int originalPriority = thread.getPriority();
+            synchronized (this) {
+                if ( discarded ) {
+                    return;
+                }
+                backgroundThread = thread;
+                if ( promotedManager == null ) {
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                }
+            }
+
+            Throwable error = null;
+            Task previousStageTask = enterBackgroundStage(task);
+            try {
+                ((BackgroundTask) task).doBackgroundProcessing();
+            } catch (Throwable t) {
+                error = t;
+            } finally {
+                exitBackgroundStage(previousStageTask);
+                backgroundThread = null;
+                thread.setPriority(originalPriority);
+            }
+
+            ExecutionManager manager;
+            synchronized (this) {
+                backgroundFinished = true;
+                backgroundError = error;
+                manager = promotedManager;
+            }
+            if ( manager != null ) {
+                manager.completePrefetched(error);
+            }
+        }
+
+        public void promote(ExecutionManager manager) {
+            Throwable error;
+            synchronized (this) {
+                promotedManager = manager;
+                if ( ! backgroundFinished ) {
+                    Thread thread = backgroundThread;
+                    if ( thread != null ) {
+                        thread.setPriority(Thread.NORM_PRIORITY);
+                    }
+                    return; //completed by the background thread when it finishes
+                }
+                error = backgroundError;
+            }
+            manager.completePrefetched(error);
+        }
+
+        //the executor would not run the background stage. If the task has already been promoted it fails with the
+        //rejection, otherwise the prefetch is discarded
+        public void rejected(RuntimeException e) {
+            ExecutionManager manager;
+            synchronized (this) {
+                backgroundFinished = true;
+                backgroundError = e;
+                manager = promotedManager;
+            }
+            if ( manager != null ) {
+                manager.completePrefetched(e);
+            } else {
+                discard();
+            }
+        }
+
+        //the prefetch is published before its expiry is scheduled, so it may be used or discarded before there is
+        //an expiry to cancel. An expiry which fires after that finds the prefetch already removed, and does nothing
+        public void cancelExpiry() {
+            ScheduledFuture<?> scheduledExpiry = expiry;
+            if ( scheduledExpiry != null ) {
+                scheduledExpiry.cancel(false);
+            }
+        }
+
+        public void discard() {
+            synchronized (this) {
+                if ( promotedManager != null || discarded ) {
+                    return;
+                }
+                discarded = true;
+            }
+            cancelExpiry();
+            task.cancel();
+            discardedPrefetchCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Stands in for a task which was not created because the execution was rejected
+     */
+    private class RejectedTask extends Task<P,E> {
+        protected void doInEventThread() throws Exception {
+        }
+
+        //a placeholder for a rejected execution moves straight from PENDING to ERROR without being started
+        boolean canMoveTo(Task.ExecutionState currentState, Task.ExecutionState newState) {
+            return super.canMoveTo(currentState, newState) ||
+                (currentState == Task.ExecutionState.PENDING && newState == Task.ExecutionState.ERROR);
+        }
+
+        public String toString() {
+            return "Rejected " + SwingCommand.this.getClass().getName() + " task";
+        }
+    }
+
+    private boolean drainClearedListenerQueue() {
+        boolean cleared = false;
+        while ( clearedListeners.poll() != null) {
+            cleared = true;
+        }
+        return cleared;
+    }
+
+    /**
+     * Holds a registered listener either strongly, or weakly if a reference queue is supplied
+     */
+    private static class ListenerReference<E> {
+        private final TaskListener<? super E> listener;
+        private final WeakReference<TaskListener<? super E>> weakListener;
+
+        public ListenerReference(TaskListener<? super E> listener, ReferenceQueue<Object> referenceQueue) {
+            this.listener = referenceQueue == null ? listener : null;
+            this.weakListener = referenceQueue == null ? null : new WeakReference<TaskListener<? super E>>(listener, referenceQueue);
+        }
+
+        public TaskListener<? super E> get() {
+            return weakListener == null ? listener : weakListener.get();
+        }
     }
 
     static class SwingCommandRuntimeException extends RuntimeException {
@@ -16,8 +16,12 @@
 
 package swingcommand;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Created by IntelliJ IDEA.
@@ -29,13 +33,32 @@ import java.util.concurrent.CopyOnWriteArrayList;
  *
  * Tasks which do not need to run in the background should extend this class directly.
  * Tasks which have some background processing to perform in a subthread should extend BackgroundTask instead
+ *
+ * The execution state only moves forward, NOT_RUN -> PENDING -> STARTED -> SUCCESS, ERROR or CANCELLED
+ * (a task cancelled while still queued may also move straight from PENDING to CANCELLED, and a task rejected by
+ * admission control from PENDING to ERROR). Each transition is
+ * made by compare and set, so it may be made from any thread, and an illegal transition is never possible.
  */
 public abstract class Task<P,E> {
 
+    private static final AtomicReferenceFieldUpdater<Task, ExecutionState> executionStateUpdater =
+            AtomicReferenceFieldUpdater.newUpdater(Task.class, ExecutionState.class, "executionState");
+    private static final AtomicLong nextTaskId = new AtomicLong();
+
+    private final long taskId = nextTaskId.incrementAndGet();
+
     private volatile ExecutionState executionState = ExecutionState.NOT_RUN;
     private volatile Throwable executionException;
     private final CopyOnWriteArrayList<TaskListener<? super E>> taskListeners = new CopyOnWriteArrayList<TaskListener<? super E>>();
-    private P parameters;
+    private volatile P parameters;
+    private volatile boolean releaseParametersOnCompletion;
+    private volatile EventThreadScheduler.Priority priority = EventThreadScheduler.Priority.INTERACTIVE;
+    private volatile CopyOnWriteArrayList<TaskEventPublisher<E>> eventPublishers; //created lazily
+    private volatile boolean resourcesReleased;
+    private volatile TaskGroup childTasks; //created lazily, when the first child task is added
+    private volatile TaskResourceUsage resourceUsage;
+    private volatile TaskFlightRecorder.Recording flightRecording; //null unless flight recorder events are enabled
+    private volatile TaskRegistry.Entry registryEntry; //null unless the TaskRegistry is enabled
 
     protected abstract void doInEventThread() throws Exception;
 
@@ -57,6 +80,13 @@ public abstract class Task<P,E> {
         return false;
     }
 
+    /**
+     * @return an id unique to this task instance within the JVM, which identifies the task in flight recorder events
+     */
+    public long getTaskId() {
+        return taskId;
+    }
+
     public void setParameters(P parameters) {
         this.parameters = parameters;
     }
@@ -65,8 +95,40 @@ public abstract class Task<P,E> {
         return parameters;
     }
 
-    public void setExecutionState(ExecutionState executionState) {
-        this.executionState = executionState;
+    /**
+     * @param releaseParametersOnCompletion if true, the reference to the parameters is dropped once the task has
+     * finished, so that a task handle kept after completion (e.g. in a history list) does not retain them.
+     * getParameters() will then return null
+     */
+    public void setReleaseParametersOnCompletion(boolean releaseParametersOnCompletion) {
+        this.releaseParametersOnCompletion = releaseParametersOnCompletion;
+    }
+
+    public boolean isReleaseParametersOnCompletion() {
+        return releaseParametersOnCompletion;
+    }
+
+    /**
+     * Move the task into a new execution state. Only SwingCommand moves a task between states
+     * @throws IllegalStateException if the task cannot move from its current state to the new state
+     */
+    void setExecutionState(ExecutionState newState) {
+        while (true) {
+            ExecutionState currentState = executionState;
+            if ( ! canMoveTo(currentState, newState)) {
+                throw new IllegalStateException("Task " + this + " cannot move from state " + currentState + " to " + newState);
+            }
+            if ( executionStateUpdater.compareAndSet(this, currentState, newState)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if this task may move from currentState to newState
+     */
+    boolean canMoveTo(ExecutionState currentState, ExecutionState newState) {
+        return currentState.canMoveTo(newState);
     }
 
     public ExecutionState getExecutionState() {
@@ -81,6 +143,45 @@ public abstract class Task<P,E> {
         this.executionException = executionException;
     }
 
+    /**
+     * @return the CPU time and allocation of this execution, or null if it was not measured, see ResourceAccounting.
+     * This is set before the final state events are fired
+     */
+    public TaskResourceUsage getResourceUsage() {
+        return resourceUsage;
+    }
+
+    void setResourceUsage(TaskResourceUsage resourceUsage) {
+        this.resourceUsage = resourceUsage;
+    }
+
+    TaskFlightRecorder.Recording getFlightRecording() {
+        return flightRecording;
+    }
+
+    void setFlightRecording(TaskFlightRecorder.Recording flightRecording) {
+        this.flightRecording = flightRecording;
+    }
+
+    TaskRegistry.Entry getRegistryEntry() {
+        return registryEntry;
+    }
+
+    void setRegistryEntry(TaskRegistry.Entry registryEntry) {
+        this.registryEntry = registryEntry;
+    }
+
+    /**
+     * @return the priority at which this task's work on the event thread is scheduled
+     */
+    public EventThreadScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    void setPriority(EventThreadScheduler.Priority priority) {
+        this.priority = priority;
+    }
+
     public void addTaskListener(TaskListener<? super E> t) {
         synchronized (taskListeners) {
             this.taskListeners.add(t);
@@ -115,6 +216,107 @@ public abstract class Task<P,E> {
         return this.taskListeners;
     }
 
+    /**
+     * @return the child tasks of this task which have not yet finished - those executed by non-detached commands
+     * from within this task's background stage
+     */
+    public List<Task> getChildTasks() {
+        TaskGroup children = childTasks;
+        return children == null ? Collections.<Task>emptyList() : children.getActiveTasks();
+    }
+
+    TaskGroup getChildTaskGroup() {
+        return childTasks;
+    }
+
+    void addChildTask(Task child) {
+        TaskGroup children;
+        synchronized (taskListeners) {
+            children = childTasks;
+            if ( children == null ) {
+                children = new TaskGroup();
+                childTasks = children;
+                if ( this instanceof AbstractBackgroundTask) {
+                    final TaskGroup group = children;
+                    ((AbstractBackgroundTask)this).getCancellationToken().addCancellationCallback(new Runnable() {
+                        public void run() {
+                            group.cancelAll();
+                        }
+                    });
+                }
+            }
+        }
+        children.add(child);
+    }
+
+    /**
+     * @return a publisher of the lifecycle and progress events for this task, which delivers the events to its
+     * subscribers on the executor, rather than the event thread. Subscriptions complete once the task has finished
+     */
+    public TaskEventPublisher<E> createEventPublisher(Executor executor) {
+        return createEventPublisher(executor, TaskEventPublisher.DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize, the number of events buffered for a subscriber with no outstanding demand,
+     * before progress events are dropped
+     */
+    public TaskEventPublisher<E> createEventPublisher(Executor executor, int bufferSize) {
+        TaskEventPublisher<E> publisher = new TaskEventPublisher<E>(executor, bufferSize, true);
+        addEventPublisher(publisher);
+        return publisher;
+    }
+
+    void addEventPublisher(TaskEventPublisher<E> publisher) {
+        synchronized (taskListeners) {
+            if ( eventPublishers == null ) {
+                eventPublishers = new CopyOnWriteArrayList<TaskEventPublisher<E>>();
+            }
+            eventPublishers.add(publisher);
+        }
+        //the task may have finished before the publisher was added
+        if ( resourcesReleased ) {
+            publisher.taskFinished();
+        }
+    }
+
+    void publishEvent(TaskEvent.Type type, E progress, Throwable error) {
+        List<TaskEventPublisher<E>> publishers = eventPublishers;
+        if ( publishers != null ) {
+            TaskEvent<E> event = new TaskEvent<E>(type, this, progress, error);
+            for ( TaskEventPublisher<E> publisher : publishers) {
+                publisher.publish(event);
+            }
+        }
+    }
+
+    /**
+     * Called once the finished event has been delivered to the listeners, to drop references which are no longer
+     * needed, so that a task handle kept after completion retains as little as possible
+     */
+    final void releaseResources() {
+        clearTaskListeners();
+        resourcesReleased = true;
+        List<TaskEventPublisher<E>> publishers = eventPublishers;
+        if ( publishers != null ) {
+            eventPublishers = null;
+            for ( TaskEventPublisher<E> publisher : publishers) {
+                publisher.taskFinished();
+            }
+        }
+        if ( releaseParametersOnCompletion ) {
+            parameters = null;
+        }
+        doReleaseResources();
+    }
+
+    /**
+     * Subclasses may override this method to drop references to internal state once the task has finished
+     * This is called on the event thread, after the finished event has been delivered
+     */
+    protected void doReleaseResources() {
+    }
+
     /**
      * Fire progress event to taskListener instances
      * Event will be received on the Swing event thread
@@ -122,6 +324,7 @@ public abstract class Task<P,E> {
      * @param progress, objects containing a description of the progress made
      */
     protected void fireProgress(E progress) {
+        TaskRegistry.taskProgress(this, progress);
         TaskListenerSupport.fireProgress(taskListeners, this, progress);
     }
 
@@ -137,5 +340,21 @@ public abstract class Task<P,E> {
         public boolean isFinalState() {
             return this == SUCCESS || this == ERROR || this == CANCELLED;
         }
+
+        /**
+         * @return true if a task in this state may move to newState
+         */
+        public boolean canMoveTo(ExecutionState newState) {
+            switch (this) {
+                case NOT_RUN:
+                    return newState == PENDING;
+                case PENDING:
+                    return newState == STARTED || newState == CANCELLED;
+                case STARTED:
+                    return newState.isFinalState();
+                default:
+                    return false;
+            }
+        }
     }
 }
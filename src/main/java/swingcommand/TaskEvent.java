@@ -0,0 +1,82 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A lifecycle or progress event for a Task, as published by a TaskEventPublisher
+ *
+ * <E> - the type of progress object for the task
+ */
+public class TaskEvent<E> {
+
+    private final Type type;
+    private final Task task;
+    private final E progress;
+    private final Throwable error;
+
+    public TaskEvent(Type type, Task task, E progress, Throwable error) {
+        this.type = type;
+        this.task = task;
+        this.progress = progress;
+        this.error = error;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public Task getTask() {
+        return task;
+    }
+
+    /**
+     * @return the progress, for a PROGRESS event, otherwise null
+     */
+    public E getProgress() {
+        return progress;
+    }
+
+    /**
+     * @return the error, for an ERROR event, otherwise null
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    public String toString() {
+        return "TaskEvent{" + type + ", " + task + (progress != null ? ", " + progress : "") + (error != null ? ", " + error : "") + "}";
+    }
+
+    public static enum Type {
+        PENDING,
+        STARTED,
+        PROGRESS,
+        SUCCESS,
+        ERROR,
+        CANCELLED,
+        FINISHED;
+
+        /**
+         * @return true for the events which mark a change in the task's execution state, rather than progress
+         */
+        public boolean isLifecycleEvent() {
+            return this != PROGRESS;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A Flow.Publisher of the lifecycle and progress events for a Task, or for all the Tasks of a SwingCommand.
+ * See Task.createEventPublisher() and SwingCommand.createEventPublisher()
+ *
+ * Unlike a TaskListener, subscribers do not receive events on the event thread. Events are handed to each
+ * subscription as they are fired, without going through the event thread, and delivered to the subscriber on
+ * the executor chosen when the publisher was created. Delivery is serial for each subscriber and respects
+ * the demand signalled through Subscription.request().
+ *
+ * Each subscription buffers up to bufferSize events while it has no outstanding demand. Once its buffer is full,
+ * further progress events are dropped (see getDroppedEventCount()) so that a slow subscriber cannot cause
+ * unbounded queuing of a high volume progress stream. Lifecycle events are never dropped - a lifecycle event which
+ * arrives when the buffer is full takes the place of the oldest buffered progress event. If the buffer is full of
+ * lifecycle events, e.g. because a subscriber to a SwingCommand's publisher has stopped requesting while many tasks
+ * run, the subscription is cancelled and the subscriber receives onError() with an IllegalStateException.
+ *
+ * A publisher created for a Task completes its subscriptions once the task has finished. A publisher created
+ * for a SwingCommand receives the events for every task executed after it was created, until it is removed with
+ * SwingCommand.removeEventPublisher(), which completes its subscriptions once they have received the events
+ * already published.
+ */
+public class TaskEventPublisher<E> implements Flow.Publisher<TaskEvent<E>> {
+
+    public static final int DEFAULT_BUFFER_SIZE = 256;
+
+    private final Executor executor;
+    private final int bufferSize;
+    private final boolean completeWhenTaskFinished;
+    private final CopyOnWriteArrayList<EventSubscription> subscriptions = new CopyOnWriteArrayList<EventSubscription>();
+    private final AtomicLong droppedEventCount = new AtomicLong();
+    private volatile boolean completed;
+
+    TaskEventPublisher(Executor executor, int bufferSize, boolean completeWhenTaskFinished) {
+        if ( bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize must be at least 1");
+        }
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.completeWhenTaskFinished = completeWhenTaskFinished;
+    }
+
+    public void subscribe(Flow.Subscriber<? super TaskEvent<E>> subscriber) {
+        if ( subscriber == null ) {
+            throw new NullPointerException("subscriber");
+        }
+        EventSubscription subscription = new EventSubscription(subscriber);
+        subscriptions.add(subscription);
+        //if we completed while the subscription was being added it may have missed the completion
+        if ( completed ) {
+            subscription.complete();
+        }
+        subscription.signal();
+    }
+
+    /**
+     * @return the number of progress events dropped across all subscriptions because a subscriber's buffer was full
+     */
+    public long getDroppedEventCount() {
+        return droppedEventCount.get();
+    }
+
+    /**
+     * @return the number of subscriptions which are neither cancelled nor completed
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    void publish(TaskEvent<E> event) {
+        for ( EventSubscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /**
+     * Called once the task has finished and the FINISHED event has been published
+     */
+    void taskFinished() {
+        if ( completeWhenTaskFinished ) {
+            complete();
+        }
+    }
+
+    void complete() {
+        completed = true;
+        for ( EventSubscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /**
+     * Buffers the events for a single subscriber, and delivers them on the executor.
+     * The work in progress counter makes sure only one delivery runnable is ever running or queued for a subscriber
+     */
+    private class EventSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super TaskEvent<E>> subscriber;
+        private final LinkedList<TaskEvent<E>> buffer = new LinkedList<TaskEvent<E>>(); //guarded by this
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger workInProgress = new AtomicInteger();
+        private boolean subscribed; //only accessed by the delivery runnable
+        private volatile boolean cancelled, completeRequested;
+        private volatile Throwable failure; //delivered to the subscriber in place of any further events
+
+        public EventSubscription(Flow.Subscriber<? super TaskEvent<E>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        public void offer(TaskEvent<E> event) {
+            if ( cancelled || completeRequested || failure != null ) {
+                return;
+            }
+            synchronized (this) {
+                //events which are covered by demand are waiting for the drain rather than buffered
+                if ( buffer.size() - demand.get() >= bufferSize ) {
+                    if ( ! event.getType().isLifecycleEvent()) {
+                        droppedEventCount.incrementAndGet();
+                        return;
+                    } else if ( removeOldestProgressEvent()) {
+                        droppedEventCount.incrementAndGet();
+                        buffer.add(event);
+                    } else {
+                        failure = new IllegalStateException(
+                            "Subscriber fell more than " + bufferSize + " lifecycle events behind, subscription cancelled"
+                        );
+                    }
+                } else {
+                    buffer.add(event);
+                }
+            }
+            signal();
+        }
+
+        //should be called holding the lock
+        private boolean removeOldestProgressEvent() {
+            for ( Iterator<TaskEvent<E>> i = buffer.iterator(); i.hasNext(); ) {
+                if ( ! i.next().getType().isLifecycleEvent()) {
+                    i.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public void complete() {
+            completeRequested = true;
+            signal();
+        }
+
+        public void request(long n) {
+            if ( n <= 0 ) {
+                failure = new IllegalArgumentException("Subscription.request() called with " + n + ", demand must be positive");
+            } else {
+                long current, updated;
+                do {
+                    current = demand.get();
+                    updated = current + n;
+                    if ( updated < 0 ) {
+                        updated = Long.MAX_VALUE; //treat an overflow as unbounded demand
+                    }
+                } while ( ! demand.compareAndSet(current, updated));
+            }
+            signal();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+            synchronized (this) {
+                buffer.clear();
+            }
+        }
+
+        public void signal() {
+            if ( workInProgress.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    //e.g. the executor rejected the delivery, in which case this subscription can receive no more events
+                    cancel();
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        public void run() {
+            int missed = 1;
+            do {
+                deliver();
+                missed = workInProgress.addAndGet(-missed);
+            } while ( missed != 0 );
+        }
+
+        private void deliver() {
+            if ( ! subscribed ) {
+                subscribed = true;
+                if ( ! runSafely(new Runnable() {
+                    public void run() {
+                        subscriber.onSubscribe(EventSubscription.this);
+                    }
+                })) {
+                    return;
+                }
+            }
+
+            while ( ! cancelled ) {
+                if ( failure != null ) {
+                    final Throwable error = failure;
+                    cancel();
+                    runSafely(new Runnable() {
+                        public void run() {
+                            subscriber.onError(error);
+                        }
+                    });
+                    return;
+                }
+
+                final TaskEvent<E> event;
+                synchronized (this) {
+                    event = demand.get() > 0 ? buffer.poll() : null;
+                }
+
+                if ( event != null ) {
+                    if ( demand.get() != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    runSafely(new Runnable() {
+                        public void run() {
+                            subscriber.onNext(event);
+                        }
+                    });
+                } else {
+                    if ( completeRequested && isBufferEmpty()) {
+                        cancel();
+                        runSafely(new Runnable() {
+                            public void run() {
+                                subscriber.onComplete();
+                            }
+                        });
+                    }
+                    return;
+                }
+            }
+        }
+
+        private synchronized boolean isBufferEmpty() {
+            return buffer.isEmpty();
+        }
+
+        //a subscriber which throws is cancelled, it can receive no more events
+        private boolean runSafely(Runnable r) {
+            try {
+                r.run();
+                return true;
+            } catch (Throwable t) {
+                cancel();
+                t.printStackTrace();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * Emits JDK Flight Recorder events for the task lifecycle, so that UI stalls can be correlated with GC and I/O
+ * in JDK Mission Control. The events are in the SwingCommand category:
+ *
+ * swingcommand.PendingWait - from PENDING until the task is started by its executor
+ * swingcommand.BackgroundStage - the background stage
+ * swingcommand.EventThreadStage - doInEventThread()
+ * swingcommand.ListenerCallback - each callback to a TaskListener
+ * swingcommand.Cancellation - from the request to cancel until the task finished
+ * swingcommand.CompositeChild - the execution of each child command of a CompositeCommandTask
+ * swingcommand.TaskFinished - the final state of the task, committed once it has finished
+ *
+ * Each event carries the command class and task id. Each span is committed as it ends, on the thread which ran it,
+ * so that Mission Control shows it on the right thread. Since the final state is only known once the task has
+ * finished, it is recorded by the TaskFinished event, which can be joined to the others on the task id.
+ *
+ * The events are disabled by default, even in a recording started with the default settings. Enable them in a
+ * .jfc file, or e.g. with jcmd PID JFR.start settings=swingcommand.jfc. While no event is enabled, no recording is
+ * created for a task, and the cost is a check of the enabled state of each event type when a task is executed.
+ */
+final class TaskFlightRecorder {
+
+    private static final boolean jfrAvailable = isJfrAvailable();
+
+    private TaskFlightRecorder() {
+    }
+
+    /**
+     * @return a recording for this execution, or null if no swingcommand event is enabled
+     */
+    static Recording startRecording(SwingCommand command, Task task) {
+        return jfrAvailable && Events.isAnyEnabled() ? new Recording(command.getClass().getName(), task.getTaskId()) : null;
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    /**
+     * A span of time within the task's execution, which is ended, and committed, by the thread which began it
+     */
+    interface Span {
+        void end();
+    }
+
+    /**
+     * The events for one execution of a task
+     */
+    static final class Recording {
+        private final String commandClass;
+        private final long taskId;
+        private volatile Events.PendingWaitEvent pendingWait;
+        private volatile Events.CancellationEvent cancellation;
+
+        Recording(String commandClass, long taskId) {
+            this.commandClass = commandClass;
+            this.taskId = taskId;
+        }
+
+        void pending() {
+            Events.PendingWaitEvent event = new Events.PendingWaitEvent();
+            event.begin();
+            pendingWait = event;
+        }
+
+        void started() {
+            Events.PendingWaitEvent event = pendingWait;
+            if ( event != null ) {
+                pendingWait = null;
+                event.end();
+                commit(event);
+            }
+        }
+
+        Span beginBackgroundStage() {
+            return begin(new Events.BackgroundStageEvent());
+        }
+
+        Span beginEventThreadStage() {
+            return begin(new Events.EventThreadStageEvent());
+        }
+
+        Span beginListenerCallback(String callback, Object listener) {
+            Events.ListenerCallbackEvent event = new Events.ListenerCallbackEvent();
+            event.callback = callback;
+            event.listenerClass = listener.getClass().getName();
+            return begin(event);
+        }
+
+        Span beginCompositeChild(SwingCommand childCommand, int childIndex) {
+            Events.CompositeChildEvent event = new Events.CompositeChildEvent();
+            event.childCommandClass = childCommand.getClass().getName();
+            event.childIndex = childIndex;
+            return begin(event);
+        }
+
+        void setCompositeChildTask(Span compositeChildSpan, Task childTask) {
+            if ( childTask != null ) {
+                ((Events.CompositeChildEvent)((EventSpan)compositeChildSpan).event).childTaskId = childTask.getTaskId();
+            }
+        }
+
+        void cancellationRequested() {
+            Events.CancellationEvent event = new Events.CancellationEvent();
+            event.begin();
+            cancellation = event;
+        }
+
+        void taskFinished(Task.ExecutionState finalState) {
+            Events.CancellationEvent cancelled = cancellation;
+            if ( cancelled != null ) {
+                cancelled.end();
+                commit(cancelled);
+            }
+
+            Events.TaskFinishedEvent finished = new Events.TaskFinishedEvent();
+            finished.finalState = finalState.name();
+            commit(finished);
+        }
+
+        private Span begin(Events.TaskLifecycleEvent event) {
+            event.begin();
+            return new EventSpan(event);
+        }
+
+        private void commit(Events.TaskLifecycleEvent event) {
+            event.commandClass = commandClass;
+            event.taskId = taskId;
+            event.commit();
+        }
+
+        private class EventSpan implements Span {
+            private final Events.TaskLifecycleEvent event;
+
+            public EventSpan(Events.TaskLifecycleEvent event) {
+                this.event = event;
+            }
+
+            public void end() {
+                event.end();
+                commit(event);
+            }
+        }
+    }
+
+    /**
+     * The event classes, which are only loaded if the jdk.jfr module is present
+     */
+    static final class Events {
+
+        private static final EventType[] eventTypes = new EventType[] {
+            EventType.getEventType(PendingWaitEvent.class),
+            EventType.getEventType(BackgroundStageEvent.class),
+            EventType.getEventType(EventThreadStageEvent.class),
+            EventType.getEventType(ListenerCallbackEvent.class),
+            EventType.getEventType(CancellationEvent.class),
+            EventType.getEventType(CompositeChildEvent.class),
+            EventType.getEventType(TaskFinishedEvent.class)
+        };
+
+        static boolean isAnyEnabled() {
+            for ( EventType eventType : eventTypes) {
+                if ( eventType.isEnabled()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Category("SwingCommand")
+        @StackTrace(false)
+        @Enabled(false)
+        abstract static class TaskLifecycleEvent extends Event {
+            @Label("Command Class")
+            String commandClass;
+
+            @Label("Task Id")
+            long taskId;
+        }
+
+        @Name("swingcommand.PendingWait")
+        @Label("Pending Wait")
+        @Description("From PENDING until the task is started by its executor")
+        static final class PendingWaitEvent extends TaskLifecycleEvent {
+        }
+
+        @Name("swingcommand.BackgroundStage")
+        @Label("Background Stage")
+        static final class BackgroundStageEvent extends TaskLifecycleEvent {
+        }
+
+        @Name("swingcommand.EventThreadStage")
+        @Label("Event Thread Stage")
+        @Description("The call to doInEventThread()")
+        static final class EventThreadStageEvent extends TaskLifecycleEvent {
+        }
+
+        @Name("swingcommand.ListenerCallback")
+        @Label("Listener Callback")
+        static final class ListenerCallbackEvent extends TaskLifecycleEvent {
+            @Label("Callback")
+            String callback;
+
+            @Label("Listener Class")
+            String listenerClass;
+        }
+
+        @Name("swingcommand.Cancellation")
+        @Label("Cancellation")
+        @Description("From the request to cancel until the task finished")
+        static final class CancellationEvent extends TaskLifecycleEvent {
+        }
+
+        @Name("swingcommand.CompositeChild")
+        @Label("Composite Child")
+        @Description("The execution of a child command of a CompositeCommandTask")
+        static final class CompositeChildEvent extends TaskLifecycleEvent {
+            @Label("Child Command Class")
+            String childCommandClass;
+
+            @Label("Child Index")
+            int childIndex;
+
+            @Label("Child Task Id")
+            long childTaskId;
+        }
+
+        @Name("swingcommand.TaskFinished")
+        @Label("Task Finished")
+        @Description("The final state of a task")
+        static final class TaskFinishedEvent extends TaskLifecycleEvent {
+            @Label("Final State")
+            String finalState;
+        }
+    }
+}
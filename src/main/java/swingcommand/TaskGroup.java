@@ -0,0 +1,250 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A group of tasks which can be cancelled together, for example all the tasks started by a dialog.
+ *
+ * Commands are executed into the group with execute(), and each task stays a member of the group until it has
+ * finished. cancelAll() cancels every member which has not yet finished. A group may be bound to a component,
+ * so that its tasks are cancelled when the component is removed from a displayed hierarchy (which includes
+ * its window being disposed), or to a window, so that they are cancelled when the window is closed.
+ *
+ * A group creates no threads, and holds no references to its tasks once they have finished, so it is cheap
+ * to create one per dialog.
+ */
+public class TaskGroup {
+
+    private final Map<Task, Object> members = new IdentityHashMap<Task, Object>(); //guarded by this
+    private List<Runnable> emptyCallbacks; //created lazily, guarded by this
+
+    public <P,E> Task<P,E> execute(SwingCommand<P,E> command) {
+        return execute(command, null, null);
+    }
+
+    public <P,E> Task<P,E> execute(SwingCommand<P,E> command, P parameters) {
+        return execute(command, parameters, null);
+    }
+
+    /**
+     * Execute the command, adding the new task to this group until it finishes
+     */
+    public <P,E> Task<P,E> execute(SwingCommand<P,E> command, P parameters, TaskListener<? super E> taskListener) {
+        Task<P,E> task = command.execute(parameters, new GroupMemberListener<E>(taskListener));
+        addMember(task);
+        return task;
+    }
+
+    /**
+     * Add a task which has already been executed to this group, until it finishes
+     */
+    @SuppressWarnings("unchecked")
+    public void add(Task task) {
+        task.addTaskListener(new GroupMemberListener<Object>(null));
+        addMember(task);
+    }
+
+    //the listener which removes the task must be added first, then if the task has already finished
+    //it may have missed the finished event, so it is removed straight away
+    private void addMember(Task task) {
+        synchronized (this) {
+            members.put(task, null);
+        }
+        if ( task.getExecutionState().isFinalState()) {
+            remove(task);
+        }
+    }
+
+    /**
+     * Cancel all the tasks in the group which have not yet finished
+     */
+    public void cancelAll() {
+        for ( Task task : getActiveTasks()) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * @return a snapshot of the tasks in this group which have not yet finished
+     */
+    public synchronized List<Task> getActiveTasks() {
+        return new ArrayList<Task>(members.keySet());
+    }
+
+    public synchronized int getActiveTaskCount() {
+        return members.size();
+    }
+
+    /**
+     * Wait until every task in the group has finished, including those executed into the group while waiting.
+     * This must not be called on the event thread, since tasks cannot finish while the event thread is blocked.
+     *
+     * @return true if the group became empty, false if the timeout elapsed first
+     */
+    public synchronized boolean awaitQuiescence(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        if ( SwingUtilities.isEventDispatchThread()) {
+            throw new IllegalStateException("awaitQuiescence cannot be called on the event thread");
+        }
+        long remaining = timeUnit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while ( ! members.isEmpty() && remaining > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return members.isEmpty();
+    }
+
+    /**
+     * Cancel the tasks in this group when the component stops being displayable, when it is removed from a
+     * displayed container, or its window is disposed
+     */
+    public void cancelOnRemoval(final JComponent component) {
+        component.addHierarchyListener(new HierarchyListener() {
+            public void hierarchyChanged(HierarchyEvent e) {
+                if ( (e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0 && ! component.isDisplayable()) {
+                    cancelAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Cancel the tasks in this group when the window is closed
+     */
+    public void cancelOnWindowClose(Window window) {
+        window.addWindowListener(new WindowAdapter() {
+            public void windowClosing(WindowEvent e) {
+                cancelAll();
+            }
+
+            public void windowClosed(WindowEvent e) {
+                cancelAll();
+            }
+        });
+    }
+
+    /**
+     * Run the runnable once the group is empty, in the thread which delivers the finished event for the last member
+     *
+     * @return false if the group is already empty, in which case the runnable is not run
+     */
+    boolean runWhenEmpty(Runnable runnable) {
+        synchronized (this) {
+            if ( members.isEmpty()) {
+                return false;
+            }
+            if ( emptyCallbacks == null ) {
+                emptyCallbacks = new ArrayList<Runnable>(1);
+            }
+            emptyCallbacks.add(runnable);
+            return true;
+        }
+    }
+
+    private void remove(Task task) {
+        List<Runnable> callbacks = null;
+        synchronized (this) {
+            members.remove(task);
+            if ( members.isEmpty()) {
+                notifyAll();
+                callbacks = emptyCallbacks;
+                emptyCallbacks = null;
+            }
+        }
+
+        if ( callbacks != null ) {
+            for ( Runnable callback : callbacks) {
+                try {
+                    callback.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the task from the group when it finishes, and forwards events to the caller's listener, if any
+     */
+    private class GroupMemberListener<E> implements TaskListener<E> {
+        private final TaskListener<? super E> delegate;
+
+        public GroupMemberListener(TaskListener<? super E> delegate) {
+            this.delegate = delegate;
+        }
+
+        public void pending(Task task) {
+            if ( delegate != null ) {
+                delegate.pending(task);
+            }
+        }
+
+        public void started(Task task) {
+            if ( delegate != null ) {
+                delegate.started(task);
+            }
+        }
+
+        public void progress(Task task, E progress) {
+            if ( delegate != null ) {
+                delegate.progress(task, progress);
+            }
+        }
+
+        public void success(Task task) {
+            if ( delegate != null ) {
+                delegate.success(task);
+            }
+        }
+
+        public void error(Task task, Throwable error) {
+            if ( delegate != null ) {
+                delegate.error(task, error);
+            }
+        }
+
+        public void cancelled(Task task) {
+            if ( delegate != null ) {
+                delegate.cancelled(task);
+            }
+        }
+
+        public void finished(Task task) {
+            try {
+                if ( delegate != null ) {
+                    delegate.finished(task);
+                }
+            } finally {
+                remove(task);
+            }
+        }
+    }
+}
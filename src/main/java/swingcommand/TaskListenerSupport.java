@@ -16,125 +16,177 @@
 
 package swingcommand;
 
-import javax.swing.*;
 import java.util.List;
-import java.lang.reflect.InvocationTargetException;
 
 /**
  * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
  *
  * Support for firing events to TaskListeners
  * Listeners are always notified on the AWT event thread - even if the fire method is called on a non-swing thread.
+ *
+ * Each event is delivered to all the listeners from a single runnable, scheduled by the EventThreadScheduler
+ * at the priority of the task. An exception thrown by one listener does not prevent delivery to the others.
+ *
+ * Each event is also handed to the task's event publishers, if any, in the thread which fires it.
+ *
+ * If the task has a flight recording, each listener callback is recorded as a ListenerCallback event.
  */
 class TaskListenerSupport {
 
     //pending is fired on the event thread using invoke later to avoid blocking a background thread which calls execute()
     //on the swing event queue (this can have very bad performance effects on busy background threads)
     static <P,E> void firePending(final List<TaskListener<? super E>> listeners, final Task<P,E> task) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeAsynchronouslyIfBackgroundThread(new Runnable(){
-                public void run() {
-                    listener.pending(task);
+        task.publishEvent(TaskEvent.Type.PENDING, null, null);
+        executeAsynchronouslyIfBackgroundThread(task, new Runnable(){
+            public void run() {
+                for (TaskListener<? super E> listener : listeners) {
+                    TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "pending", listener);
+                    try {
+                        listener.pending(task);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        endListenerCallback(callbackSpan);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
     static <P,E> void fireStarted(final List<TaskListener<? super E>> listeners, final Task<P,E> task) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeSynchronouslyOnEventThread(new Runnable(){
-                public void run() {
-                    listener.started(task);
+        task.publishEvent(TaskEvent.Type.STARTED, null, null);
+        executeSynchronouslyOnEventThread(task, new Runnable(){
+            public void run() {
+                for (TaskListener<? super E> listener : listeners) {
+                    TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "started", listener);
+                    try {
+                        listener.started(task);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        endListenerCallback(callbackSpan);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
     static <P,E> void fireFinished(final List<TaskListener<? super E>> listeners, final Task<P,E> task) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeSynchronouslyOnEventThread(new Runnable(){
-                public void run() {
-                    listener.finished(task);
+        task.publishEvent(TaskEvent.Type.FINISHED, null, null);
+        executeSynchronouslyOnEventThread(task, new Runnable(){
+            public void run() {
+                for (TaskListener<? super E> listener : listeners) {
+                    TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "finished", listener);
+                    try {
+                        listener.finished(task);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        endListenerCallback(callbackSpan);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
-    static <P,E> void fireError(final List<TaskListener<? super E>> listeners, final Task<P,E> task, final Throwable t) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeSynchronouslyOnEventThread(new Runnable(){
-                public void run() {
-                    listener.error(task, t);
+    static <P,E> void fireError(final List<TaskListener<? super E>> listeners, final Task<P,E> task, final Throwable error) {
+        task.publishEvent(TaskEvent.Type.ERROR, null, error);
+        executeSynchronouslyOnEventThread(task, new Runnable(){
+            public void run() {
+                for (TaskListener<? super E> listener : listeners) {
+                    TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "error", listener);
+                    try {
+                        listener.error(task, error);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        endListenerCallback(callbackSpan);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
     static <P,E> void fireProgress(final List<TaskListener<? super E>> listeners, final Task<P,E> task, final E progress) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeAsynchronouslyIfBackgroundThread(new Runnable(){
-                public void run() {
-                    //this synchronized block is to handle the case where the event thread might not otherwise
-                    //see state changes to fields in the execution carried out in the background thread
-                    //which is calling progress, due to the memory model
-                    synchronized(this) {
-                        listener.progress(task, progress);
+        task.publishEvent(TaskEvent.Type.PROGRESS, progress, null);
+        executeAsynchronouslyIfBackgroundThread(task, new Runnable(){
+            public void run() {
+                //this synchronized block is to handle the case where the event thread might not otherwise
+                //see state changes to fields in the execution carried out in the background thread
+                //which is calling progress, due to the memory model
+                synchronized(this) {
+                    for (TaskListener<? super E> listener : listeners) {
+                        TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "progress", listener);
+                        try {
+                            listener.progress(task, progress);
+                        } catch (Throwable t) {
+                            t.printStackTrace();
+                        } finally {
+                            endListenerCallback(callbackSpan);
+                        }
                     }
                 }
-            });
-        }
+            }
+        });
     }
 
-    static <P,E> void fireCancelled(List<TaskListener<? super E>> listeners, final Task<P,E> task) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeSynchronouslyOnEventThread(new Runnable(){
-                public void run() {
-                    listener.cancelled(task);
+    static <P,E> void fireCancelled(final List<TaskListener<? super E>> listeners, final Task<P,E> task) {
+        task.publishEvent(TaskEvent.Type.CANCELLED, null, null);
+        executeSynchronouslyOnEventThread(task, new Runnable(){
+            public void run() {
+                for (TaskListener<? super E> listener : listeners) {
+                    TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "cancelled", listener);
+                    try {
+                        listener.cancelled(task);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        endListenerCallback(callbackSpan);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
-    static <P,E> void fireSuccess(List<TaskListener<? super E>> listeners, final Task<P,E> task) {
-        for (final TaskListener<? super E> listener : listeners) {
-            executeSynchronouslyOnEventThread(new Runnable(){
-                public void run() {
-                    listener.success(task);
+    static <P,E> void fireSuccess(final List<TaskListener<? super E>> listeners, final Task<P,E> task) {
+        task.publishEvent(TaskEvent.Type.SUCCESS, null, null);
+        executeSynchronouslyOnEventThread(task, new Runnable(){
+            public void run() {
+                for (TaskListener<? super E> listener : listeners) {
+                    TaskFlightRecorder.Span callbackSpan = beginListenerCallback(task, "success", listener);
+                    try {
+                        listener.success(task);
+                    } catch (Throwable t) {
+                        t.printStackTrace();
+                    } finally {
+                        endListenerCallback(callbackSpan);
+                    }
                 }
-            });
-        }
+            }
+        });
     }
 
-    static void executeSynchronouslyOnEventThread(Runnable task) {
-        if (!SwingUtilities.isEventDispatchThread()) {
-            try {
-                SwingUtilities.invokeAndWait(task);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            } catch (InvocationTargetException e) {
-                e.printStackTrace();
-            }
-        } else {
-            try {
-                task.run();
-            } catch ( Throwable t) {
-               t.printStackTrace();
-            }
+    private static TaskFlightRecorder.Span beginListenerCallback(Task task, String callback, Object listener) {
+        TaskFlightRecorder.Recording recording = task.getFlightRecording();
+        return recording == null ? null : recording.beginListenerCallback(callback, listener);
+    }
+
+    private static void endListenerCallback(TaskFlightRecorder.Span callbackSpan) {
+        if ( callbackSpan != null ) {
+            callbackSpan.end();
         }
+    }
 
+    static void executeSynchronouslyOnEventThread(Task task, Runnable runnable) {
+        EventThreadScheduler.invokeAndWait(task.getPriority(), runnable);
     }
 
-    static void executeAsynchronouslyIfBackgroundThread(Runnable task) {
-        if (!SwingUtilities.isEventDispatchThread()) {
-            SwingUtilities.invokeLater(task);
-        } else {
-            try {
-                task.run();
-            } catch ( Throwable t) {
-               t.printStackTrace();
-            }
-        }
+    static void executeAsynchronouslyIfBackgroundThread(Task task, Runnable runnable) {
+        EventThreadScheduler.invokeLater(task.getPriority(), runnable);
+    }
 
+    static void executeAsynchronouslyAfterQueuedEvents(Task task, Runnable runnable) {
+        EventThreadScheduler.invokeAfterQueued(task.getPriority(), runnable);
     }
 
 }
\ No newline at end of file
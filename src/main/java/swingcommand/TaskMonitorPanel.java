@@ -0,0 +1,244 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A panel which shows the tasks currently in flight, and the rolling throughput and latency of each command,
+ * from the TaskRegistry. The registry is enabled while the panel is displayable, so tasks executed before it was
+ * displayed are not shown, and it stops registering tasks once the last displayed monitor is removed unless it has
+ * been enabled with TaskRegistry.setEnabled().
+ *
+ * The tables are refreshed from a snapshot of the registry by a Swing Timer at a fixed rate, rather than on each
+ * task event, so the cost to the event thread does not grow with the rate at which tasks fire events. The timer runs
+ * only while the panel is displayable.
+ *
+ * Selected tasks which support cancellation may be cancelled with the cancel button.
+ */
+public class TaskMonitorPanel extends JPanel {
+
+    public static final int DEFAULT_REFRESH_MILLIS = 500;
+
+    private final InFlightTableModel inFlightModel = new InFlightTableModel();
+    private final StatisticsTableModel statisticsModel = new StatisticsTableModel();
+    private final JTable inFlightTable = new JTable(inFlightModel);
+    private final JButton cancelButton = new JButton("Cancel");
+    private final Timer refreshTimer;
+
+    public TaskMonitorPanel() {
+        this(DEFAULT_REFRESH_MILLIS);
+    }
+
+    public TaskMonitorPanel(int refreshMillis) {
+        super(new BorderLayout());
+
+        refreshTimer = new Timer(refreshMillis, new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+
+        cancelButton.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                cancelSelectedTasks();
+            }
+        });
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttonPanel.add(cancelButton);
+
+        JPanel inFlightPanel = new JPanel(new BorderLayout());
+        inFlightPanel.add(new JScrollPane(inFlightTable), BorderLayout.CENTER);
+        inFlightPanel.add(buttonPanel, BorderLayout.SOUTH);
+        inFlightPanel.setBorder(BorderFactory.createTitledBorder("In Flight"));
+
+        JScrollPane statisticsPane = new JScrollPane(new JTable(statisticsModel));
+        statisticsPane.setBorder(BorderFactory.createTitledBorder("Commands"));
+
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, inFlightPanel, statisticsPane);
+        splitPane.setResizeWeight(0.6);
+        add(splitPane, BorderLayout.CENTER);
+    }
+
+    public void addNotify() {
+        super.addNotify();
+        TaskRegistry.addMonitor();
+        refresh();
+        refreshTimer.start();
+    }
+
+    public void removeNotify() {
+        refreshTimer.stop();
+        TaskRegistry.removeMonitor();
+        super.removeNotify();
+    }
+
+    /**
+     * Replace the table contents with a new snapshot from the registry, keeping the selected tasks selected
+     */
+    void refresh() {
+        List<Task> selectedTasks = getSelectedTasks();
+        inFlightModel.setTasks(TaskRegistry.getInFlightTasks());
+        statisticsModel.setStatistics(TaskRegistry.getCommandStatistics());
+
+        for ( int row=0; row < inFlightModel.getRowCount(); row++) {
+            if ( selectedTasks.contains(inFlightModel.getTaskInfo(row).getTask())) {
+                inFlightTable.addRowSelectionInterval(row, row);
+            }
+        }
+    }
+
+    void cancelSelectedTasks() {
+        for ( Task task : getSelectedTasks()) {
+            if ( task.canCancel()) {
+                task.cancel();
+            }
+        }
+    }
+
+    JTable getInFlightTable() {
+        return inFlightTable;
+    }
+
+    InFlightTableModel getInFlightModel() {
+        return inFlightModel;
+    }
+
+    StatisticsTableModel getStatisticsModel() {
+        return statisticsModel;
+    }
+
+    private List<Task> getSelectedTasks() {
+        List<Task> tasks = new ArrayList<Task>();
+        for ( int row : inFlightTable.getSelectedRows()) {
+            tasks.add(inFlightModel.getTaskInfo(row).getTask());
+        }
+        return tasks;
+    }
+
+    //anonymous classes have no simple name
+    private static String getName(Object o) {
+        if ( o == null ) {
+            return "";
+        }
+        String simpleName = o.getClass().getSimpleName();
+        return simpleName.length() > 0 ? simpleName : o.getClass().getName();
+    }
+
+    private static String formatLatency(long millis) {
+        return millis == -1 ? "" : String.valueOf(millis);
+    }
+
+    static class InFlightTableModel extends AbstractTableModel {
+
+        private static final String[] COLUMNS = new String[] {
+            "Command", "Task", "State", "Age (ms)", "Queue Wait (ms)", "Progress", "Current Child", "Executor"
+        };
+
+        private List<TaskRegistry.TaskInfo> tasks = Collections.emptyList();
+
+        void setTasks(List<TaskRegistry.TaskInfo> tasks) {
+            this.tasks = tasks;
+            fireTableDataChanged();
+        }
+
+        TaskRegistry.TaskInfo getTaskInfo(int row) {
+            return tasks.get(row);
+        }
+
+        public int getRowCount() {
+            return tasks.size();
+        }
+
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        public Object getValueAt(int row, int column) {
+            TaskRegistry.TaskInfo info = tasks.get(row);
+            switch (column) {
+                case 0 : return info.getCommandClass().getName();
+                case 1 : return info.getTask().getTaskId();
+                case 2 : return info.getExecutionState();
+                case 3 : return info.getAge(TimeUnit.MILLISECONDS);
+                case 4 : return info.getQueueWait(TimeUnit.MILLISECONDS);
+                case 5 : return info.getProgress() == null ? "" : info.getProgress().toString();
+                case 6 : return info.getCurrentChildTask() == null ? "" : info.getCurrentChildTask().toString();
+                case 7 : return getName(info.getExecutor());
+                default : return null;
+            }
+        }
+    }
+
+    static class StatisticsTableModel extends AbstractTableModel {
+
+        private static final String[] COLUMNS = new String[] {
+            "Command", "Completed", "Errors", "Throughput (/s)", "Median (ms)", "95th (ms)", "Max (ms)"
+        };
+
+        private List<TaskRegistry.CommandStatistics> statistics = Collections.emptyList();
+
+        void setStatistics(List<TaskRegistry.CommandStatistics> statistics) {
+            this.statistics = statistics;
+            fireTableDataChanged();
+        }
+
+        TaskRegistry.CommandStatistics getStatistics(int row) {
+            return statistics.get(row);
+        }
+
+        public int getRowCount() {
+            return statistics.size();
+        }
+
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        public Object getValueAt(int row, int column) {
+            TaskRegistry.CommandStatistics s = statistics.get(row);
+            switch (column) {
+                case 0 : return s.getCommandClass().getName();
+                case 1 : return s.getCompletedCount();
+                case 2 : return s.getErrorCount();
+                case 3 : return String.format("%.2f", s.getThroughput());
+                case 4 : return formatLatency(s.getMedianLatency(TimeUnit.MILLISECONDS));
+                case 5 : return formatLatency(s.getP95Latency(TimeUnit.MILLISECONDS));
+                case 6 : return formatLatency(s.getMaxLatency(TimeUnit.MILLISECONDS));
+                default : return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * A registry of the tasks executed by SwingCommand which have not yet finished, together with the rolling
+ * throughput and latency of each command class, from which a monitor such as TaskMonitorPanel can take snapshots.
+ *
+ * While enabled, executing a task adds it to a concurrent map, and finishing it removes it and records its latency,
+ * the time from PENDING until it finished. Progress is recorded by overwriting a single field, so the cost is
+ * independent of how often a task fires progress. The registry is disabled by default, tasks executed while it is
+ * disabled are never registered. It is enabled while setEnabled(true) is in effect, or while any TaskMonitorPanel
+ * is displayable.
+ */
+public final class TaskRegistry {
+
+    public static final long DEFAULT_STATISTICS_WINDOW_MILLIS = 60000;
+
+    private static final int HISTORY_CAPACITY = 1024;
+
+    private static final Object enabledLock = new Object();
+    private static boolean enabledBySetting; //guarded by enabledLock
+    private static int monitorCount; //guarded by enabledLock
+    private static volatile boolean enabled;
+    private static volatile long statisticsWindowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STATISTICS_WINDOW_MILLIS);
+    private static final Map<Entry, Boolean> inFlight = new ConcurrentHashMap<Entry, Boolean>();
+    private static final ConcurrentHashMap<Class, CommandHistory> histories = new ConcurrentHashMap<Class, CommandHistory>();
+
+    private TaskRegistry() {
+    }
+
+    /**
+     * Enable or disable the registry. While a TaskMonitorPanel is displayable, the registry stays enabled regardless
+     */
+    public static void setEnabled(boolean enabled) {
+        synchronized (enabledLock) {
+            enabledBySetting = enabled;
+            updateEnabled();
+        }
+    }
+
+    /**
+     * Called by a monitor when it is displayed, the registry is enabled until the last monitor is removed
+     */
+    static void addMonitor() {
+        synchronized (enabledLock) {
+            monitorCount++;
+            updateEnabled();
+        }
+    }
+
+    static void removeMonitor() {
+        synchronized (enabledLock) {
+            monitorCount--;
+            updateEnabled();
+        }
+    }
+
+    //should be called holding the enabledLock
+    private static void updateEnabled() {
+        enabled = enabledBySetting || monitorCount > 0;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param window, the period over which the throughput and latency of each command are calculated
+     */
+    public static void setStatisticsWindow(long window, TimeUnit timeUnit) {
+        if ( window <= 0) {
+            throw new IllegalArgumentException("window must be greater than 0");
+        }
+        statisticsWindowNanos = timeUnit.toNanos(window);
+    }
+
+    public static long getStatisticsWindow(TimeUnit timeUnit) {
+        return timeUnit.convert(statisticsWindowNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return a snapshot of the tasks which have not yet finished, oldest first
+     */
+    public static List<TaskInfo> getInFlightTasks() {
+        long now = System.nanoTime();
+        List<TaskInfo> result = new ArrayList<TaskInfo>();
+        for ( Entry entry : inFlight.keySet()) {
+            result.add(new TaskInfo(entry, now));
+        }
+        Collections.sort(result, new Comparator<TaskInfo>() {
+            public int compare(TaskInfo o1, TaskInfo o2) {
+                return Long.compare(o2.ageNanos, o1.ageNanos);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a snapshot of the statistics for each command class which has executed a task while the registry was enabled
+     */
+    public static List<CommandStatistics> getCommandStatistics() {
+        long now = System.nanoTime();
+        long window = statisticsWindowNanos;
+        List<CommandStatistics> result = new ArrayList<CommandStatistics>();
+        for ( Map.Entry<Class, CommandHistory> history : histories.entrySet()) {
+            result.add(history.getValue().getStatistics(history.getKey(), now, window));
+        }
+        Collections.sort(result, new Comparator<CommandStatistics>() {
+            public int compare(CommandStatistics o1, CommandStatistics o2) {
+                return o1.getCommandClass().getName().compareTo(o2.getCommandClass().getName());
+            }
+        });
+        return result;
+    }
+
+    public static void resetCommandStatistics() {
+        histories.clear();
+    }
+
+    static void register(SwingCommand command, Task task, Executor executor) {
+        if ( enabled ) {
+            Entry entry = new Entry(command.getClass(), task, executor);
+            task.setRegistryEntry(entry);
+            inFlight.put(entry, Boolean.TRUE);
+        }
+    }
+
+    static void taskStarted(Task task) {
+        Entry entry = task.getRegistryEntry();
+        if ( entry != null ) {
+            entry.startedNanos = System.nanoTime();
+        }
+    }
+
+    static void taskProgress(Task task, Object progress) {
+        Entry entry = task.getRegistryEntry();
+        if ( entry != null ) {
+            entry.progress = progress;
+        }
+    }
+
+    static void taskFinished(Task task) {
+        Entry entry = task.getRegistryEntry();
+        if ( entry != null ) {
+            task.setRegistryEntry(null);
+            inFlight.remove(entry);
+            long now = System.nanoTime();
+            getHistory(entry.commandClass).add(now, now - entry.pendingNanos, task.getExecutionState() == Task.ExecutionState.ERROR);
+        }
+    }
+
+    private static CommandHistory getHistory(Class commandClass) {
+        CommandHistory history = histories.get(commandClass);
+        if ( history == null ) {
+            history = new CommandHistory();
+            CommandHistory existing = histories.putIfAbsent(commandClass, history);
+            if ( existing != null ) {
+                history = existing;
+            }
+        }
+        return history;
+    }
+
+    /**
+     * The registration of a task which has not yet finished
+     */
+    static final class Entry {
+        private final Class commandClass;
+        private final Task task;
+        private final Executor executor;
+        private final long pendingNanos = System.nanoTime();
+        private volatile long startedNanos;
+        private volatile Object progress;
+
+        Entry(Class commandClass, Task task, Executor executor) {
+            this.commandClass = commandClass;
+            this.task = task;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * The completion times and latencies of the most recent tasks executed by one command class
+     */
+    private static final class CommandHistory {
+        //guarded by this
+        private final long[] finishedNanos = new long[HISTORY_CAPACITY];
+        private final long[] latencyNanos = new long[HISTORY_CAPACITY];
+        private int nextIndex;
+        private int sampleCount;
+        private long completedCount;
+        private long errorCount;
+
+        synchronized void add(long finished, long latency, boolean error) {
+            finishedNanos[nextIndex] = finished;
+            latencyNanos[nextIndex] = latency;
+            nextIndex = (nextIndex + 1) % HISTORY_CAPACITY;
+            sampleCount = Math.min(sampleCount + 1, HISTORY_CAPACITY);
+            completedCount++;
+            if ( error ) {
+                errorCount++;
+            }
+        }
+
+        CommandStatistics getStatistics(Class commandClass, long now, long window) {
+            LatencyHistory windowLatencies = new LatencyHistory(HISTORY_CAPACITY);
+            long oldestInWindow = now;
+            long completed, errors;
+            synchronized (this) {
+                completed = completedCount;
+                errors = errorCount;
+                for ( int loop=0; loop < sampleCount; loop++) {
+                    if ( now - finishedNanos[loop] <= window) {
+                        windowLatencies.addSample(latencyNanos[loop]);
+                        oldestInWindow = Math.min(oldestInWindow, finishedNanos[loop]);
+                    }
+                }
+            }
+
+            //if the history does not cover the whole window, the throughput is calculated over the period it does cover
+            int countInWindow = windowLatencies.getSampleCount();
+            long period = countInWindow == HISTORY_CAPACITY ? Math.max(1, now - oldestInWindow) : window;
+            double throughput = countInWindow * (double)TimeUnit.SECONDS.toNanos(1) / period;
+            return new CommandStatistics(
+                commandClass, completed, errors, throughput,
+                windowLatencies.getPercentile(50), windowLatencies.getPercentile(95), windowLatencies.getPercentile(100)
+            );
+        }
+    }
+
+    /**
+     * A snapshot of a task which has not yet finished
+     */
+    public static final class TaskInfo {
+        private final Task task;
+        private final Class commandClass;
+        private final Executor executor;
+        private final Task.ExecutionState executionState;
+        private final long ageNanos;
+        private final long queueWaitNanos;
+        private final Object progress;
+        private final Task currentChildTask;
+
+        TaskInfo(Entry entry, long now) {
+            task = entry.task;
+            commandClass = entry.commandClass;
+            executor = entry.executor;
+            executionState = task.getExecutionState();
+            ageNanos = now - entry.pendingNanos;
+            long started = entry.startedNanos;
+            queueWaitNanos = started == 0 ? ageNanos : started - entry.pendingNanos;
+            progress = entry.progress;
+            currentChildTask = task instanceof CompositeCommandTask ? ((CompositeCommandTask)task).getCurrentChildTask() : null;
+        }
+
+        public Task getTask() {
+            return task;
+        }
+
+        public Class getCommandClass() {
+            return commandClass;
+        }
+
+        /**
+         * @return the executor to which the task was submitted, or null if it has none (e.g. it was rejected)
+         */
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        public Task.ExecutionState getExecutionState() {
+            return executionState;
+        }
+
+        /**
+         * @return the time since the task moved to PENDING
+         */
+        public long getAge(TimeUnit timeUnit) {
+            return timeUnit.convert(ageNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the time from PENDING until the task was started, or until the snapshot if it is still waiting
+         */
+        public long getQueueWait(TimeUnit timeUnit) {
+            return timeUnit.convert(queueWaitNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the last progress fired by the task, or null if it has not fired progress
+         */
+        public Object getProgress() {
+            return progress;
+        }
+
+        /**
+         * @return the child task currently executing, if this is a CompositeCommandTask, otherwise null
+         */
+        public Task getCurrentChildTask() {
+            return currentChildTask;
+        }
+    }
+
+    /**
+     * A snapshot of the throughput and latency of one command class, over the statistics window
+     */
+    public static final class CommandStatistics {
+        private final Class commandClass;
+        private final long completedCount;
+        private final long errorCount;
+        private final double throughput;
+        private final long medianLatencyNanos;
+        private final long p95LatencyNanos;
+        private final long maxLatencyNanos;
+
+        CommandStatistics(Class commandClass, long completedCount, long errorCount, double throughput,
+                          long medianLatencyNanos, long p95LatencyNanos, long maxLatencyNanos) {
+            this.commandClass = commandClass;
+            this.completedCount = completedCount;
+            this.errorCount = errorCount;
+            this.throughput = throughput;
+            this.medianLatencyNanos = medianLatencyNanos;
+            this.p95LatencyNanos = p95LatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+        }
+
+        public Class getCommandClass() {
+            return commandClass;
+        }
+
+        /**
+         * @return the number of tasks finished since the statistics were last reset, in any final state
+         */
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * @return the tasks finished per second, over the statistics window
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * The latencies are -1 if no task finished during the window
+         */
+        public long getMedianLatency(TimeUnit timeUnit) {
+            return convertLatency(medianLatencyNanos, timeUnit);
+        }
+
+        public long getP95Latency(TimeUnit timeUnit) {
+            return convertLatency(p95LatencyNanos, timeUnit);
+        }
+
+        public long getMaxLatency(TimeUnit timeUnit) {
+            return convertLatency(maxLatencyNanos, timeUnit);
+        }
+
+        private long convertLatency(long nanos, TimeUnit timeUnit) {
+            return nanos == -1 ? -1 : timeUnit.convert(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * The CPU time used and heap allocated by one execution of a task, in its background stage and in its event thread
+ * stage (doInEventThread()). Allocated bytes are -1 if the JVM does not support thread allocation measurement.
+ *
+ * See ResourceAccounting
+ */
+public class TaskResourceUsage {
+
+    private final long backgroundCpuNanos, backgroundAllocatedBytes;
+    private final long eventThreadCpuNanos, eventThreadAllocatedBytes;
+
+    public TaskResourceUsage(long backgroundCpuNanos, long backgroundAllocatedBytes, long eventThreadCpuNanos, long eventThreadAllocatedBytes) {
+        this.backgroundCpuNanos = backgroundCpuNanos;
+        this.backgroundAllocatedBytes = backgroundAllocatedBytes;
+        this.eventThreadCpuNanos = eventThreadCpuNanos;
+        this.eventThreadAllocatedBytes = eventThreadAllocatedBytes;
+    }
+
+    public long getBackgroundCpuTime(TimeUnit timeUnit) {
+        return timeUnit.convert(backgroundCpuNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getBackgroundAllocatedBytes() {
+        return backgroundAllocatedBytes;
+    }
+
+    public long getEventThreadCpuTime(TimeUnit timeUnit) {
+        return timeUnit.convert(eventThreadCpuNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getEventThreadAllocatedBytes() {
+        return eventThreadAllocatedBytes;
+    }
+
+    public String toString() {
+        return "TaskResourceUsage{backgroundCpu=" + getBackgroundCpuTime(TimeUnit.MICROSECONDS) + "us" +
+            ", backgroundAllocated=" + backgroundAllocatedBytes +
+            ", eventThreadCpu=" + getEventThreadCpuTime(TimeUnit.MICROSECONDS) + "us" +
+            ", eventThreadAllocated=" + eventThreadAllocatedBytes + "}";
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author Nick Ebbutt, Object Definitions Ltd. http://www.objectdefinitions.com
+ *
+ * Binds the execution of a command to whether a component is visible to the user, so that a panel in a hidden
+ * tab or a minimised window does not keep refreshing.
+ *
+ * The component is treated as visible while it is showing and its window is not iconified. A scheduled command
+ * may be paused or throttled to a slower rate while the component is hidden, and a command executed through a
+ * CommandBinding is deferred. In each case a single catch-up execution runs when the component becomes visible
+ * again, if an execution was missed.
+ *
+ * The binding only holds its component weakly, so a command or schedule which outlives its panel does not keep the
+ * panel in memory. Collected components are looked for on the shared schedule timer thread, every
+ * COLLECTION_CHECK_MILLIS - once the component has been collected the binding stops acting on the command, and a
+ * bound schedule is cancelled, even if no further events arrive. Bindings should be created on the event thread.
+ */
+public class VisibilityBinding {
+
+    public static final long COLLECTION_CHECK_MILLIS = 500;
+
+    private static final ReferenceQueue<JComponent> collectedComponents = new ReferenceQueue<JComponent>();
+    //the references must stay reachable until they are enqueued
+    private static final Set<ComponentReference> boundComponents = Collections.newSetFromMap(new ConcurrentHashMap<ComponentReference, Boolean>());
+    private static final AtomicBoolean collectionCheckStarted = new AtomicBoolean();
+
+    private final ComponentReference component;
+    private final VisibilityHandler handler;
+    private final HierarchyListener hierarchyListener = new HierarchyListener() {
+        public void hierarchyChanged(HierarchyEvent e) {
+            if ( (e.getChangeFlags() & (HierarchyEvent.SHOWING_CHANGED | HierarchyEvent.PARENT_CHANGED)) != 0) {
+                updateVisibility();
+            }
+        }
+    };
+    private final WindowAdapter windowListener = new WindowAdapter() {
+        public void windowIconified(WindowEvent e) {
+            updateVisibility();
+        }
+
+        public void windowDeiconified(WindowEvent e) {
+            updateVisibility();
+        }
+    };
+
+    //only accessed on the event thread
+    private WeakReference<Window> window = new WeakReference<Window>(null);
+    private boolean visible = true;
+    private boolean bound = true;
+
+    VisibilityBinding(JComponent component, VisibilityHandler handler) {
+        this.component = new ComponentReference(component, this);
+        this.handler = handler;
+        boundComponents.add(this.component);
+        startCollectionCheck();
+        component.addHierarchyListener(hierarchyListener);
+        updateVisibility();
+    }
+
+    private static void startCollectionCheck() {
+        if ( collectionCheckStarted.compareAndSet(false, true)) {
+            CommandSchedule.scheduler.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    Reference<? extends JComponent> reference;
+                    while ( (reference = collectedComponents.poll()) != null) {
+                        if ( boundComponents.remove(reference)) {
+                            final VisibilityBinding binding = ((ComponentReference)reference).binding;
+                            SwingUtilities.invokeLater(new Runnable() {
+                                public void run() {
+                                    binding.componentCollected();
+                                }
+                            });
+                        }
+                    }
+                }
+            }, COLLECTION_CHECK_MILLIS, COLLECTION_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Pause the schedule while the component is hidden
+     */
+    public static VisibilityBinding pauseWhileHidden(final CommandSchedule<?,?> schedule, JComponent component) {
+        return new VisibilityBinding(component, new VisibilityHandler() {
+            public void visibilityChanged(boolean visible) {
+                if ( visible ) {
+                    schedule.resume();
+                } else {
+                    schedule.pause();
+                }
+            }
+
+            public void componentCollected() {
+                schedule.cancel();
+            }
+        });
+    }
+
+    /**
+     * Run the schedule no more often than hiddenPeriod while the component is hidden
+     */
+    public static VisibilityBinding throttleWhileHidden(final CommandSchedule<?,?> schedule, JComponent component, long hiddenPeriod, TimeUnit timeUnit) {
+        final long hiddenPeriodNanos = timeUnit.toNanos(hiddenPeriod);
+        return new VisibilityBinding(component, new VisibilityHandler() {
+            public void visibilityChanged(boolean visible) {
+                schedule.setThrottledPeriod(visible ? 0 : hiddenPeriodNanos);
+            }
+
+            public void componentCollected() {
+                schedule.cancel();
+            }
+        });
+    }
+
+    /**
+     * @return a binding through which the command should be executed. While the component is hidden executions are
+     * deferred, and a single execution, with the most recent parameters, is run when the component is shown again
+     */
+    public static <P,E> CommandBinding<P,E> deferWhileHidden(SwingCommand<P,E> command, JComponent component) {
+        return new CommandBinding<P,E>(command, component, new DeferringHandler<P,E>(command));
+    }
+
+    /**
+     * @return true if the component was visible when its visibility was last checked
+     */
+    public boolean isComponentVisible() {
+        return visible;
+    }
+
+    /**
+     * Remove the listeners from the component and its window. If the command was paused, throttled or deferred
+     * because the component is hidden, it is first treated as visible again
+     */
+    public void unbind() {
+        if ( bound ) {
+            bound = false;
+            boundComponents.remove(component);
+            JComponent c = component.get();
+            if ( c != null ) {
+                c.removeHierarchyListener(hierarchyListener);
+            }
+            setWindow(null);
+            if ( ! visible ) {
+                visible = true;
+                handler.visibilityChanged(true);
+            }
+        }
+    }
+
+    private void updateVisibility() {
+        if ( ! bound ) {
+            return;
+        }
+        JComponent c = component.get();
+        if ( c == null ) {
+            componentCollected();
+            return;
+        }
+
+        Window w = SwingUtilities.getWindowAncestor(c);
+        setWindow(w);
+        boolean nowVisible = c.isShowing() && ! isIconified(w);
+        if ( nowVisible != visible ) {
+            visible = nowVisible;
+            handler.visibilityChanged(nowVisible);
+        }
+    }
+
+    private void componentCollected() {
+        if ( bound ) {
+            unbind();
+            handler.componentCollected();
+        }
+    }
+
+    //the window listener moves with the component, if it is added to a different window
+    private void setWindow(Window w) {
+        Window current = window.get();
+        if ( current != w ) {
+            if ( current != null ) {
+                current.removeWindowListener(windowListener);
+            }
+            if ( w != null ) {
+                w.addWindowListener(windowListener);
+            }
+            window = new WeakReference<Window>(w);
+        }
+    }
+
+    private boolean isIconified(Window w) {
+        return w instanceof Frame && (((Frame)w).getExtendedState() & Frame.ICONIFIED) != 0;
+    }
+
+    /**
+     * Executes a command immediately while the component is visible, or defers it until it is visible again
+     */
+    public static class CommandBinding<P,E> extends VisibilityBinding {
+
+        private final SwingCommand<P,E> command;
+        private final DeferringHandler<P,E> handler;
+
+        CommandBinding(SwingCommand<P,E> command, JComponent component, DeferringHandler<P,E> handler) {
+            super(component, handler);
+            this.command = command;
+            this.handler = handler;
+        }
+
+        public Task<P,E> execute() {
+            return execute(null);
+        }
+
+        /**
+         * @return the Task, or null if the component is hidden and the execution has been deferred
+         */
+        public Task<P,E> execute(P parameters) {
+            if ( isComponentVisible() ) {
+                return command.execute(parameters);
+            } else {
+                handler.defer(parameters);
+                return null;
+            }
+        }
+
+        /**
+         * @return true if an execution is waiting for the component to become visible
+         */
+        public boolean isExecutionDeferred() {
+            return handler.isExecutionDeferred();
+        }
+    }
+
+    private static class ComponentReference extends WeakReference<JComponent> {
+        private final VisibilityBinding binding;
+
+        public ComponentReference(JComponent component, VisibilityBinding binding) {
+            super(component, collectedComponents);
+            this.binding = binding;
+        }
+    }
+
+    interface VisibilityHandler {
+
+        void visibilityChanged(boolean visible);
+
+        void componentCollected();
+    }
+
+    private static class DeferringHandler<P,E> implements VisibilityHandler {
+        private final SwingCommand<P,E> command;
+        private boolean executionDeferred; //only accessed on the event thread
+        private P deferredParameters;
+
+        public DeferringHandler(SwingCommand<P,E> command) {
+            this.command = command;
+        }
+
+        public void defer(P parameters) {
+            executionDeferred = true;
+            deferredParameters = parameters;
+        }
+
+        public boolean isExecutionDeferred() {
+            return executionDeferred;
+        }
+
+        public void visibilityChanged(boolean visible) {
+            if ( visible && executionDeferred ) {
+                P parameters = deferredParameters;
+                executionDeferred = false;
+                deferredParameters = null;
+                command.execute(parameters);
+            }
+        }
+
+        public void componentCollected() {
+            executionDeferred = false;
+            deferredParameters = null;
+        }
+    }
+}
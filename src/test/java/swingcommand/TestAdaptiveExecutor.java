@@ -0,0 +1,156 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the measurement of task profiles and the sizing of the pool by the AdaptiveExecutor
+ */
+public class TestAdaptiveExecutor extends AbstractCommandTest {
+
+    private AdaptiveExecutor adaptiveExecutor;
+
+    protected void doSetUp() {
+        adaptiveExecutor = new AdaptiveExecutor(1, 16, 50, TimeUnit.MILLISECONDS);
+    }
+
+    protected void tearDown() throws Exception {
+        adaptiveExecutor.shutdown();
+    }
+
+    public void testPoolGrowsForBlockingTasks() throws Exception {
+        int taskCount = 40;
+        latch = new CountDownLatch(taskCount);
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new BlockingTask();
+            }
+        };
+        command.setExecutorFactory(adaptiveExecutor);
+
+        long startTime = System.currentTimeMillis();
+        for ( int loop=0; loop < taskCount; loop++) {
+            command.execute(new TaskListenerAdapter<String>() {
+                public void finished(Task task) {
+                    latch.countDown();
+                }
+            });
+        }
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+
+        //run one at a time, 40 tasks would take 4 seconds
+        assertTrue(System.currentTimeMillis() - startTime < 3000);
+        assertTrue(adaptiveExecutor.getIncreaseCount() > 0);
+        assertTrue(adaptiveExecutor.getTargetPoolSize() > 1 || adaptiveExecutor.getDecreaseCount() > 0);
+
+        //the profile is updated once the executor thread is released, which may be just after the task finishes
+        AdaptiveExecutor.TaskProfile profile = adaptiveExecutor.getProfile(BlockingTask.class);
+        waitForExecutionCount(profile, taskCount);
+        assertTrue(profile.getMeanWallTime(TimeUnit.MILLISECONDS) >= 100);
+        assertTrue(profile.getMeanQueueWait(TimeUnit.MILLISECONDS) > 0);
+        assertTrue(profile.getCpuRatio() < 0.5);
+        assertFalse(profile.isCpuBound());
+        assertNotNull(adaptiveExecutor.getLastDecision());
+    }
+
+    public void testCpuBoundTasksRoutedToWorkStealingPool() throws Exception {
+        adaptiveExecutor.setWorkStealingRouting(true);
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new SpinningTask();
+            }
+        };
+        command.setExecutorFactory(adaptiveExecutor);
+
+        //the first executions include warm up, such as JIT compilation, so run until the tasks are routed
+        AdaptiveExecutor.TaskProfile profile = adaptiveExecutor.getProfile(SpinningTask.class);
+        for ( int loop=0; loop < 30 && adaptiveExecutor.getWorkStealingCount() == 0; loop++) {
+            latch = new CountDownLatch(1);
+            command.execute(new TaskListenerAdapter<String>() {
+                public void finished(Task task) {
+                    latch.countDown();
+                }
+            });
+            waitForLatch();
+            waitForExecutionCount(profile, loop + 1);
+        }
+
+        assertTrue(profile.toString(), profile.isCpuBound());
+        assertTrue(adaptiveExecutor.getWorkStealingCount() > 0);
+        checkFailureText();
+    }
+
+    public void testPoolShrinksWhenIdle() throws Exception {
+        AdaptiveExecutor executor = new AdaptiveExecutor(2, 8, 1, TimeUnit.HOURS);
+        executor.adjustPoolSize();
+        assertEquals(2, executor.getTargetPoolSize());
+        assertTrue(executor.getLastDecision().startsWith("idle"));
+        executor.shutdown();
+    }
+
+    public void testUnusedExecutorIsCollectedWithoutShutdown() throws Exception {
+        AdaptiveExecutor executor = new AdaptiveExecutor(1, 4, 10, TimeUnit.MILLISECONDS);
+        WeakReference<AdaptiveExecutor> reference = new WeakReference<AdaptiveExecutor>(executor);
+        executor = null;
+
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( reference.get() != null && System.currentTimeMillis() < endTime) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertNull("the controller should not keep the executor alive", reference.get());
+    }
+
+    private void waitForExecutionCount(AdaptiveExecutor.TaskProfile profile, int executionCount) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 5000;
+        while ( profile.getExecutionCount() < executionCount && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(executionCount, profile.getExecutionCount());
+    }
+
+    private class BlockingTask extends BackgroundTask<Object,String> {
+        protected void doInBackground() throws Exception {
+            Thread.sleep(100);
+        }
+
+        protected void doInEventThread() throws Exception {
+        }
+    }
+
+    //spins until it has used a fixed amount of CPU, so that the task is CPU bound however long it is descheduled
+    private class SpinningTask extends BackgroundTask<Object,String> {
+        protected void doInBackground() throws Exception {
+            assertNotInEventThread("doInBackground");
+            ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+            long endCpuTime = threadBean.getCurrentThreadCpuTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            long count = 0;
+            while ( threadBean.getCurrentThreadCpuTime() < endCpuTime) {
+                count++;
+            }
+            assertIsTrue(count > 0, "should have spun");
+        }
+
+        protected void doInEventThread() throws Exception {
+        }
+    }
+}
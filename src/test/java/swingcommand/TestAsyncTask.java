@@ -0,0 +1,322 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Tests for AsyncTask, whose background stage completes without holding an executor thread
+ */
+public class TestAsyncTask extends AbstractCommandTest {
+
+    public void testManyTasksShareOneThread() throws Exception {
+        final int taskCount = 200;
+        final ExecutorService singleThread = Executors.newSingleThreadExecutor();
+        final List<CompletableFuture<String>> futures = new ArrayList<CompletableFuture<String>>();
+        final List<StageTask> tasks = new ArrayList<StageTask>();
+        final CountDownLatch allStarted = new CountDownLatch(taskCount);
+        final CountDownLatch allFinished = new CountDownLatch(taskCount);
+
+        try {
+            for ( int loop=0; loop < taskCount; loop++) {
+                CompletableFuture<String> future = new CompletableFuture<String>();
+                futures.add(future);
+                StageTask task = new StageTask(future, allStarted);
+                tasks.add(task);
+                createCommand(task).execute(singleThread, new TaskListenerAdapter<String>() {
+                    public void finished(Task task) {
+                        allFinished.countDown();
+                    }
+                });
+            }
+
+            //with a single thread, this can only happen if no task holds the thread while waiting
+            assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+            for ( int loop=0; loop < taskCount; loop++) {
+                assertEquals(Task.ExecutionState.STARTED, tasks.get(loop).getExecutionState());
+                futures.get(loop).complete("result" + loop);
+            }
+
+            assertTrue(allFinished.await(10, TimeUnit.SECONDS));
+            for ( int loop=0; loop < taskCount; loop++) {
+                assertEquals(Task.ExecutionState.SUCCESS, tasks.get(loop).getExecutionState());
+                assertEquals("result" + loop, tasks.get(loop).eventThreadResult);
+            }
+            checkFailureText();
+        } finally {
+            singleThread.shutdown();
+        }
+    }
+
+    public void testFailedStageIsAnError() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        StageTask task = new StageTask(future, new CountDownLatch(1));
+        Task<Object,String> t = execute(task);
+        IllegalStateException failure = new IllegalStateException("read failed");
+        future.completeExceptionally(failure);
+        waitForLatch();
+        assertEquals(Task.ExecutionState.ERROR, t.getExecutionState());
+        assertSame(failure, t.getExecutionException());
+        assertFalse(task.doInEventThreadCalled);
+    }
+
+    public void testCancelAbortsPendingOperation() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        CountDownLatch started = new CountDownLatch(1);
+        StageTask task = new StageTask(future, started);
+        Task<Object,String> t = execute(task);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(t.canCancel());
+
+        t.cancel();
+        waitForLatch();
+        assertTrue(task.aborted.get());
+        assertTrue(future.isCancelled());
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertNull(t.getExecutionException());
+        assertFalse(t.canCancel());
+    }
+
+    public void testReadFromAsynchronousFileChannel() throws Exception {
+        final File file = File.createTempFile("swingcommand", ".txt");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("file contents".getBytes("UTF-8"));
+        out.close();
+
+        final String[] contents = new String[1];
+        AsyncTask<Object,String> task = new AsyncTask<Object,String>() {
+            private AsynchronousFileChannel channel;
+
+            protected CompletionStage<?> doInBackgroundAsync() throws Exception {
+                assertNotInEventThread("doInBackgroundAsync");
+                final CompletableFuture<String> result = new CompletableFuture<String>();
+                final ByteBuffer buffer = ByteBuffer.allocate((int)file.length());
+                channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ);
+                channel.read(buffer, 0, null, new CompletionHandler<Integer, Object>() {
+                    public void completed(Integer bytesRead, Object attachment) {
+                        result.complete(new String(buffer.array(), 0, bytesRead));
+                    }
+
+                    public void failed(Throwable exc, Object attachment) {
+                        result.completeExceptionally(exc);
+                    }
+                });
+                return result.thenAccept(new Consumer<String>() {
+                    public void accept(String s) {
+                        contents[0] = s;
+                    }
+                });
+            }
+
+            protected void doInEventThread() throws Exception {
+                assertInEventThread("doInEventThread");
+                channel.close();
+            }
+        };
+        Task<Object,String> t = execute(task);
+        waitForLatch();
+        assertEquals(Task.ExecutionState.SUCCESS, t.getExecutionState());
+        assertEquals("file contents", contents[0]);
+        checkFailureText();
+    }
+
+    public void testCompositeWaitsForAsyncChild() throws Exception {
+        final CompletableFuture<String> future = new CompletableFuture<String>();
+        final CountDownLatch started = new CountDownLatch(1);
+        final StageTask asyncChild = new StageTask(future, started);
+        final Task.ExecutionState[] stateSeenByNextChild = new Task.ExecutionState[1];
+        SwingCommand<Object,String> nextChild = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new BackgroundTask<Object,String>() {
+                    protected void doInBackground() throws Exception {
+                        stateSeenByNextChild[0] = asyncChild.getExecutionState();
+                    }
+
+                    protected void doInEventThread() throws Exception {
+                    }
+                };
+            }
+        };
+        final CompositeCommandTask<Object,String> composite = new CompositeCommandTask<Object,String>(createCommand(asyncChild), nextChild) {
+            protected String getProgress(int currentCommandId, int totalCommands, Task currentChildCommand) {
+                return null;
+            }
+        };
+        Task<Object,String> t = createCommand(composite).execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertNull(stateSeenByNextChild[0]);
+        future.complete("result");
+
+        waitForLatch();
+        assertEquals(Task.ExecutionState.SUCCESS, t.getExecutionState());
+        assertEquals(Task.ExecutionState.SUCCESS, stateSeenByNextChild[0]);
+        assertEquals("result", asyncChild.eventThreadResult);
+    }
+
+    public void testKeyedSerialExecutorHoldsKeyUntilAsyncTaskFinishes() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            KeyedSerialExecutor<Object> keyedExecutor = new KeyedSerialExecutor<Object>(pool, new KeyedSerialExecutor.KeyExtractor<Object>() {
+                public Object getKey(Object parameters) {
+                    return "sameKey";
+                }
+            });
+            CompletableFuture<String> firstFuture = new CompletableFuture<String>();
+            CompletableFuture<String> secondFuture = new CompletableFuture<String>();
+            CountDownLatch firstStarted = new CountDownLatch(1);
+            CountDownLatch secondStarted = new CountDownLatch(1);
+            final CountDownLatch finished = new CountDownLatch(2);
+            TaskListener<String> finishedListener = new TaskListenerAdapter<String>() {
+                public void finished(Task task) {
+                    finished.countDown();
+                }
+            };
+
+            SwingCommand<Object,String> first = createCommand(new StageTask(firstFuture, firstStarted));
+            first.setExecutorFactory(keyedExecutor);
+            SwingCommand<Object,String> second = createCommand(new StageTask(secondFuture, secondStarted));
+            second.setExecutorFactory(keyedExecutor);
+            first.execute(finishedListener);
+            second.execute(finishedListener);
+
+            //the second task for the same key waits until the first has finished, not just started its operation
+            assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+            assertFalse(secondStarted.await(100, TimeUnit.MILLISECONDS));
+
+            firstFuture.complete("first");
+            assertTrue(secondStarted.await(10, TimeUnit.SECONDS));
+            secondFuture.complete("second");
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            long endTime = System.currentTimeMillis() + 10000;
+            while ( keyedExecutor.getActiveKeyCount() > 0 && System.currentTimeMillis() < endTime) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, keyedExecutor.getActiveKeyCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public void testAsyncTaskIsNotPrefetched() throws Exception {
+        SwingCommand<Object,String> command = createCommand(new StageTask(new CompletableFuture<String>(), new CountDownLatch(1)));
+        assertFalse(command.prefetch("parameters", 10, TimeUnit.SECONDS));
+    }
+
+    public void testCancelWhileWaitingForAdmission() throws Exception {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        CountDownLatch started = new CountDownLatch(1);
+        final StageTask running = new StageTask(future, started);
+        final StageTask waiting = new StageTask(new CompletableFuture<String>(), new CountDownLatch(1));
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            private boolean first = true;
+
+            protected Task<Object,String> createTask() {
+                Task<Object,String> task = first ? running : waiting;
+                first = false;
+                return task;
+            }
+        };
+        command.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.QUEUE);
+        command.execute();
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        Task<Object,String> t = command.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        assertEquals(1, command.getAdmissionQueueSize());
+
+        //the task's cancellation token removes it from the admission queue straight away
+        t.cancel();
+        waitForLatch();
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertEquals(0, command.getAdmissionQueueSize());
+        future.complete("done");
+    }
+
+    private Task<Object,String> execute(AsyncTask<Object,String> task) {
+        return createCommand(task).execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+    }
+
+    private SwingCommand<Object,String> createCommand(final Task<Object,String> task) {
+        return new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+    }
+
+    private class StageTask extends AsyncTask<Object,String> {
+        private final CompletableFuture<String> future;
+        private final CountDownLatch started;
+        private volatile String backgroundResult;
+        volatile String eventThreadResult;
+        volatile boolean doInEventThreadCalled;
+        final AtomicBoolean aborted = new AtomicBoolean();
+
+        public StageTask(CompletableFuture<String> future, CountDownLatch started) {
+            this.future = future;
+            this.started = started;
+        }
+
+        protected CompletionStage<?> doInBackgroundAsync() throws Exception {
+            started.countDown();
+            return future.thenAccept(new Consumer<String>() {
+                public void accept(String s) {
+                    backgroundResult = s;
+                }
+            });
+        }
+
+        protected void doAbort() {
+            aborted.set(true);
+            future.cancel(false);
+        }
+
+        protected void doInEventThread() throws Exception {
+            assertInEventThread("doInEventThread");
+            doInEventThreadCalled = true;
+            eventThreadResult = backgroundResult;
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the coalescing of executions into batches by a BatchingCommand
+ */
+public class TestBatchingCommand extends AbstractCommandTest {
+
+    private final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<List<Integer>>());
+
+    public void testItemsAreBatchedAndCompletedIndividually() throws Exception {
+        final int itemCount = 120;
+        BatchingCommand<Integer,String,String> command = new DoublingCommand(50, 200);
+        final List<Task<Integer,String>> tasks = execute(command, itemCount);
+
+        assertEquals(itemCount, command.getBatchedItemCount());
+        assertTrue("Expected at least 3 batches, was " + batches.size(), batches.size() >= 3);
+        assertEquals(batches.size(), command.getBatchCount());
+        for ( List<Integer> batch : batches) {
+            assertTrue(batch.size() <= 50);
+        }
+
+        long[] histogram = command.getBatchSizeHistogram();
+        long total = 0;
+        for ( long count : histogram) {
+            total += count;
+        }
+        assertEquals(command.getBatchCount(), total);
+        assertEquals(2, histogram[5]); //two full batches of 50, in the bucket 32 - 63
+
+        for ( int loop=0; loop < itemCount; loop++) {
+            BatchingCommand.BatchTask<Integer,String,String> task = (BatchingCommand.BatchTask<Integer,String,String>)tasks.get(loop);
+            assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+            assertEquals(String.valueOf(loop * 2), task.getResult());
+        }
+        checkFailureText();
+    }
+
+    public void testErrorsAreReportedPerItem() throws Exception {
+        BatchingCommand<Integer,String,String> command = new DoublingCommand(10, 50) {
+            protected void doInBackground(List<BatchItem<Integer,String>> batch) throws Exception {
+                for ( BatchItem<Integer,String> item : batch) {
+                    if ( item.getParameters() % 2 == 1) {
+                        item.setError(new IllegalArgumentException("odd " + item.getParameters()));
+                    } else {
+                        item.setResult("even");
+                    }
+                }
+            }
+        };
+        List<Task<Integer,String>> tasks = execute(command, 10);
+        for ( int loop=0; loop < 10; loop++) {
+            Task<Integer,String> task = tasks.get(loop);
+            if ( loop % 2 == 1) {
+                assertEquals(Task.ExecutionState.ERROR, task.getExecutionState());
+                assertEquals("odd " + loop, task.getExecutionException().getMessage());
+            } else {
+                assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+            }
+        }
+    }
+
+    public void testFailedBatchFailsRemainingItems() throws Exception {
+        final RuntimeException batchFailure = new RuntimeException("query failed");
+        BatchingCommand<Integer,String,String> command = new DoublingCommand(10, 50) {
+            protected void doInBackground(List<BatchItem<Integer,String>> batch) throws Exception {
+                batch.get(0).setResult("first");
+                throw batchFailure;
+            }
+        };
+        List<Task<Integer,String>> tasks = execute(command, 3);
+        assertEquals(Task.ExecutionState.SUCCESS, tasks.get(0).getExecutionState());
+        assertEquals(Task.ExecutionState.ERROR, tasks.get(1).getExecutionState());
+        assertSame(batchFailure, tasks.get(2).getExecutionException());
+    }
+
+    public void testCancelledItemIsRemovedFromBatch() throws Exception {
+        final List<String> doInEventThreadCalls = Collections.synchronizedList(new ArrayList<String>());
+        BatchingCommand<Integer,String,String> command = new DoublingCommand(10, 500) {
+            protected void doInEventThread(Integer parameters, String result) throws Exception {
+                doInEventThreadCalls.add(result);
+            }
+        };
+
+        final CountDownLatch cancelledFinished = new CountDownLatch(1);
+        Task<Integer,String> first = command.execute(1);
+        Task<Integer,String> cancelled = command.execute(2, new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                cancelledFinished.countDown();
+            }
+        });
+        latch = new CountDownLatch(1);
+        Task<Integer,String> last = command.execute(3, new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        cancelled.cancel();
+
+        //the cancelled item completes straight away, without waiting for the batch
+        assertTrue(cancelledFinished.await(400, TimeUnit.MILLISECONDS));
+        assertEquals(Task.ExecutionState.CANCELLED, cancelled.getExecutionState());
+        assertEquals(Task.ExecutionState.PENDING, first.getExecutionState());
+
+        waitForLatch();
+        assertEquals(Task.ExecutionState.SUCCESS, first.getExecutionState());
+        assertEquals(Task.ExecutionState.SUCCESS, last.getExecutionState());
+        assertEquals(Collections.singletonList(Arrays.asList(1, 3)), batches);
+        assertEquals(Arrays.asList("2", "6"), doInEventThreadCalls);
+    }
+
+    public void testBatchesRunOnTheExecutorForTheirTasks() throws Exception {
+        ExecutorService commandPool = Executors.newSingleThreadExecutor();
+        ExecutorService otherPool = Executors.newSingleThreadExecutor();
+        try {
+            final Thread[] threads = new Thread[2];
+            commandPool.submit(new Runnable() {
+                public void run() {
+                    threads[0] = Thread.currentThread();
+                }
+            }).get();
+            otherPool.submit(new Runnable() {
+                public void run() {
+                    threads[1] = Thread.currentThread();
+                }
+            }).get();
+
+            final List<Thread> batchThreads = Collections.synchronizedList(new ArrayList<Thread>());
+            BatchingCommand<Integer,String,String> command = new DoublingCommand(2, 1000) {
+                protected void doInBackground(List<BatchItem<Integer,String>> batch) throws Exception {
+                    batchThreads.add(Thread.currentThread());
+                    super.doInBackground(batch);
+                }
+            };
+            command.setExecutor(commandPool);
+
+            final CountDownLatch finished = new CountDownLatch(4);
+            TaskListener<String> listener = new TaskListenerAdapter<String>() {
+                public void finished(Task task) {
+                    finished.countDown();
+                }
+            };
+            //items are only batched with others for the same executor
+            Task<Integer,String> first = command.execute(1, listener);
+            Task<Integer,String> other = command.execute(2, otherPool, listener);
+            command.execute(3, listener);
+            command.execute(4, otherPool, listener);
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+            assertEquals(2, batches.size());
+            assertTrue(batches.contains(Arrays.asList(1, 3)));
+            assertTrue(batches.contains(Arrays.asList(2, 4)));
+            assertEquals(2, batchThreads.size());
+            assertTrue(batchThreads.contains(threads[0]));
+            assertTrue(batchThreads.contains(threads[1]));
+            assertEquals("2", ((BatchingCommand.BatchTask<Integer,String,String>)first).getResult());
+            assertEquals("4", ((BatchingCommand.BatchTask<Integer,String,String>)other).getResult());
+            assertFalse(command.prefetch(1, 10, TimeUnit.SECONDS));
+            checkFailureText();
+        } finally {
+            commandPool.shutdownNow();
+            otherPool.shutdownNow();
+        }
+    }
+
+    public void testItemsFailIfTheirExecutorIsShutDown() throws Exception {
+        ExecutorService shutDownPool = Executors.newSingleThreadExecutor();
+        shutDownPool.shutdown();
+        BatchingCommand<Integer,String,String> command = new DoublingCommand(2, 1000);
+        command.setExecutor(shutDownPool);
+        List<Task<Integer,String>> tasks = execute(command, 2);
+        for ( Task<Integer,String> task : tasks) {
+            assertEquals(Task.ExecutionState.ERROR, task.getExecutionState());
+            assertTrue(task.getExecutionException() instanceof RejectedExecutionException);
+        }
+    }
+
+    private List<Task<Integer,String>> execute(BatchingCommand<Integer,String,String> command, int itemCount) throws InterruptedException {
+        final CountDownLatch finished = new CountDownLatch(itemCount);
+        TaskListener<String> listener = new TaskListenerAdapter<String>() {
+            public void pending(Task task) {
+                assertInEventThread("pending");
+            }
+
+            public void finished(Task task) {
+                assertInEventThread("finished");
+                finished.countDown();
+            }
+        };
+        List<Task<Integer,String>> tasks = new ArrayList<Task<Integer,String>>();
+        for ( int loop=0; loop < itemCount; loop++) {
+            tasks.add(command.execute(loop, listener));
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        return tasks;
+    }
+
+    private class DoublingCommand extends BatchingCommand<Integer,String,String> {
+
+        public DoublingCommand(int maxBatchSize, long maxDelayMillis) {
+            super(maxBatchSize, maxDelayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        protected void doInBackground(List<BatchItem<Integer,String>> batch) throws Exception {
+            assertNotInEventThread("doInBackground");
+            List<Integer> parameters = new ArrayList<Integer>();
+            for ( BatchItem<Integer,String> item : batch) {
+                parameters.add(item.getParameters());
+                item.setResult(String.valueOf(item.getParameters() * 2));
+            }
+            batches.add(parameters);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that a task cancelled while queued behind a bounded executor is removed from the executor's queue
+ */
+public class TestCancelPendingTask extends AbstractCommandTest {
+
+    private ThreadPoolExecutor executor;
+    private final CountDownLatch releaseBlockingTask = new CountDownLatch(1);
+    private final CountDownLatch blockingTaskStarted = new CountDownLatch(1);
+
+    protected void doSetUp() {
+        executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+    }
+
+    public void testCancelQueuedTaskFreesQueueSlot() throws Exception {
+        long reclaimedBefore = SwingCommand.getReclaimedQueueSlotCount();
+        executeBlockingTask();
+
+        final InterruptibleTask<Object,String> queuedTask = new InterruptibleTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                assertIsTrue(false, "doInBackground should not be called for a reclaimed task");
+            }
+
+            protected void doInEventThreadIfNotCancelled() throws Exception {
+                assertIsTrue(false, "doInEventThreadIfNotCancelled should not be called for a reclaimed task");
+            }
+        };
+
+        Task t = createCommand(queuedTask).execute(executor, new ThreadCheckingTaskListener() {
+            public void doPending(Task task) {
+                assertOrdering(1, "pending");
+            }
+
+            public void doStarted(Task task) {
+                assertIsTrue(false, "started should not be fired for a reclaimed task");
+            }
+
+            public void doProgress(Task task, String progressDescription) {
+            }
+
+            public void doSuccess(Task task) {
+                isBadListenerMethodCalled = true;
+            }
+
+            public void doError(Task task, Throwable error) {
+                isBadListenerMethodCalled = true;
+            }
+
+            public void cancelled(Task task) {
+                assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+                assertOrdering(2, "cancelled");
+            }
+
+            public void doFinished(Task task) {
+                assertOrdering(3, "finished");
+                latch.countDown();
+            }
+        });
+
+        assertEquals(1, executor.getQueue().size());
+        t.cancel();
+        waitForLatch();
+
+        assertEquals(0, executor.getQueue().size());
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertEquals(reclaimedBefore + 1, SwingCommand.getReclaimedQueueSlotCount());
+        assertFalse(isBadListenerMethodCalled);
+
+        releaseBlockingTask.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        checkFailureText();
+    }
+
+    public void testCancelRunningTaskDoesNotReclaim() throws Exception {
+        long reclaimedBefore = SwingCommand.getReclaimedQueueSlotCount();
+        Task t = executeBlockingTask();
+        t.cancel();
+        releaseBlockingTask.countDown();
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertEquals(reclaimedBefore, SwingCommand.getReclaimedQueueSlotCount());
+        executor.shutdown();
+    }
+
+    private Task executeBlockingTask() throws InterruptedException {
+        BackgroundTask<Object,String> blockingTask = new BackgroundTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                blockingTaskStarted.countDown();
+                releaseBlockingTask.await();
+            }
+
+            protected void doInEventThread() throws Exception {
+            }
+        };
+        Task t = createCommand(blockingTask).execute(executor, new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        assertTrue(blockingTaskStarted.await(10, TimeUnit.SECONDS));
+        return t;
+    }
+
+    private SwingCommand<Object,String> createCommand(final Task<Object,String> task) {
+        return new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+    }
+}
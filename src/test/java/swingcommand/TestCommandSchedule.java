@@ -0,0 +1,191 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.SwingUtilities;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for periodic execution of a command with a CommandSchedule
+ */
+public class TestCommandSchedule extends AbstractCommandTest {
+
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicInteger maxRunning = new AtomicInteger();
+    private final List<long[]> executionTimes = Collections.synchronizedList(new ArrayList<long[]>());
+    private volatile long backgroundMillis;
+
+    private final SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+        protected Task<Object,String> createTask() {
+            return new BackgroundTask<Object,String>() {
+                protected void doInBackground() throws Exception {
+                    long start = System.nanoTime();
+                    int nowRunning = running.incrementAndGet();
+                    if ( nowRunning > maxRunning.get()) {
+                        maxRunning.set(nowRunning);
+                    }
+                    Thread.sleep(backgroundMillis);
+                    running.decrementAndGet();
+                    executionTimes.add(new long[] { start, System.nanoTime() });
+                }
+
+                protected void doInEventThread() throws Exception {
+                }
+            };
+        }
+    };
+
+    public void testSkipIfRunningNeverOverlaps() throws Exception {
+        backgroundMillis = 150;
+        CommandSchedule<Object,String> schedule = command.scheduleAtFixedRate(0, 40, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(700);
+        } finally {
+            schedule.cancel();
+        }
+        waitUntilIdle(schedule);
+
+        assertEquals(1, maxRunning.get());
+        assertTrue(schedule.getSkippedTickCount() > 0);
+        assertTrue(schedule.getExecutionCount() >= 2);
+        assertEquals(CommandSchedule.OverlapPolicy.SKIP_IF_RUNNING, schedule.getOverlapPolicy());
+    }
+
+    public void testCoalescedTicksRunOnceWhenPreviousFinishes() throws Exception {
+        backgroundMillis = 150;
+        CommandSchedule<Object,String> schedule = command.scheduleAtFixedRate(50, 40, TimeUnit.MILLISECONDS);
+        schedule.setOverlapPolicy(CommandSchedule.OverlapPolicy.COALESCE_MISSED_TICKS);
+        try {
+            Thread.sleep(800);
+        } finally {
+            schedule.cancel();
+        }
+        waitUntilIdle(schedule);
+
+        assertEquals(1, maxRunning.get());
+        assertTrue(executionTimes.size() >= 3);
+        //each missed batch of ticks results in one execution straight after the previous one
+        for ( int loop=1; loop < executionTimes.size(); loop++) {
+            long gapMillis = TimeUnit.NANOSECONDS.toMillis(executionTimes.get(loop)[0] - executionTimes.get(loop - 1)[1]);
+            assertTrue("Gap between executions was " + gapMillis, gapMillis < 100);
+        }
+    }
+
+    public void testFixedDelayIsMeasuredFromEndOfExecution() throws Exception {
+        backgroundMillis = 20;
+        CommandSchedule<Object,String> schedule = command.scheduleWithFixedDelay(0, 60, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(500);
+        } finally {
+            schedule.cancel();
+        }
+        waitUntilIdle(schedule);
+
+        assertTrue(executionTimes.size() >= 3);
+        for ( int loop=1; loop < executionTimes.size(); loop++) {
+            long gapMillis = TimeUnit.NANOSECONDS.toMillis(executionTimes.get(loop)[0] - executionTimes.get(loop - 1)[1]);
+            assertTrue("Gap between executions was " + gapMillis, gapMillis >= 55);
+        }
+        assertEquals(0, schedule.getSkippedTickCount());
+    }
+
+    public void testAdaptiveBackOff() throws Exception {
+        backgroundMillis = 100;
+        CommandSchedule<Object,String> schedule = command.scheduleAtFixedRate(50, 20, TimeUnit.MILLISECONDS);
+        schedule.setAdaptiveBackOff(400, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(600);
+            assertTrue(schedule.getCurrentPeriod(TimeUnit.MILLISECONDS) > 20);
+            assertTrue(schedule.getCurrentPeriod(TimeUnit.MILLISECONDS) <= 400);
+
+            //once executions are quick again the period returns to normal
+            backgroundMillis = 0;
+            Thread.sleep(2000);
+            assertEquals(20, schedule.getCurrentPeriod(TimeUnit.MILLISECONDS));
+        } finally {
+            schedule.cancel();
+        }
+    }
+
+    public void testPauseAndResumeWithCatchUp() throws Exception {
+        backgroundMillis = 0;
+        CommandSchedule<Object,String> schedule = command.scheduleAtFixedRate(0, 100, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(250);
+            schedule.pause();
+            waitUntilIdle(schedule);
+            long countWhenPaused = schedule.getExecutionCount();
+            assertTrue(countWhenPaused > 0);
+
+            Thread.sleep(400);
+            assertEquals(countWhenPaused, schedule.getExecutionCount());
+            assertTrue(schedule.isPaused());
+
+            //ticks were missed while paused, so one execution runs straight away
+            schedule.resume();
+            Thread.sleep(60);
+            waitUntilIdle(schedule);
+            assertEquals(countWhenPaused + 1, schedule.getExecutionCount());
+        } finally {
+            schedule.cancel();
+        }
+    }
+
+    public void testTickDoesNotHoldUpSchedulerWhileEventThreadIsBusy() throws Exception {
+        final CountDownLatch releaseEventThread = new CountDownLatch(1);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                try {
+                    releaseEventThread.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+
+        CommandSchedule<Object,String> schedule = command.scheduleAtFixedRate(0, 40, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(100);
+            //the tick waiting for the event thread must not stop the scheduler thread running other work
+            final CountDownLatch schedulerRan = new CountDownLatch(1);
+            CommandSchedule.scheduler.execute(new Runnable() {
+                public void run() {
+                    schedulerRan.countDown();
+                }
+            });
+            assertTrue(schedulerRan.await(1, TimeUnit.SECONDS));
+        } finally {
+            releaseEventThread.countDown();
+            schedule.cancel();
+        }
+        waitUntilIdle(schedule);
+        assertTrue(schedule.getExecutionCount() >= 1);
+    }
+
+    private void waitUntilIdle(CommandSchedule schedule) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( schedule.isRunning() && System.currentTimeMillis() < endTime) {
+            Thread.sleep(5);
+        }
+        assertFalse(schedule.isRunning());
+    }
+}
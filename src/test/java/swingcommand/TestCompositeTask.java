@@ -17,6 +17,13 @@
 package swingcommand;
 
 import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -102,6 +109,58 @@ public class TestCompositeTask extends AbstractCommandTest {
        assertEquals(Task.ExecutionState.ERROR, t.getExecutionState());
     }
 
+    public void testEventThreadChildRunsAtPriorityOfComposite() throws Exception {
+        final List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+        Task<Object,String> child = new Task<Object,String>() {
+            protected void doInEventThread() throws Exception {
+            }
+        };
+        //a child executed from the background stage of an interactive composite inherits its priority
+        child.setPriority(EventThreadScheduler.Priority.INTERACTIVE);
+        final Executor executor = CompositeCommandTask.COMPOSITE_EXECUTOR_FACTORY.getExecutor(child);
+
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        assertTrue(blocked.await(10, TimeUnit.SECONDS));
+
+        int queueDepth = EventThreadScheduler.getQueueDepth();
+        EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new Runnable() {
+            public void run() {
+                runOrder.add("background work");
+            }
+        });
+        Thread compositeThread = new Thread() {
+            public void run() {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        runOrder.add("child");
+                    }
+                });
+            }
+        };
+        compositeThread.start();
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( EventThreadScheduler.getQueueDepth() < queueDepth + 2 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        compositeThread.join(10000);
+        while ( runOrder.size() < 2 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(Arrays.asList("child", "background work"), runOrder);
+    }
+
     private SwingCommand createBackgroundExecutionCommand(final int startCount) {
         return new SwingCommand() {
             protected Task createTask() {
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the per command concurrency limit and admission policies
+ */
+public class TestConcurrencyLimit extends AbstractCommandTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> backgroundRuns = Collections.synchronizedList(new ArrayList<String>());
+    private volatile CountDownLatch finished;
+
+    private final SwingCommand<String,String> command = new SwingCommand<String,String>() {
+        protected Task<String,String> createTask() {
+            return new InterruptibleTask<String,String>() {
+                protected void doInBackground() throws Exception {
+                    backgroundRuns.add(getParameters());
+                    release.await(10, TimeUnit.SECONDS);
+                }
+
+                protected void doInEventThreadIfNotCancelled() throws Exception {
+                }
+            };
+        }
+    };
+
+    private final TaskListener<String> finishedListener = new TaskListenerAdapter<String>() {
+        public void finished(Task task) {
+            finished.countDown();
+        }
+    };
+
+    public void testQueuedTasksWaitForAdmission() throws Exception {
+        finished = new CountDownLatch(4);
+        command.setConcurrencyLimit(2, SwingCommand.AdmissionPolicy.QUEUE);
+        List<Task<String,String>> tasks = new ArrayList<Task<String,String>>();
+        for ( String name : new String[] {"a", "b", "c", "d"}) {
+            tasks.add(command.execute(name, finishedListener));
+        }
+        waitForBackgroundRuns(2);
+        Thread.sleep(100);
+
+        assertEquals(2, backgroundRuns.size());
+        assertEquals(2, command.getInFlightCount());
+        assertEquals(2, command.getAdmissionQueueSize());
+        assertEquals(Task.ExecutionState.PENDING, tasks.get(2).getExecutionState());
+        assertEquals(Task.ExecutionState.PENDING, tasks.get(3).getExecutionState());
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        for ( Task<String,String> task : tasks) {
+            assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        }
+        assertEquals(4, backgroundRuns.size());
+        waitForInFlightCount(command, 0);
+        assertEquals(0, command.getAdmissionQueueSize());
+        assertEquals(0, command.getRejectedCount());
+    }
+
+    public void testRejectedExecutionDoesNotCreateTask() throws Exception {
+        finished = new CountDownLatch(1);
+        final int[] createCount = new int[1];
+        SwingCommand<String,String> countingCommand = new SwingCommand<String,String>() {
+            protected Task<String,String> createTask() {
+                createCount[0]++;
+                return command.createTask();
+            }
+        };
+        countingCommand.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.REJECT);
+        Task<String,String> first = countingCommand.execute("a");
+        Task<String,String> rejected = countingCommand.execute("b", finishedListener);
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        assertEquals(1, createCount[0]);
+        assertNotSame(first, rejected);
+        assertEquals("b", rejected.getParameters());
+        assertEquals(Task.ExecutionState.ERROR, rejected.getExecutionState());
+        assertTrue(rejected.getExecutionException() instanceof RejectedExecutionException);
+        assertEquals(1, countingCommand.getRejectedCount());
+        assertEquals(1, countingCommand.getInFlightCount());
+        release.countDown();
+        waitForInFlightCount(countingCommand, 0);
+    }
+
+    public void testTaskRefusedByExecutorFailsAndReleasesItsSlot() throws Exception {
+        finished = new CountDownLatch(1);
+        final List<Task.ExecutionState> states = Collections.synchronizedList(new ArrayList<Task.ExecutionState>());
+        ExecutorService shutDownExecutor = Executors.newSingleThreadExecutor();
+        shutDownExecutor.shutdown();
+        command.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.REJECT);
+        Task<String,String> refused = command.execute("a", shutDownExecutor, new TaskListenerAdapter<String>() {
+            public void started(Task task) {
+                states.add(task.getExecutionState());
+            }
+
+            public void error(Task task, Throwable error) {
+                states.add(task.getExecutionState());
+            }
+
+            public void finished(Task task) {
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Task.ExecutionState.ERROR, refused.getExecutionState());
+        assertTrue(refused.getExecutionException() instanceof RejectedExecutionException);
+        assertEquals(Arrays.asList(Task.ExecutionState.STARTED, Task.ExecutionState.ERROR), states);
+        waitForInFlightCount(command, 0);
+        assertEquals(0, command.getRejectedCount());
+        assertEquals(0, backgroundRuns.size());
+
+        //the slot was released, so the next execution is admitted rather than rejected
+        finished = new CountDownLatch(1);
+        release.countDown();
+        Task<String,String> next = command.execute("b", finishedListener);
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.SUCCESS, next.getExecutionState());
+    }
+
+    public void testReplaceOldestCancelsWaitingTask() throws Exception {
+        finished = new CountDownLatch(3);
+        command.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.REPLACE_OLDEST);
+        Task<String,String> a = command.execute("a", finishedListener);
+        Task<String,String> b = command.execute("b", finishedListener);
+        Task<String,String> c = command.execute("c", finishedListener);
+        assertEquals(1, command.getAdmissionQueueSize());
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.SUCCESS, a.getExecutionState());
+        assertEquals(Task.ExecutionState.CANCELLED, b.getExecutionState());
+        assertEquals(Task.ExecutionState.SUCCESS, c.getExecutionState());
+        assertFalse(backgroundRuns.contains("b"));
+        waitForInFlightCount(command, 0);
+    }
+
+    public void testCancellingWaitingTaskRemovesItFromQueue() throws Exception {
+        finished = new CountDownLatch(1);
+        command.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.QUEUE);
+        command.execute("a");
+        Task<String,String> b = command.execute("b", finishedListener);
+        assertEquals(1, command.getAdmissionQueueSize());
+
+        b.cancel();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.CANCELLED, b.getExecutionState());
+        assertEquals(0, command.getAdmissionQueueSize());
+        assertEquals(1, command.getInFlightCount());
+        release.countDown();
+        waitForInFlightCount(command, 0);
+    }
+
+    public void testRaisingLimitAdmitsWaitingTasks() throws Exception {
+        command.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.QUEUE);
+        command.execute("a");
+        command.execute("b");
+        assertEquals(1, command.getAdmissionQueueSize());
+
+        command.setConcurrencyLimit(2, SwingCommand.AdmissionPolicy.QUEUE);
+        waitForBackgroundRuns(2);
+        assertEquals(0, command.getAdmissionQueueSize());
+        assertEquals(2, command.getInFlightCount());
+        release.countDown();
+        waitForInFlightCount(command, 0);
+    }
+
+    public void testNextTaskIsAdmittedAfterThePreviousTaskHasFinished() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final SwingCommand<String,String> mixedCommand = new SwingCommand<String,String>() {
+            private int created;
+
+            protected Task<String,String> createTask() {
+                //the first task runs in the background, the second synchronously on the event thread once admitted
+                return created++ == 0 ? command.createTask() : new Task<String,String>() {
+                    protected void doInEventThread() throws Exception {
+                    }
+                };
+            }
+        };
+        mixedCommand.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.QUEUE);
+        mixedCommand.addTaskListener(new TaskListenerAdapter<String>() {
+            public void started(Task task) {
+                events.add(task.getParameters() + " started");
+            }
+
+            public void finished(Task task) {
+                events.add(task.getParameters() + " finished");
+            }
+        });
+
+        finished = new CountDownLatch(2);
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                mixedCommand.execute("a", finishedListener);
+                mixedCommand.execute("b", finishedListener);
+            }
+        });
+        assertEquals(1, mixedCommand.getAdmissionQueueSize());
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("a started", "a finished", "b started", "b finished"), events);
+        waitForInFlightCount(mixedCommand, 0);
+    }
+
+    public void testCancellingOnEventThreadDoesNotOvertakeQueuedPendingEvent() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        final TaskListener<String> recordingListener = new TaskListenerAdapter<String>() {
+            public void pending(Task task) {
+                events.add("pending");
+            }
+
+            public void cancelled(Task task) {
+                events.add("cancelled");
+            }
+
+            public void finished(Task task) {
+                events.add("finished");
+                finished.countDown();
+            }
+        };
+        //tasks are created on the calling thread, so that a background thread can execute while the event thread is busy
+        final SwingCommand<String,String> backgroundCreatingCommand = new SwingCommand<String,String>() {
+            protected Task<String,String> doCreateTask() {
+                return createTask();
+            }
+
+            protected Task<String,String> createTask() {
+                return command.createTask();
+            }
+        };
+        backgroundCreatingCommand.setConcurrencyLimit(1, SwingCommand.AdmissionPolicy.QUEUE);
+        backgroundCreatingCommand.execute("a");
+        waitForBackgroundRuns(1);
+
+        finished = new CountDownLatch(1);
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                //the event thread is busy, so the pending event fired from the background thread stays queued
+                final List<Task<String,String>> queued = new ArrayList<Task<String,String>>();
+                Thread executingThread = new Thread() {
+                    public void run() {
+                        queued.add(backgroundCreatingCommand.execute("b", recordingListener));
+                    }
+                };
+                executingThread.start();
+                try {
+                    executingThread.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                queued.get(0).cancel();
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("pending", "cancelled", "finished"), events);
+        release.countDown();
+        waitForInFlightCount(backgroundCreatingCommand, 0);
+    }
+
+    private void waitForInFlightCount(SwingCommand command, int count) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( command.getInFlightCount() != count && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, command.getInFlightCount());
+    }
+
+    private void waitForBackgroundRuns(int count) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( backgroundRuns.size() < count && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for cancellation of a plain BackgroundTask through its CancellationToken
+ */
+public class TestCooperativeCancellation extends AbstractCommandTest {
+
+    private final CountDownLatch backgroundStarted = new CountDownLatch(1);
+
+    public void testPollingTaskStopsWhenCancelled() throws Exception {
+        final AtomicInteger iterations = new AtomicInteger();
+        final BackgroundTask<Object,String> task = new BackgroundTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                long endTime = System.currentTimeMillis() + 10000;
+                while ( ! isCancellationRequested() && System.currentTimeMillis() < endTime) {
+                    iterations.incrementAndGet();
+                    backgroundStarted.countDown();
+                }
+                assertNotInEventThread("doInBackground");
+                assertIsTrue(! Thread.currentThread().isInterrupted(), "Cooperative cancel should not interrupt");
+            }
+
+            protected void doInEventThread() throws Exception {
+                assertIsTrue(isCancelled(), "Should be cancelled");
+            }
+        };
+
+        Task t = executeAndCancel(task);
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertTrue(iterations.get() > 0);
+        assertFalse(task.canCancel());
+        checkFailureText();
+    }
+
+    public void testThrowIfCancellationRequestedIsNotAnError() throws Exception {
+        final BackgroundTask<Object,String> task = new BackgroundTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                backgroundStarted.countDown();
+                while ( true ) {
+                    getCancellationToken().throwIfCancellationRequested();
+                    Thread.yield();
+                }
+            }
+
+            protected void doInEventThread() throws Exception {
+            }
+        };
+
+        Task t = executeAndCancel(task);
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertNull(t.getExecutionException());
+        checkFailureText();
+    }
+
+    public void testCancelAfterBackgroundFinishedHasNoEffect() {
+        DummyBackgroundTask task = new DummyBackgroundTask();
+        Task t = execute(task);
+        waitForLatch();
+        t.cancel();
+        assertEquals(Task.ExecutionState.SUCCESS, t.getExecutionState());
+        assertFalse(t.isCancelled());
+        assertFalse(task.getCancellationToken().isCancellationRequested());
+    }
+
+    public void testCancelRacingBackgroundFinishNeverTakesEffectAfterIt() throws Exception {
+        for ( int loop=0; loop < 20000; loop++) {
+            final DummyBackgroundTask task = new DummyBackgroundTask();
+            final CountDownLatch start = new CountDownLatch(1);
+            final boolean[] cancelledWhenFinished = new boolean[1];
+            Thread finisher = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    task.setBackgroundFinished();
+                    cancelledWhenFinished[0] = task.isCancelled();
+                }
+            };
+            finisher.start();
+            start.countDown();
+            task.cancel();
+            finisher.join();
+
+            //either the cancel won, and was seen by the background stage as it finished, or it had no effect
+            assertEquals(cancelledWhenFinished[0], task.isCancelled());
+            assertEquals(task.isCancelled(), task.getCancellationToken().isCancellationRequested());
+        }
+    }
+
+    public void testCallbacksAndChildTokens() {
+        CancellationToken parent = new CancellationToken();
+        CancellationToken child = parent.createChildToken();
+        CancellationToken linked = new CancellationToken();
+        parent.linkChildToken(linked);
+
+        final AtomicInteger callbackCount = new AtomicInteger();
+        Runnable callback = new Runnable() {
+            public void run() {
+                callbackCount.incrementAndGet();
+            }
+        };
+        child.addCancellationCallback(callback);
+        Runnable removed = new Runnable() {
+            public void run() {
+                assertIsTrue(false, "removed callback should not run");
+            }
+        };
+        parent.addCancellationCallback(removed);
+        parent.removeCancellationCallback(removed);
+
+        child.cancel();
+        assertFalse(parent.isCancellationRequested());
+        assertEquals(1, callbackCount.get());
+
+        parent.cancel();
+        parent.cancel();
+        assertTrue(linked.isCancellationRequested());
+        assertEquals(1, callbackCount.get());
+
+        //registering after cancellation runs the callback straight away
+        parent.addCancellationCallback(callback);
+        assertEquals(2, callbackCount.get());
+        checkFailureText();
+    }
+
+    public void testCompositeCancelsPollingChild() throws Exception {
+        final CompositeCommandTask<Object,String> composite = new DefaultCompositeCommandTask();
+        final BackgroundTask<Object,String> child = new BackgroundTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                backgroundStarted.countDown();
+                while ( ! isCancellationRequested()) {
+                    Thread.yield();
+                }
+            }
+
+            protected void doInEventThread() throws Exception {
+            }
+        };
+        composite.addCommand(new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return child;
+            }
+        });
+
+        Task t = executeAndCancel(composite);
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertEquals(Task.ExecutionState.CANCELLED, child.getExecutionState());
+        assertTrue(child.getCancellationToken().isCancellationRequested());
+    }
+
+    private Task executeAndCancel(BackgroundTask<Object,String> task) throws InterruptedException {
+        Task t = execute(task);
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(t.canCancel());
+        t.cancel();
+        waitForLatch();
+        return t;
+    }
+
+    private Task execute(final BackgroundTask<Object,String> task) {
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+        return command.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+    }
+}
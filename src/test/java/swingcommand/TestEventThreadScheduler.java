@@ -0,0 +1,272 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.awt.SecondaryLoop;
+import java.awt.Toolkit;
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the batching and prioritisation of event thread work by the EventThreadScheduler
+ */
+public class TestEventThreadScheduler extends AbstractCommandTest {
+
+    private final List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+
+    public void testInteractiveWorkRunsBeforeBackgroundWork() throws Exception {
+        CountDownLatch eventThreadBlocked = blockEventThread();
+        try {
+            EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("background1"));
+            EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.INTERACTIVE, new RecordingRunnable("interactive1"));
+            EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("background2"));
+            EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.INTERACTIVE, new RecordingRunnable("interactive2"));
+            assertEquals(4, EventThreadScheduler.getQueueDepth());
+        } finally {
+            eventThreadBlocked.countDown();
+        }
+
+        flushEventQueue();
+        assertEquals(0, EventThreadScheduler.getQueueDepth());
+        assertEquals(
+            Arrays.asList("interactive1", "interactive2", "background1", "background2"),
+            runOrder
+        );
+    }
+
+    public void testDrainYieldsToEventQueueWhenFrameBudgetExceeded() throws Exception {
+        EventThreadScheduler.setFrameBudget(1, TimeUnit.MILLISECONDS);
+        try {
+            CountDownLatch eventThreadBlocked = blockEventThread();
+            try {
+                for ( int loop=0; loop < 5; loop++) {
+                    EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("work" + loop, 5));
+                }
+                SwingUtilities.invokeLater(new RecordingRunnable("paint"));
+            } finally {
+                eventThreadBlocked.countDown();
+            }
+
+            flushEventQueue();
+            assertEquals(6, runOrder.size());
+            int paintIndex = runOrder.indexOf("paint");
+            assertTrue("paint event should run between batches of work, was " + runOrder, paintIndex > 0 && paintIndex < 5);
+            assertTrue(EventThreadScheduler.getLastFrameWorkNanos() >= TimeUnit.MILLISECONDS.toNanos(5));
+        } finally {
+            EventThreadScheduler.setFrameBudget(EventThreadScheduler.DEFAULT_FRAME_BUDGET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public void testSingleDrainRunsEverythingQueued() throws Exception {
+        flushEventQueue();
+        long drainCount = EventThreadScheduler.getDrainCount();
+
+        CountDownLatch eventThreadBlocked = blockEventThread();
+        try {
+            for ( int loop=0; loop < 100; loop++) {
+                EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("work" + loop));
+            }
+        } finally {
+            eventThreadBlocked.countDown();
+        }
+
+        flushEventQueue();
+        assertEquals(100, runOrder.size());
+        assertEquals(drainCount + 1, EventThreadScheduler.getDrainCount());
+        assertEquals(100, EventThreadScheduler.getLastBatchSize());
+    }
+
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 8;
+        final int runnablesPerProducer = 2000;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final CountDownLatch doneLatch = new CountDownLatch(producers * runnablesPerProducer);
+        final int[] lastSeen = new int[producers];
+        Arrays.fill(lastSeen, -1);
+
+        for ( int producer = 0; producer < producers; producer++) {
+            final int producerId = producer;
+            new Thread() {
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                    for ( int loop=0; loop < runnablesPerProducer; loop++) {
+                        final int sequence = loop;
+                        EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new Runnable() {
+                            public void run() {
+                                assertInEventThread("drain");
+                                assertIsTrue(lastSeen[producerId] == sequence - 1, "Out of order for producer " + producerId);
+                                lastSeen[producerId] = sequence;
+                                doneLatch.countDown();
+                            }
+                        });
+                    }
+                }
+            }.start();
+        }
+
+        startLatch.countDown();
+        assertTrue(doneLatch.await(30, TimeUnit.SECONDS));
+        flushEventQueue();
+        assertEquals(0, EventThreadScheduler.getQueueDepth());
+        checkFailureText();
+    }
+
+    public void testWorkRunsFromNestedEventLoop() throws Exception {
+        final SecondaryLoop nestedLoop = Toolkit.getDefaultToolkit().getSystemEventQueue().createSecondaryLoop();
+        final CountDownLatch nestedLoopEntered = new CountDownLatch(1);
+
+        //a runnable which blocks in a nested event loop, as it would while showing a modal dialog
+        CountDownLatch eventThreadBlocked = blockEventThread();
+        try {
+            EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.INTERACTIVE, new Runnable() {
+                public void run() {
+                    runOrder.add("dialogShown");
+                    nestedLoopEntered.countDown();
+                    nestedLoop.enter();
+                    runOrder.add("dialogClosed");
+                }
+            });
+            EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("queuedBeforeDialog"));
+        } finally {
+            eventThreadBlocked.countDown();
+        }
+
+        //the dialog is closed after 10 seconds if the work is never run
+        Thread closer = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(10000);
+                } catch (InterruptedException e) {
+                }
+                nestedLoop.exit();
+            }
+        };
+        closer.start();
+
+        assertTrue(nestedLoopEntered.await(10, TimeUnit.SECONDS));
+        EventThreadScheduler.invokeAndWait(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("queuedDuringDialog"));
+        nestedLoop.exit();
+        closer.interrupt();
+        flushEventQueue();
+
+        assertEquals(Arrays.asList("dialogShown", "queuedBeforeDialog", "queuedDuringDialog", "dialogClosed"), runOrder);
+    }
+
+    public void testInvokeAndWaitBlocksUntilRun() {
+        EventThreadScheduler.invokeAndWait(EventThreadScheduler.Priority.BACKGROUND, new RecordingRunnable("work"));
+        assertEquals(Collections.singletonList("work"), runOrder);
+    }
+
+    public void testTaskInheritsPriority() {
+        final List<Task> childTasks = Collections.synchronizedList(new ArrayList<Task>());
+        final SwingCommand<Object,String> childCommand = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                Task<Object,String> childTask = new DummyBackgroundTask();
+                childTasks.add(childTask);
+                return childTask;
+            }
+        };
+
+        BackgroundTask<Object,String> parentTask = new DummyBackgroundTask() {
+            public void doInBackground() throws Exception {
+                childCommand.execute();
+            }
+        };
+
+        final Task<Object,String> t = parentTask;
+        SwingCommand<Object,String> parentCommand = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return t;
+            }
+        };
+        parentCommand.setPriority(EventThreadScheduler.Priority.INTERACTIVE);
+        parentCommand.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+
+        assertEquals(EventThreadScheduler.Priority.INTERACTIVE, parentTask.getPriority());
+        assertEquals(EventThreadScheduler.Priority.INTERACTIVE, childTasks.get(0).getPriority());
+        assertEquals(EventThreadScheduler.Priority.BACKGROUND, childCommand.execute().getPriority());
+    }
+
+    private CountDownLatch blockEventThread() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run() {
+                blocked.countDown();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        blocked.await();
+        return release;
+    }
+
+    private void flushEventQueue() {
+        while ( EventThreadScheduler.getQueueDepth() > 0) {
+            invokeAndWaitWithFail(new Runnable() {
+                public void run() {
+                }
+            });
+        }
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    private class RecordingRunnable implements Runnable {
+        private final String name;
+        private final long sleepMillis;
+
+        public RecordingRunnable(String name) {
+            this(name, 0);
+        }
+
+        public RecordingRunnable(String name, long sleepMillis) {
+            this.name = name;
+            this.sleepMillis = sleepMillis;
+        }
+
+        public void run() {
+            runOrder.add(name);
+            if ( sleepMillis > 0) {
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests that a Task's execution state can only move forward through legal transitions
+ */
+public class TestExecutionStateTransitions extends AbstractCommandTest {
+
+    public void testLegalTransitions() {
+        for ( Task.ExecutionState finalState : new Task.ExecutionState[] {
+                Task.ExecutionState.SUCCESS, Task.ExecutionState.ERROR, Task.ExecutionState.CANCELLED }) {
+            Task task = new DummyBackgroundTask();
+            task.setExecutionState(Task.ExecutionState.PENDING);
+            task.setExecutionState(Task.ExecutionState.STARTED);
+            task.setExecutionState(finalState);
+            assertEquals(finalState, task.getExecutionState());
+        }
+
+        Task task = new DummyBackgroundTask();
+        task.setExecutionState(Task.ExecutionState.PENDING);
+        task.setExecutionState(Task.ExecutionState.CANCELLED);
+        assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+    }
+
+    public void testIllegalTransitions() {
+        Task task = new DummyBackgroundTask();
+        assertIllegal(task, Task.ExecutionState.STARTED);
+        assertIllegal(task, Task.ExecutionState.SUCCESS);
+
+        task.setExecutionState(Task.ExecutionState.PENDING);
+        assertIllegal(task, Task.ExecutionState.PENDING);
+        assertIllegal(task, Task.ExecutionState.NOT_RUN);
+        assertIllegal(task, Task.ExecutionState.SUCCESS);
+        assertIllegal(task, Task.ExecutionState.ERROR);
+
+        task.setExecutionState(Task.ExecutionState.STARTED);
+        assertIllegal(task, Task.ExecutionState.PENDING);
+
+        task.setExecutionState(Task.ExecutionState.SUCCESS);
+        assertIllegal(task, Task.ExecutionState.ERROR);
+        assertIllegal(task, Task.ExecutionState.STARTED);
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+    }
+
+    public void testTaskCannotBeExecutedTwice() {
+        final Task<Object,String> task = new DummyBackgroundTask();
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+        command.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+
+        try {
+            command.execute();
+            fail("Executing a finished task again should fail");
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+    }
+
+    public void testOnlyOneThreadWinsARacingTransition() throws Exception {
+        for ( int loop=0; loop < 1000; loop++) {
+            final Task task = new DummyBackgroundTask();
+            task.setExecutionState(Task.ExecutionState.PENDING);
+            final CountDownLatch startLatch = new CountDownLatch(1);
+            final AtomicInteger successCount = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for ( int thread=0; thread < threads.length; thread++) {
+                threads[thread] = new Thread() {
+                    public void run() {
+                        try {
+                            startLatch.await();
+                            task.setExecutionState(Task.ExecutionState.STARTED);
+                            successCount.incrementAndGet();
+                        } catch (IllegalStateException e) {
+                        } catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                };
+                threads[thread].start();
+            }
+            startLatch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(1, successCount.get());
+        }
+    }
+
+    private void assertIllegal(Task task, Task.ExecutionState newState) {
+        Task.ExecutionState oldState = task.getExecutionState();
+        try {
+            task.setExecutionState(newState);
+            fail("Should not be able to move from " + oldState + " to " + newState);
+        } catch (IllegalStateException e) {
+        }
+        assertEquals(oldState, task.getExecutionState());
+    }
+}
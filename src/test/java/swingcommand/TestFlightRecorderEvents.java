@@ -0,0 +1,206 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for the flight recorder events emitted for the task lifecycle
+ */
+public class TestFlightRecorderEvents extends AbstractCommandTest {
+
+    private static final String[] EVENT_NAMES = new String[] {
+        "swingcommand.PendingWait",
+        "swingcommand.BackgroundStage",
+        "swingcommand.EventThreadStage",
+        "swingcommand.ListenerCallback",
+        "swingcommand.Cancellation",
+        "swingcommand.CompositeChild",
+        "swingcommand.TaskFinished"
+    };
+
+    public void testNoRecordingIsCreatedWhenEventsAreDisabled() {
+        assertNull(TaskFlightRecorder.startRecording(new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new DummyBackgroundTask();
+            }
+        }, new DummyBackgroundTask()));
+    }
+
+    public void testLifecycleEventsAreRecorded() throws Exception {
+        final Task<Object,String> task = new DummyBackgroundTask();
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+
+        List<RecordedEvent> events = record(new Runnable() {
+            public void run() {
+                executeAndWait(command);
+            }
+        });
+
+        assertEquals(1, count(events, "swingcommand.PendingWait"));
+        assertEquals(1, count(events, "swingcommand.BackgroundStage"));
+        assertEquals(1, count(events, "swingcommand.EventThreadStage"));
+        assertEquals(0, count(events, "swingcommand.Cancellation"));
+        assertTrue(count(events, "swingcommand.ListenerCallback") >= 4);
+        for ( RecordedEvent event : events) {
+            assertEquals(command.getClass().getName(), event.getString("commandClass"));
+            assertEquals(task.getTaskId(), event.getLong("taskId"));
+        }
+        assertEquals("SUCCESS", getFinalState(events));
+        assertNull(task.getFlightRecording());
+
+        //each span is committed on the thread which ran it
+        String backgroundThread = filter(events, "swingcommand.BackgroundStage").get(0).getThread().getJavaName();
+        String eventThread = filter(events, "swingcommand.EventThreadStage").get(0).getThread().getJavaName();
+        assertFalse(backgroundThread.equals(eventThread));
+        assertTrue(eventThread.startsWith("AWT-EventQueue"));
+    }
+
+    public void testCancellationIsRecorded() throws Exception {
+        final InterruptibleTask<Object,String> task = new InterruptibleTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                cancel();
+                Thread.sleep(60000);
+            }
+
+            protected void doInEventThreadIfNotCancelled() throws Exception {
+            }
+        };
+        final SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+
+        List<RecordedEvent> events = record(new Runnable() {
+            public void run() {
+                executeAndWait(command);
+            }
+        });
+
+        assertEquals(1, count(events, "swingcommand.Cancellation"));
+        assertEquals("CANCELLED", getFinalState(events));
+    }
+
+    public void testCompositeChildIsRecorded() throws Exception {
+        DefaultCompositeCommandTask composite = new DefaultCompositeCommandTask();
+        final List<Task> childTasks = new ArrayList<Task>();
+        for ( int loop=0; loop < 2; loop++) {
+            composite.addCommand(new SwingCommand<Object,String>() {
+                protected Task<Object,String> createTask() {
+                    Task<Object,String> childTask = new DummyBackgroundTask();
+                    childTasks.add(childTask);
+                    return childTask;
+                }
+            });
+        }
+        final Task<Object,String> compositeTask = composite;
+        final SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return compositeTask;
+            }
+        };
+
+        List<RecordedEvent> events = record(new Runnable() {
+            public void run() {
+                executeAndWait(command);
+            }
+        });
+
+        List<RecordedEvent> childEvents = filter(events, "swingcommand.CompositeChild");
+        assertEquals(2, childEvents.size());
+        for ( int loop=0; loop < 2; loop++) {
+            RecordedEvent childEvent = childEvents.get(loop);
+            assertEquals(compositeTask.getTaskId(), childEvent.getLong("taskId"));
+            assertEquals(loop + 1, childEvent.getInt("childIndex"));
+            assertEquals(childTasks.get(loop).getTaskId(), childEvent.getLong("childTaskId"));
+        }
+    }
+
+    private void executeAndWait(SwingCommand<Object,String> command) {
+        latch = new CountDownLatch(1);
+        command.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+        //the TaskFinished event is committed on the event thread just after the finished callbacks
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    private List<RecordedEvent> record(Runnable runnable) throws Exception {
+        File file = File.createTempFile("swingcommand", ".jfr");
+        try {
+            Recording recording = new Recording();
+            try {
+                for ( String eventName : EVENT_NAMES) {
+                    recording.enable(eventName);
+                }
+                recording.start();
+                runnable.run();
+                recording.stop();
+                recording.dump(file.toPath());
+            } finally {
+                recording.close();
+            }
+            List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+            for ( RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+                if ( event.getEventType().getName().startsWith("swingcommand.")) {
+                    events.add(event);
+                }
+            }
+            return events;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private String getFinalState(List<RecordedEvent> events) {
+        List<RecordedEvent> finishedEvents = filter(events, "swingcommand.TaskFinished");
+        assertEquals(1, finishedEvents.size());
+        return finishedEvents.get(0).getString("finalState");
+    }
+
+    private int count(List<RecordedEvent> events, String eventName) {
+        return filter(events, eventName).size();
+    }
+
+    private List<RecordedEvent> filter(List<RecordedEvent> events, String eventName) {
+        List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+        for ( RecordedEvent event : events) {
+            if ( event.getEventType().getName().equals(eventName)) {
+                result.add(event);
+            }
+        }
+        return result;
+    }
+}
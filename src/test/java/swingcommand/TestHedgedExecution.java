@@ -0,0 +1,324 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for hedging a slow task with a second attempt
+ */
+public class TestHedgedExecution extends AbstractCommandTest {
+
+    private final Queue<Long> sleepMillis = new ConcurrentLinkedQueue<Long>();
+    private final List<ReadTask> tasks = Collections.synchronizedList(new ArrayList<ReadTask>());
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch releasePrimary = new CountDownLatch(1);
+    private volatile boolean uninterruptiblePrimary;
+    private volatile SwingCommand<String,String> attemptChildCommand;
+
+    private final SwingCommand<String,String> command = new SwingCommand<String,String>() {
+        protected Task<String,String> createTask() {
+            Long sleep = sleepMillis.poll();
+            ReadTask task = new ReadTask(sleep == null ? 10 : sleep);
+            task.uninterruptible = tasks.isEmpty() && uninterruptiblePrimary;
+            task.childCommand = tasks.size() == 1 ? attemptChildCommand : null;
+            tasks.add(task);
+            return task;
+        }
+    };
+
+    private final TaskListener<String> recordingListener = new TaskListenerAdapter<String>() {
+        public void started(Task task) {
+            events.add("started");
+        }
+
+        public void success(Task task) {
+            events.add("success");
+        }
+
+        public void cancelled(Task task) {
+            events.add("cancelled");
+        }
+
+        public void finished(Task task) {
+            events.add("finished");
+            latch.countDown();
+        }
+    };
+
+    public void testNoHedgingUntilEnoughSamples() throws Exception {
+        command.setHedging(90, 5);
+        assertEquals(-1, command.getHedgeDelay(TimeUnit.MILLISECONDS));
+        train(4);
+        assertEquals(-1, command.getHedgeDelay(TimeUnit.MILLISECONDS));
+        train(1);
+        assertTrue(command.getHedgeDelay(TimeUnit.MILLISECONDS) >= 10);
+        assertEquals(0, command.getHedgedAttemptCount());
+
+        command.disableHedging();
+        assertEquals(-1, command.getHedgeDelay(TimeUnit.MILLISECONDS));
+    }
+
+    public void testSecondAttemptWinsForSlowTask() throws Exception {
+        command.setHedging(90, 5);
+        train(5);
+        tasks.clear();
+
+        sleepMillis.add(10000L);
+        sleepMillis.add(10L);
+        long startTime = System.currentTimeMillis();
+        Task<String,String> task = command.execute("read", recordingListener);
+        waitForLatch();
+        assertTrue(System.currentTimeMillis() - startTime < 5000);
+
+        assertEquals(2, tasks.size());
+        ReadTask primary = tasks.get(0);
+        ReadTask hedge = tasks.get(1);
+        assertSame(primary, task);
+        assertEquals("read", hedge.getParameters());
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        assertEquals(Arrays.asList("started", "success", "finished"), events);
+        assertEquals(0, primary.eventThreadRuns);
+        assertEquals(1, hedge.eventThreadRuns);
+        assertTrue(primary.backgroundInterrupted.await(5, TimeUnit.SECONDS));
+        //the primary was stopped, not cancelled, and took the attempt's result
+        assertFalse(primary.isCancelled());
+        assertFalse(primary.getCancellationToken().isCancellationRequested());
+        assertEquals("read after 10ms", primary.result);
+        assertEquals(1, command.getHedgedAttemptCount());
+        assertEquals(1, command.getHedgeWinCount());
+        checkFailureText();
+    }
+
+    public void testSecondAttemptDoesNotUseSynchronousExecutor() throws Exception {
+        command.setHedging(90, 5);
+        train(5);
+        tasks.clear();
+
+        sleepMillis.add(10000L);
+        sleepMillis.add(10L);
+        //the primary runs on this thread, so execute() only returns once the hedged attempt has won
+        Task<String,String> task = command.execute("read", new SynchronousExecutor(), recordingListener);
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        assertFalse(task.isCancelled());
+        assertEquals(Thread.currentThread(), tasks.get(0).backgroundThread);
+        assertEquals("SwingCommand Hedge", tasks.get(1).backgroundThread.getName());
+        assertEquals(1, command.getHedgeWinCount());
+        checkFailureText();
+    }
+
+    public void testFastTaskIsNotHedged() throws Exception {
+        command.setHedging(90, 5);
+        sleepMillis.addAll(Arrays.asList(100L, 100L, 100L, 100L, 100L));
+        train(5);
+        tasks.clear();
+
+        sleepMillis.add(10L);
+        command.execute("read", recordingListener);
+        waitForLatch();
+        assertEquals(1, tasks.size());
+        assertEquals(1, tasks.get(0).eventThreadRuns);
+        assertEquals(0, command.getHedgedAttemptCount());
+    }
+
+    public void testCancellingTaskCancelsSecondAttempt() throws Exception {
+        command.setHedging(90, 5);
+        train(5);
+        tasks.clear();
+
+        sleepMillis.add(10000L);
+        sleepMillis.add(10000L);
+        Task<String,String> task = command.execute("read", recordingListener);
+        while ( command.getHedgedAttemptCount() == 0) {
+            Thread.sleep(10);
+        }
+        tasks.get(1).backgroundStarted.await(5, TimeUnit.SECONDS);
+        task.cancel();
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+        assertEquals(Arrays.asList("started", "cancelled", "finished"), events);
+        assertTrue(tasks.get(1).backgroundInterrupted.await(5, TimeUnit.SECONDS));
+        assertEquals(0, tasks.get(0).eventThreadRuns + tasks.get(1).eventThreadRuns);
+    }
+
+    public void testTaskWaitsForChildrenOfWinningAttempt() throws Exception {
+        final CountDownLatch childFinished = new CountDownLatch(1);
+        command.setHedging(90, 5);
+        train(5);
+        tasks.clear();
+        attemptChildCommand = new SwingCommand<String,String>() {
+            protected Task<String,String> createTask() {
+                return new BackgroundTask<String,String>() {
+                    protected void doInBackground() throws Exception {
+                        Thread.sleep(200);
+                    }
+
+                    protected void doInEventThread() throws Exception {
+                        childFinished.countDown();
+                    }
+                };
+            }
+        };
+
+        sleepMillis.add(10000L);
+        sleepMillis.add(10L);
+        final List<Long> childrenUnfinishedAtTaskFinish = new ArrayList<Long>();
+        Task<String,String> task = command.execute("read", new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                childrenUnfinishedAtTaskFinish.add(childFinished.getCount());
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        assertEquals(1, command.getHedgeWinCount());
+        assertEquals(Arrays.asList(0L), childrenUnfinishedAtTaskFinish);
+        checkFailureText();
+    }
+
+    public void testTaskCanBeCancelledAfterHedgedAttemptWins() throws Exception {
+        final CountDownLatch childStarted = new CountDownLatch(1);
+        final List<Task<String,String>> children = Collections.synchronizedList(new ArrayList<Task<String,String>>());
+        command.setHedging(90, 5);
+        train(5);
+        tasks.clear();
+        attemptChildCommand = new SwingCommand<String,String>() {
+            protected Task<String,String> createTask() {
+                Task<String,String> child = new InterruptibleTask<String,String>() {
+                    protected void doInBackground() throws Exception {
+                        childStarted.countDown();
+                        Thread.sleep(10000);
+                    }
+
+                    protected void doInEventThreadIfNotCancelled() throws Exception {
+                    }
+                };
+                children.add(child);
+                return child;
+            }
+        };
+
+        //the primary keeps running after it is abandoned, and the task waits for the attempt's child
+        uninterruptiblePrimary = true;
+        sleepMillis.add(0L);
+        sleepMillis.add(10L);
+        try {
+            Task<String,String> task = command.execute("read", recordingListener);
+            assertTrue(childStarted.await(10, TimeUnit.SECONDS));
+            assertTrue(tasks.get(0).backgroundInterrupted.await(5, TimeUnit.SECONDS));
+            assertTrue(task.canCancel());
+
+            task.cancel();
+            waitForLatch();
+            assertTrue(task.isCancelled());
+            assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+            assertEquals(Arrays.asList("started", "cancelled", "finished"), events);
+            assertEquals(Task.ExecutionState.CANCELLED, children.get(0).getExecutionState());
+            assertEquals(0, tasks.get(0).eventThreadRuns + tasks.get(1).eventThreadRuns);
+        } finally {
+            releasePrimary.countDown();
+        }
+    }
+
+    private void train(int executions) {
+        for ( int loop=0; loop < executions; loop++) {
+            final CountDownLatch finished = new CountDownLatch(1);
+            command.execute("read", new TaskListenerAdapter<String>() {
+                public void finished(Task task) {
+                    finished.countDown();
+                }
+            });
+            try {
+                finished.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                fail();
+            }
+        }
+    }
+
+    private class ReadTask extends InterruptibleTask<String,String> {
+        private final long sleepMillis;
+        final CountDownLatch backgroundStarted = new CountDownLatch(1);
+        final CountDownLatch backgroundInterrupted = new CountDownLatch(1);
+        volatile int eventThreadRuns;
+        volatile Thread backgroundThread;
+        volatile String result;
+        volatile boolean uninterruptible;
+        volatile SwingCommand<String,String> childCommand;
+
+        public ReadTask(long sleepMillis) {
+            this.sleepMillis = sleepMillis;
+        }
+
+        protected void doInBackground() throws Exception {
+            assertNotInEventThread("doInBackground");
+            backgroundThread = Thread.currentThread();
+            backgroundStarted.countDown();
+            if ( uninterruptible ) {
+                waitForRelease();
+                return;
+            }
+            try {
+                Thread.sleep(sleepMillis);
+            } catch (InterruptedException e) {
+                backgroundInterrupted.countDown();
+                throw e;
+            }
+            if ( childCommand != null ) {
+                childCommand.execute(getParameters());
+            }
+        }
+
+        //keeps running when interrupted, as a task blocked in uninterruptible io would
+        private void waitForRelease() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    releasePrimary.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    backgroundInterrupted.countDown();
+                }
+            }
+            if ( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void doInEventThreadIfNotCancelled() throws Exception {
+            assertInEventThread("doInEventThread");
+            eventThreadRuns++;
+            result = getParameters() + " after " + sleepMillis + "ms";
+        }
+
+        protected void copyResultFromHedgedAttempt(InterruptibleTask<String,String> winningAttempt) throws Exception {
+            result = ((ReadTask)winningAttempt).result;
+        }
+    }
+}
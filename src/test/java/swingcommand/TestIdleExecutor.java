@@ -0,0 +1,166 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.awt.Toolkit;
+import java.awt.event.MouseEvent;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for running tasks only while the application is idle, with an IdleExecutor
+ */
+public class TestIdleExecutor extends AbstractCommandTest {
+
+    private IdleExecutor idleExecutor;
+    private final CountDownLatch backgroundStarted = new CountDownLatch(1);
+    private volatile long backgroundStartTime;
+
+    private final SwingCommand<Long,String> idleCommand = new SwingCommand<Long,String>() {
+        protected Task<Long,String> createTask() {
+            return new InterruptibleTask<Long,String>() {
+                protected void doInBackground() throws Exception {
+                    backgroundStartTime = System.currentTimeMillis();
+                    backgroundStarted.countDown();
+                    Thread.sleep(getParameters());
+                }
+
+                protected void doInEventThreadIfNotCancelled() throws Exception {
+                }
+            };
+        }
+    };
+
+    protected void doSetUp() {
+        idleExecutor = new IdleExecutor(200, TimeUnit.MILLISECONDS);
+        idleCommand.setExecutorFactory(idleExecutor);
+    }
+
+    protected void tearDown() throws Exception {
+        idleExecutor.shutdown();
+    }
+
+    public void testRunsOnceQuiet() throws Exception {
+        long executeTime = System.currentTimeMillis();
+        Task<Long,String> task = execute(0L);
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(backgroundStartTime - executeTime >= 200);
+
+        waitForLatch();
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        assertEquals(1, idleExecutor.getExecutedCount());
+        assertEquals(0, idleExecutor.getQueuedCount());
+    }
+
+    public void testDeferredWhileEventThreadIsBusy() throws Exception {
+        final long busyUntil = System.currentTimeMillis() + 600;
+        Thread busyThread = new Thread() {
+            public void run() {
+                while ( System.currentTimeMillis() < busyUntil) {
+                    EventThreadScheduler.invokeLater(EventThreadScheduler.Priority.INTERACTIVE, new Runnable() {
+                        public void run() {
+                        }
+                    });
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        };
+        busyThread.start();
+
+        execute(0L);
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+        assertTrue("Idle work started while the event thread was busy", backgroundStartTime >= busyUntil + 150);
+        waitForLatch();
+    }
+
+    public void testUserInputPreemptsRunningTask() throws Exception {
+        Task<Long,String> task = execute(60000L);
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+
+        final JPanel source = new JPanel();
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                source.dispatchEvent(new MouseEvent(source, MouseEvent.MOUSE_PRESSED, System.currentTimeMillis(), 0, 1, 1, 1, false));
+            }
+        });
+
+        waitForLatch();
+        assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+        assertEquals(1, idleExecutor.getPreemptedCount());
+    }
+
+    public void testQueuedTasksRunOneAtATime() throws Exception {
+        latch = new CountDownLatch(3);
+        execute(50L);
+        execute(50L);
+        execute(50L);
+        waitForLatch();
+        assertEquals(3, idleExecutor.getExecutedCount());
+    }
+
+    public void testListensForInputOnlyWhileTasksAreQueuedOrRunning() throws Exception {
+        int listeners = Toolkit.getDefaultToolkit().getAWTEventListeners().length;
+        new IdleExecutor(200, TimeUnit.MILLISECONDS);
+        assertEquals(listeners, Toolkit.getDefaultToolkit().getAWTEventListeners().length);
+
+        execute(0L);
+        assertEquals(listeners + 1, Toolkit.getDefaultToolkit().getAWTEventListeners().length);
+        waitForLatch();
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( Toolkit.getDefaultToolkit().getAWTEventListeners().length != listeners && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(listeners, Toolkit.getDefaultToolkit().getAWTEventListeners().length);
+    }
+
+    public void testCancelledTaskIsRemovedFromQueue() throws Exception {
+        long reclaimed = SwingCommand.getReclaimedQueueSlotCount();
+        Task<Long,String> task = execute(0L);
+        assertEquals(1, idleExecutor.getQueuedCount());
+
+        task.cancel();
+        waitForLatch();
+        assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+        assertEquals(0, idleExecutor.getQueuedCount());
+        assertEquals(reclaimed + 1, SwingCommand.getReclaimedQueueSlotCount());
+        Thread.sleep(400);
+        assertEquals(0, idleExecutor.getExecutedCount());
+    }
+
+    public void testShutdownFailsQueuedTasks() throws Exception {
+        Task<Long,String> task = execute(0L);
+        idleExecutor.shutdown();
+        waitForLatch();
+        assertEquals(Task.ExecutionState.ERROR, task.getExecutionState());
+        assertTrue(task.getExecutionException() instanceof RejectedExecutionException);
+        assertEquals(0, idleExecutor.getExecutedCount());
+    }
+
+    private Task<Long,String> execute(long sleep) {
+        return idleCommand.execute(sleep, new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+    }
+}
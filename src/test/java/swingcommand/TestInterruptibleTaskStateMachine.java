@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Races cancel() against the start and end of the background processing of an InterruptibleTask, and checks
+ * that each outcome is one which the lock based implementation could also have produced
+ */
+public class TestInterruptibleTaskStateMachine extends AbstractCommandTest {
+
+    private static final int ITERATIONS = 20000;
+
+    public void testCancelBeforeStartSkipsBackgroundProcessing() throws Exception {
+        RecordingTask task = new RecordingTask(false);
+        task.cancel();
+        assertTrue(task.isCancelled());
+        assertTrue(task.getCancellationToken().isCancellationRequested());
+
+        task.doBackgroundProcessing();
+        assertFalse(task.backgroundRun.get());
+        assertTrue(task.isCancelled());
+        assertFalse(task.canCancel());
+    }
+
+    public void testCancelAfterFinishHasNoEffect() throws Exception {
+        RecordingTask task = new RecordingTask(false);
+        task.doBackgroundProcessing();
+        task.cancel();
+        assertTrue(task.backgroundRun.get());
+        assertFalse(task.isCancelled());
+        assertFalse(task.getCancellationToken().isCancellationRequested());
+        assertFalse(Thread.currentThread().isInterrupted());
+    }
+
+    public void testRacingCancelAgainstShortBackgroundProcessing() throws Exception {
+        race(false);
+    }
+
+    public void testRacingCancelAgainstInterruptibleBackgroundProcessing() throws Exception {
+        race(true);
+    }
+
+    private void race(boolean blockUntilInterrupted) throws Exception {
+        int cancelledCount = 0;
+        for ( int loop=0; loop < ITERATIONS; loop++) {
+            final RecordingTask task = new RecordingTask(blockUntilInterrupted);
+            final CyclicBarrier barrier = new CyclicBarrier(2);
+            final AtomicBoolean interruptLeaked = new AtomicBoolean();
+            final Throwable[] backgroundError = new Throwable[1];
+
+            Thread backgroundThread = new Thread() {
+                public void run() {
+                    try {
+                        barrier.await();
+                        task.doBackgroundProcessing();
+                    } catch (Throwable t) {
+                        backgroundError[0] = t;
+                    }
+                    interruptLeaked.set(Thread.currentThread().isInterrupted());
+                }
+            };
+            backgroundThread.start();
+            barrier.await();
+            task.cancel();
+            backgroundThread.join();
+
+            assertNull("background processing threw " + backgroundError[0], backgroundError[0]);
+            assertFalse("interrupt leaked out of the task", interruptLeaked.get());
+            assertFalse(task.canCancel());
+            if ( blockUntilInterrupted ) {
+                //this task only finishes if it is interrupted, or if it was cancelled before starting
+                assertTrue(task.isCancelled());
+            }
+            if ( task.isCancelled()) {
+                cancelledCount++;
+                assertTrue(task.getCancellationToken().isCancellationRequested());
+            } else {
+                //not cancelled, so cancel() must have been too late and background processing ran to the end
+                assertTrue(task.backgroundCompleted.get());
+            }
+            if ( ! task.backgroundRun.get()) {
+                assertTrue(task.isCancelled());
+            }
+        }
+        assertTrue(cancelledCount > 0);
+    }
+
+    private static class RecordingTask extends InterruptibleTask<Object,String> {
+        private final boolean blockUntilInterrupted;
+        final AtomicBoolean backgroundRun = new AtomicBoolean();
+        final AtomicBoolean backgroundCompleted = new AtomicBoolean();
+
+        public RecordingTask(boolean blockUntilInterrupted) {
+            this.blockUntilInterrupted = blockUntilInterrupted;
+        }
+
+        protected void doInBackground() throws Exception {
+            backgroundRun.set(true);
+            if ( blockUntilInterrupted) {
+                Thread.sleep(60000);
+            }
+            backgroundCompleted.set(true);
+        }
+
+        protected void doInEventThreadIfNotCancelled() throws Exception {
+        }
+    }
+}
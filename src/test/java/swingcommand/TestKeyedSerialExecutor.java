@@ -0,0 +1,263 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for the serialisation of tasks by key with a KeyedSerialExecutor
+ */
+public class TestKeyedSerialExecutor extends AbstractCommandTest {
+
+    private ExecutorService pool;
+
+    protected void doSetUp() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    protected void tearDown() throws Exception {
+        pool.shutdownNow();
+    }
+
+    public void testTasksForSameKeyRunInOrderWithoutOverlapping() throws Exception {
+        final int tasksPerKey = 200;
+        final String[] keys = new String[] { "order1", "order2", "order3" };
+        final AtomicInteger[] running = new AtomicInteger[keys.length];
+        final List<List<Integer>> runOrder = new ArrayList<List<Integer>>();
+        for ( int loop=0; loop < keys.length; loop++) {
+            running[loop] = new AtomicInteger();
+            runOrder.add(Collections.synchronizedList(new ArrayList<Integer>()));
+        }
+        final CountDownLatch finished = new CountDownLatch(keys.length * tasksPerKey);
+
+        KeyedSerialExecutor<String> keyedExecutor = new KeyedSerialExecutor<String>(pool, new KeyedSerialExecutor.KeyExtractor<String>() {
+            public Object getKey(String parameters) {
+                return parameters.substring(0, parameters.indexOf(':'));
+            }
+        });
+
+        SwingCommand<String,String> command = new SwingCommand<String,String>() {
+            protected Task<String,String> createTask() {
+                return new BackgroundTask<String,String>() {
+                    protected void doInBackground() throws Exception {
+                        String params = getParameters();
+                        int keyIndex = Integer.parseInt(params.substring(5, 6)) - 1;
+                        int sequence = Integer.parseInt(params.substring(params.indexOf(':') + 1));
+                        assertIsTrue(running[keyIndex].incrementAndGet() == 1, "Tasks overlapped for " + keys[keyIndex]);
+                        Thread.yield();
+                        runOrder.get(keyIndex).add(sequence);
+                        running[keyIndex].decrementAndGet();
+                    }
+
+                    protected void doInEventThread() throws Exception {
+                    }
+                };
+            }
+        };
+        command.setExecutorFactory(keyedExecutor);
+
+        TaskListener<String> listener = new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                finished.countDown();
+            }
+        };
+        for ( int sequence=0; sequence < tasksPerKey; sequence++) {
+            for ( String key : keys) {
+                command.execute(key + ":" + sequence, listener);
+            }
+        }
+
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        checkFailureText();
+        for ( List<Integer> order : runOrder) {
+            assertEquals(tasksPerKey, order.size());
+            for ( int loop=0; loop < tasksPerKey; loop++) {
+                assertEquals(loop, order.get(loop).intValue());
+            }
+        }
+        waitForActiveKeys(keyedExecutor);
+    }
+
+    public void testDifferentKeysRunConcurrently() throws Exception {
+        KeyedSerialExecutor<String> keyedExecutor = new KeyedSerialExecutor<String>(pool, new KeyedSerialExecutor.KeyExtractor<String>() {
+            public Object getKey(String parameters) {
+                return parameters;
+            }
+        });
+
+        //each task waits for the other to start, which can only happen if the keys run in parallel
+        final CountDownLatch bothStarted = new CountDownLatch(2);
+        Runnable waitForOther = new Runnable() {
+            public void run() {
+                bothStarted.countDown();
+                try {
+                    assertIsTrue(bothStarted.await(10, TimeUnit.SECONDS), "Keys did not run concurrently");
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        keyedExecutor.getExecutorForKey("a").execute(waitForOther);
+        keyedExecutor.getExecutorForKey("b").execute(waitForOther);
+
+        assertTrue(bothStarted.await(10, TimeUnit.SECONDS));
+        waitForActiveKeys(keyedExecutor);
+        checkFailureText();
+    }
+
+    public void testIdleKeysAreReclaimed() throws Exception {
+        KeyedSerialExecutor<Object> keyedExecutor = new KeyedSerialExecutor<Object>(pool, new KeyedSerialExecutor.KeyExtractor<Object>() {
+            public Object getKey(Object parameters) {
+                return parameters;
+            }
+        });
+
+        final int keyCount = 10000;
+        final CountDownLatch finished = new CountDownLatch(keyCount + 1);
+        Runnable countDown = new Runnable() {
+            public void run() {
+                finished.countDown();
+            }
+        };
+        for ( int loop=0; loop < keyCount; loop++) {
+            keyedExecutor.getExecutorForKey(loop).execute(countDown);
+        }
+        keyedExecutor.getExecutorForKey(null).execute(countDown);
+
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        waitForActiveKeys(keyedExecutor);
+    }
+
+    public void testKeyIsReleasedWhenExecutorRejectsHandOff() throws Exception {
+        ExecutorService shutDownPool = Executors.newSingleThreadExecutor();
+        KeyedSerialExecutor<Object> keyedExecutor = new KeyedSerialExecutor<Object>(shutDownPool, new KeyedSerialExecutor.KeyExtractor<Object>() {
+            public Object getKey(Object parameters) {
+                return parameters;
+            }
+        });
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger runCount = new AtomicInteger();
+        Executor keyExecutor = keyedExecutor.getExecutorForKey("key");
+        keyExecutor.execute(new Runnable() {
+            public void run() {
+                runCount.incrementAndGet();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+        keyExecutor.execute(new Runnable() {
+            public void run() {
+                runCount.incrementAndGet();
+            }
+        });
+
+        //the second command cannot be handed on once the pool has been shut down
+        shutDownPool.shutdown();
+        release.countDown();
+        assertTrue(shutDownPool.awaitTermination(10, TimeUnit.SECONDS));
+        waitForActiveKeys(keyedExecutor);
+        assertEquals(1, runCount.get());
+
+        try {
+            keyExecutor.execute(new Runnable() {
+                public void run() {
+                }
+            });
+            fail("The shut down pool should reject the command");
+        } catch (RejectedExecutionException e) {
+        }
+        assertEquals(0, keyedExecutor.getActiveKeyCount());
+    }
+
+    public void testWaitingTasksFailWhenExecutorRejectsHandOff() throws Exception {
+        ExecutorService shutDownPool = Executors.newSingleThreadExecutor();
+        KeyedSerialExecutor<Object> keyedExecutor = new KeyedSerialExecutor<Object>(shutDownPool, new KeyedSerialExecutor.KeyExtractor<Object>() {
+            public Object getKey(Object parameters) {
+                return "key";
+            }
+        });
+        final CountDownLatch release = new CountDownLatch(1);
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new BackgroundTask<Object,String>() {
+                    protected void doInBackground() throws Exception {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+
+                    protected void doInEventThread() throws Exception {
+                    }
+                };
+            }
+        };
+        command.setExecutorFactory(keyedExecutor);
+        final CountDownLatch finished = new CountDownLatch(3);
+        TaskListener<String> listener = new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                finished.countDown();
+            }
+        };
+
+        Task first = command.execute(listener);
+        Task second = command.execute(listener);
+        Task third = command.execute(listener);
+        shutDownPool.shutdown();
+        release.countDown();
+
+        //the tasks waiting for the key fail, rather than staying PENDING
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.SUCCESS, first.getExecutionState());
+        assertEquals(Task.ExecutionState.ERROR, second.getExecutionState());
+        assertTrue(second.getExecutionException() instanceof RejectedExecutionException);
+        assertEquals(Task.ExecutionState.ERROR, third.getExecutionState());
+        assertTrue(third.getExecutionException() instanceof RejectedExecutionException);
+        waitForActiveKeys(keyedExecutor);
+    }
+
+    public void testOwnPoolUsesDaemonThreads() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final boolean[] daemon = new boolean[1];
+        new KeyedSerialExecutor<Object>(1).getExecutorForKey("key").execute(new Runnable() {
+            public void run() {
+                daemon[0] = Thread.currentThread().isDaemon();
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(daemon[0]);
+    }
+
+    private void waitForActiveKeys(KeyedSerialExecutor keyedExecutor) throws InterruptedException {
+        //the last task for a key counts down before its state is removed, so allow a moment for that
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( keyedExecutor.getActiveKeyCount() > 0 && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, keyedExecutor.getActiveKeyCount());
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for holding heap heavy tasks until there is room for them in the heap
+ */
+public class TestMemoryAdmissionControl extends AbstractCommandTest {
+
+    private volatile long memoryCost = Runtime.getRuntime().maxMemory() / 2;
+    private final CountDownLatch release = new CountDownLatch(1);
+    private volatile CountDownLatch finished;
+    private volatile byte[] garbage;
+
+    private final SwingCommand<String,String> command = new SwingCommand<String,String>() {
+        protected Task<String,String> createTask() {
+            return new BackgroundTask<String,String>() {
+                public long getEstimatedMemoryCost() {
+                    return memoryCost;
+                }
+
+                protected void doInBackground() throws Exception {
+                    release.await(10, TimeUnit.SECONDS);
+                }
+
+                protected void doInEventThread() throws Exception {
+                }
+            };
+        }
+    };
+
+    private final TaskListener<String> finishedListener = new TaskListenerAdapter<String>() {
+        public void finished(Task task) {
+            finished.countDown();
+        }
+    };
+
+    public void testTaskWaitsUntilReservationReleased() throws Exception {
+        finished = new CountDownLatch(2);
+        long heldCount = MemoryAdmissionControl.getHeldCount();
+        Task<String,String> first = command.execute(finishedListener);
+        Task<String,String> second = command.execute(finishedListener);
+        waitForState(first, Task.ExecutionState.STARTED);
+        Thread.sleep(100);
+
+        assertEquals(Task.ExecutionState.PENDING, second.getExecutionState());
+        assertEquals(memoryCost, MemoryAdmissionControl.getReservedBytes());
+        assertEquals(1, MemoryAdmissionControl.getWaitingCount());
+        assertEquals(heldCount + 1, MemoryAdmissionControl.getHeldCount());
+
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.SUCCESS, first.getExecutionState());
+        assertEquals(Task.ExecutionState.SUCCESS, second.getExecutionState());
+        waitForReservedBytes(0);
+        assertEquals(0, MemoryAdmissionControl.getWaitingCount());
+    }
+
+    public void testCancellingWaitingTask() throws Exception {
+        finished = new CountDownLatch(1);
+        Task<String,String> first = command.execute();
+        Task<String,String> second = command.execute(finishedListener);
+        assertEquals(1, MemoryAdmissionControl.getWaitingCount());
+
+        second.cancel();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.CANCELLED, second.getExecutionState());
+        assertEquals(0, MemoryAdmissionControl.getWaitingCount());
+
+        finished = new CountDownLatch(1);
+        first.addTaskListener(finishedListener);
+        release.countDown();
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        waitForReservedBytes(0);
+    }
+
+    public void testRaisingThresholdAdmitsWaitingTask() throws Exception {
+        memoryCost = Runtime.getRuntime().maxMemory() / 4;
+        finished = new CountDownLatch(2);
+        try {
+            MemoryAdmissionControl.setHeapThreshold(0.4);
+            Task<String,String> first = command.execute(finishedListener);
+            Task<String,String> second = command.execute(finishedListener);
+            assertEquals(1, MemoryAdmissionControl.getWaitingCount());
+
+            MemoryAdmissionControl.setHeapThreshold(1);
+            waitForState(second, Task.ExecutionState.STARTED);
+            assertEquals(0, MemoryAdmissionControl.getWaitingCount());
+            assertEquals(2 * memoryCost, MemoryAdmissionControl.getReservedBytes());
+
+            release.countDown();
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertEquals(Task.ExecutionState.SUCCESS, first.getExecutionState());
+            assertEquals(Task.ExecutionState.SUCCESS, second.getExecutionState());
+        } finally {
+            MemoryAdmissionControl.setHeapThreshold(MemoryAdmissionControl.DEFAULT_HEAP_THRESHOLD);
+        }
+    }
+
+    public void testRetainedHeapHoldsTask() throws Exception {
+        long maxHeap = Runtime.getRuntime().maxMemory();
+        memoryCost = maxHeap / 10;
+        finished = new CountDownLatch(2);
+        try {
+            MemoryAdmissionControl.setHeapThreshold(0.4);
+            Task<String,String> first = command.execute(finishedListener);
+            waitForState(first, Task.ExecutionState.STARTED);
+
+            //retained in small chunks, which young collections promote to the old generation
+            List<byte[]> retained = new ArrayList<byte[]>();
+            long retainedBytes = (long)(maxHeap * 0.3);
+            for ( long bytes = 0; bytes < retainedBytes; bytes += 1024 * 1024) {
+                retained.add(new byte[1024 * 1024]);
+            }
+            long endTime = System.currentTimeMillis() + 10000;
+            while ( MemoryAdmissionControl.getLiveHeapBytes() < retainedBytes && System.currentTimeMillis() < endTime) {
+                for ( int loop=0; loop < 1000; loop++) {
+                    garbage = new byte[16 * 1024];
+                }
+            }
+            assertTrue(MemoryAdmissionControl.getLiveHeapBytes() >= retainedBytes);
+
+            //the heap in use, plus both reservations, is over the threshold
+            Task<String,String> second = command.execute(finishedListener);
+            assertEquals(Task.ExecutionState.PENDING, second.getExecutionState());
+            assertEquals(1, MemoryAdmissionControl.getWaitingCount());
+
+            retained.clear();
+            release.countDown();
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            assertEquals(Task.ExecutionState.SUCCESS, second.getExecutionState());
+        } finally {
+            MemoryAdmissionControl.setHeapThreshold(MemoryAdmissionControl.DEFAULT_HEAP_THRESHOLD);
+        }
+    }
+
+    public void testTasksWithoutCostAreNotHeld() throws Exception {
+        SwingCommand<String,String> lightCommand = new SwingCommand<String,String>() {
+            protected Task<String,String> createTask() {
+                return new BackgroundTask<String,String>() {
+                    protected void doInBackground() throws Exception {
+                        release.await(10, TimeUnit.SECONDS);
+                    }
+
+                    protected void doInEventThread() throws Exception {
+                    }
+                };
+            }
+        };
+        Task<String,String> first = lightCommand.execute();
+        Task<String,String> second = lightCommand.execute();
+        waitForState(first, Task.ExecutionState.STARTED);
+        waitForState(second, Task.ExecutionState.STARTED);
+        assertEquals(0, MemoryAdmissionControl.getReservedBytes());
+        release.countDown();
+        waitForState(first, Task.ExecutionState.SUCCESS);
+        waitForState(second, Task.ExecutionState.SUCCESS);
+    }
+
+    private void waitForReservedBytes(long bytes) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( MemoryAdmissionControl.getReservedBytes() != bytes && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(bytes, MemoryAdmissionControl.getReservedBytes());
+    }
+
+    private void waitForState(Task task, Task.ExecutionState state) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( task.getExecutionState() != state && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertEquals(state, task.getExecutionState());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the accounting of the CPU time and allocation of each task
+ */
+public class TestResourceAccounting extends AbstractCommandTest {
+
+    private static final int ALLOCATION_SIZE = 10 * 1024 * 1024;
+
+    private final SwingCommand<Object,String> command = new AccountedCommand();
+
+    protected void doSetUp() {
+        ResourceAccounting.resetAggregates();
+    }
+
+    public void testUsageNotMeasuredByDefault() {
+        assertEquals(ResourceAccounting.Mode.OFF, ResourceAccounting.getMode());
+        Task<Object,String> task = executeAndWait();
+        assertNull(task.getResourceUsage());
+        assertNull(ResourceAccounting.getAggregate(AccountedCommand.class));
+    }
+
+    public void testBackgroundAndEventThreadUsageMeasured() {
+        ResourceAccounting.setMode(ResourceAccounting.Mode.ALL);
+        try {
+            final TaskResourceUsage[] usageInListener = new TaskResourceUsage[1];
+            latch = new CountDownLatch(1);
+            Task<Object,String> task = command.execute(new TaskListenerAdapter<String>() {
+                public void success(Task task) {
+                    usageInListener[0] = task.getResourceUsage();
+                }
+
+                public void finished(Task task) {
+                    latch.countDown();
+                }
+            });
+            waitForLatch();
+
+            TaskResourceUsage usage = task.getResourceUsage();
+            assertNotNull(usage);
+            assertSame(usage, usageInListener[0]);
+            //the spin may be descheduled when the machine is busy, so only some of it is certain to be CPU time
+            assertTrue(usage.toString(), usage.getBackgroundCpuTime(TimeUnit.MILLISECONDS) >= 1);
+            assertTrue(usage.toString(), usage.getBackgroundCpuTime(TimeUnit.NANOSECONDS) > usage.getEventThreadCpuTime(TimeUnit.NANOSECONDS));
+            if ( usage.getBackgroundAllocatedBytes() != -1 ) {
+                assertTrue(usage.toString(), usage.getBackgroundAllocatedBytes() >= ALLOCATION_SIZE);
+                assertTrue(usage.toString(), usage.getEventThreadAllocatedBytes() < ALLOCATION_SIZE);
+            }
+
+            executeAndWait();
+            ResourceAccounting.Aggregate aggregate = ResourceAccounting.getAggregate(AccountedCommand.class);
+            assertEquals(2, aggregate.getMeasuredCount());
+            assertTrue(aggregate.getBackgroundCpuTime(TimeUnit.NANOSECONDS) > usage.getBackgroundCpuTime(TimeUnit.NANOSECONDS));
+            assertTrue(aggregate.getMeanUsage().getBackgroundCpuTime(TimeUnit.MILLISECONDS) >= 1);
+        } finally {
+            ResourceAccounting.setMode(ResourceAccounting.Mode.OFF);
+        }
+    }
+
+    public void testSampledModeMeasuresOneInN() {
+        ResourceAccounting.setMode(ResourceAccounting.Mode.SAMPLED);
+        ResourceAccounting.setSamplingInterval(3);
+        try {
+            int measured = 0;
+            for ( int loop=0; loop < 6; loop++) {
+                if ( executeAndWait().getResourceUsage() != null ) {
+                    measured++;
+                }
+            }
+            assertEquals(2, measured);
+            assertEquals(2, ResourceAccounting.getAggregate(AccountedCommand.class).getMeasuredCount());
+        } finally {
+            ResourceAccounting.setMode(ResourceAccounting.Mode.OFF);
+            ResourceAccounting.setSamplingInterval(ResourceAccounting.DEFAULT_SAMPLING_INTERVAL);
+        }
+    }
+
+    private Task<Object,String> executeAndWait() {
+        latch = new CountDownLatch(1);
+        Task<Object,String> task = command.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+        return task;
+    }
+
+    private static class AccountedCommand extends SwingCommand<Object,String> {
+        protected Task<Object,String> createTask() {
+            return new BackgroundTask<Object,String>() {
+                private byte[] data;
+
+                protected void doInBackground() throws Exception {
+                    data = new byte[ALLOCATION_SIZE];
+                    long endTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(20);
+                    while ( System.nanoTime() < endTime) {
+                        data[(int)(System.nanoTime() % ALLOCATION_SIZE)]++;
+                    }
+                }
+
+                protected void doInEventThread() throws Exception {
+                    data = null;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for speculative prefetching of a task, and its promotion when the command is executed
+ */
+public class TestSpeculativePrefetch extends AbstractCommandTest {
+
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger backgroundRuns = new AtomicInteger();
+    private final List<PrefetchTask> tasks = Collections.synchronizedList(new ArrayList<PrefetchTask>());
+    private volatile CountDownLatch backgroundStarted;
+    private volatile CountDownLatch releaseBackground;
+
+    private final SwingCommand<String,String> command = new SwingCommand<String,String>() {
+        protected Task<String,String> createTask() {
+            PrefetchTask task = new PrefetchTask();
+            tasks.add(task);
+            return task;
+        }
+    };
+
+    private final TaskListener<String> recordingListener = new TaskListenerAdapter<String>() {
+        public void pending(Task task) {
+            events.add("pending");
+        }
+
+        public void started(Task task) {
+            events.add("started");
+        }
+
+        public void success(Task task) {
+            events.add("success");
+        }
+
+        public void finished(Task task) {
+            events.add("finished");
+            latch.countDown();
+        }
+    };
+
+    protected void doSetUp() {
+        backgroundStarted = new CountDownLatch(1);
+        releaseBackground = new CountDownLatch(0);
+    }
+
+    public void testPromotionAfterBackgroundFinished() throws Exception {
+        assertTrue(command.prefetch("a", 10, TimeUnit.SECONDS));
+        assertFalse(command.prefetch("a", 10, TimeUnit.SECONDS));
+        PrefetchTask prefetched = tasks.get(0);
+        prefetched.backgroundFinished.await(10, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        assertFalse(prefetched.eventThreadRun);
+        assertEquals(Task.ExecutionState.NOT_RUN, prefetched.getExecutionState());
+
+        Task<String,String> task = command.execute("a", recordingListener);
+        waitForLatch();
+        assertSame(prefetched, task);
+        assertTrue(prefetched.eventThreadRun);
+        assertEquals(1, backgroundRuns.get());
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        assertEquals(Arrays.asList("pending", "started", "success", "finished"), events);
+        assertEquals(1, command.getPromotedPrefetchCount());
+        assertEquals(0, command.getDiscardedPrefetchCount());
+    }
+
+    public void testPromotionWhileBackgroundRunning() throws Exception {
+        releaseBackground = new CountDownLatch(1);
+        assertTrue(command.prefetch("a", 10, TimeUnit.SECONDS));
+        backgroundStarted.await(10, TimeUnit.SECONDS);
+
+        Task<String,String> task = command.execute("a", recordingListener);
+        assertSame(tasks.get(0), task);
+        assertFalse(tasks.get(0).eventThreadRun);
+        assertEquals(Thread.NORM_PRIORITY, tasks.get(0).backgroundThread.getPriority());
+        releaseBackground.countDown();
+
+        waitForLatch();
+        assertTrue(tasks.get(0).eventThreadRun);
+        assertEquals(Thread.MIN_PRIORITY, tasks.get(0).backgroundPriority);
+        assertEquals(1, backgroundRuns.get());
+        assertEquals(Arrays.asList("pending", "started", "success", "finished"), events);
+        checkFailureText();
+    }
+
+    public void testExecuteWithOtherParametersDoesNotUsePrefetch() throws Exception {
+        assertTrue(command.prefetch("a", 10, TimeUnit.SECONDS));
+        Task<String,String> task = command.execute("b", recordingListener);
+        waitForLatch();
+        assertNotSame(tasks.get(0), task);
+        assertEquals(0, command.getPromotedPrefetchCount());
+        command.cancelPrefetches();
+        assertEquals(1, command.getDiscardedPrefetchCount());
+    }
+
+    public void testUnusedPrefetchExpires() throws Exception {
+        releaseBackground = new CountDownLatch(1);
+        assertTrue(command.prefetch("a", 100, TimeUnit.MILLISECONDS));
+        backgroundStarted.await(10, TimeUnit.SECONDS);
+        Thread.sleep(300);
+        assertTrue(tasks.get(0).getCancellationToken().isCancellationRequested());
+        assertEquals(1, command.getDiscardedPrefetchCount());
+        releaseBackground.countDown();
+
+        //the prefetch has gone, so a new task is created
+        Task<String,String> task = command.execute("a", recordingListener);
+        waitForLatch();
+        assertNotSame(tasks.get(0), task);
+        assertEquals(0, command.getPromotedPrefetchCount());
+        assertFalse(tasks.get(0).eventThreadRun);
+    }
+
+    public void testOldestPrefetchEvicted() throws Exception {
+        releaseBackground = new CountDownLatch(1);
+        command.setMaxPrefetches(2);
+        command.prefetch("a", 10, TimeUnit.SECONDS);
+        command.prefetch("b", 10, TimeUnit.SECONDS);
+        command.prefetch("c", 10, TimeUnit.SECONDS);
+        assertEquals(1, command.getDiscardedPrefetchCount());
+        assertTrue(tasks.get(0).getCancellationToken().isCancellationRequested());
+        releaseBackground.countDown();
+
+        Task<String,String> task = command.execute("c", recordingListener);
+        waitForLatch();
+        assertSame(tasks.get(2), task);
+        command.cancelPrefetches();
+        assertEquals(2, command.getDiscardedPrefetchCount());
+        assertEquals(1, command.getPromotedPrefetchCount());
+    }
+
+    public void testPrefetchDiscardedBeforeItsExpiryIsScheduled() throws Exception {
+        //with no room for any prefetch, each prefetch is evicted as soon as it is published
+        command.setMaxPrefetches(0);
+        command.prefetch("a", 10, TimeUnit.SECONDS);
+        assertEquals(1, command.getDiscardedPrefetchCount());
+        assertTrue(tasks.get(0).getCancellationToken().isCancellationRequested());
+
+        Task<String,String> task = command.execute("a", recordingListener);
+        waitForLatch();
+        assertNotSame(tasks.get(0), task);
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        assertEquals(0, command.getPromotedPrefetchCount());
+    }
+
+    public void testPrefetchRunsOnTheCommandExecutor() throws Exception {
+        final AtomicInteger executed = new AtomicInteger();
+        command.setExecutor(new Executor() {
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                new Thread(command).start();
+            }
+        });
+        assertTrue(command.prefetch("a", 10, TimeUnit.SECONDS));
+        assertEquals(1, executed.get());
+        assertTrue(tasks.get(0).backgroundFinished.await(10, TimeUnit.SECONDS));
+    }
+
+    public void testPrefetchRejectedByExecutorIsDiscarded() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        command.setExecutor(executor);
+        assertFalse(command.prefetch("a", 10, TimeUnit.SECONDS));
+        PrefetchTask prefetched = tasks.get(0);
+        assertTrue(prefetched.isCancelled());
+        assertEquals(1, command.getDiscardedPrefetchCount());
+
+        //the rejected prefetch is not promoted, a new task is created and fails in the usual way
+        Task<String,String> task = command.execute("a", recordingListener);
+        assertNotSame(prefetched, task);
+        assertEquals(0, command.getPromotedPrefetchCount());
+    }
+
+    public void testTasksWhichAreNotBackgroundTasksAreNotPrefetched() {
+        SwingCommand<String,String> eventThreadCommand = new SwingCommand<String,String>() {
+            protected Task<String,String> createTask() {
+                return new Task<String,String>() {
+                    protected void doInEventThread() throws Exception {
+                    }
+                };
+            }
+        };
+        assertFalse(eventThreadCommand.prefetch("a", 10, TimeUnit.SECONDS));
+    }
+
+    private class PrefetchTask extends InterruptibleTask<String,String> {
+        final CountDownLatch backgroundFinished = new CountDownLatch(1);
+        volatile Thread backgroundThread;
+        volatile int backgroundPriority;
+        volatile boolean eventThreadRun;
+
+        protected void doInBackground() throws Exception {
+            assertNotInEventThread("doInBackground");
+            backgroundThread = Thread.currentThread();
+            backgroundPriority = backgroundThread.getPriority();
+            backgroundRuns.incrementAndGet();
+            backgroundStarted.countDown();
+            try {
+                releaseBackground.await(10, TimeUnit.SECONDS);
+            } finally {
+                backgroundFinished.countDown();
+            }
+        }
+
+        protected void doInEventThreadIfNotCancelled() throws Exception {
+            assertInEventThread("doInEventThread");
+            eventThreadRun = true;
+        }
+    }
+}
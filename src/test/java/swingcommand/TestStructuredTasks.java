@@ -0,0 +1,199 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the parent child relationship between a task and the tasks executed from its background stage
+ */
+public class TestStructuredTasks extends AbstractCommandTest {
+
+    private final List<String> finishOrder = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Task> children = Collections.synchronizedList(new ArrayList<Task>());
+    private final CountDownLatch childrenStarted = new CountDownLatch(2);
+
+    private final SwingCommand<Long,String> childCommand = new SwingCommand<Long,String>() {
+        protected Task<Long,String> createTask() {
+            InterruptibleTask<Long,String> child = new InterruptibleTask<Long,String>() {
+                protected void doInBackground() throws Exception {
+                    childrenStarted.countDown();
+                    Thread.sleep(getParameters());
+                }
+
+                protected void doInEventThreadIfNotCancelled() throws Exception {
+                }
+            };
+            children.add(child);
+            return child;
+        }
+    };
+
+    private final TaskListener<String> childListener = new TaskListenerAdapter<String>() {
+        public void finished(Task task) {
+            finishOrder.add("child");
+        }
+    };
+
+    public void testParentFinishesAfterChildren() throws Exception {
+        ParentTask parent = new ParentTask(200L, null, false);
+        Task<Object,String> t = execute(parent);
+
+        assertTrue(childrenStarted.await(10, TimeUnit.SECONDS));
+        assertTrue(parent.backgroundFinished.await(10, TimeUnit.SECONDS));
+        //the background stage has returned, but the children are still running
+        Thread.sleep(50);
+        assertEquals(Task.ExecutionState.STARTED, t.getExecutionState());
+        assertEquals(2, t.getChildTasks().size());
+
+        waitForLatch();
+        assertEquals(Task.ExecutionState.SUCCESS, t.getExecutionState());
+        assertEquals(Arrays.asList("child", "child", "parent"), finishOrder);
+        assertEquals(0, t.getChildTasks().size());
+        for ( Task child : children) {
+            assertEquals(Task.ExecutionState.SUCCESS, child.getExecutionState());
+            assertEquals(t.getPriority(), child.getPriority());
+        }
+    }
+
+    public void testCancellingParentCancelsChildren() throws Exception {
+        ParentTask parent = new ParentTask(60000L, null, true);
+        Task<Object,String> t = execute(parent);
+        assertTrue(childrenStarted.await(10, TimeUnit.SECONDS));
+
+        t.cancel();
+        waitForLatch();
+        assertEquals(Task.ExecutionState.CANCELLED, t.getExecutionState());
+        assertEquals("parent", finishOrder.get(finishOrder.size() - 1));
+        assertEquals(2, children.size());
+        for ( Task child : children) {
+            assertEquals(Task.ExecutionState.CANCELLED, child.getExecutionState());
+        }
+    }
+
+    public void testFailedParentCancelsChildren() throws Exception {
+        ParentTask parent = new ParentTask(60000L, new RuntimeException("parent failed"), false);
+        Task<Object,String> t = execute(parent);
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.ERROR, t.getExecutionState());
+        assertEquals("parent failed", t.getExecutionException().getMessage());
+        assertEquals("parent", finishOrder.get(finishOrder.size() - 1));
+        for ( Task child : children) {
+            assertEquals(Task.ExecutionState.CANCELLED, child.getExecutionState());
+        }
+    }
+
+    public void testDetachedCommandIsNotAChild() throws Exception {
+        childCommand.setDetached(true);
+        ParentTask parent = new ParentTask(60000L, null, false);
+        Task<Object,String> t = execute(parent);
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.SUCCESS, t.getExecutionState());
+        assertEquals(0, t.getChildTasks().size());
+        assertEquals(2, children.size());
+        for ( Task child : children) {
+            assertFalse(child.getExecutionState().isFinalState());
+            child.cancel();
+        }
+    }
+
+    public void testChildExecutedAfterNestedSynchronousChildIsStillAChild() throws Exception {
+        final InterruptibleTask<Object,String> parent = new InterruptibleTask<Object,String>() {
+            protected void doInBackground() throws Exception {
+                //the synchronous child's background stage runs nested within this one, on this thread
+                childCommand.execute(0L, new SynchronousExecutor(), childListener);
+                childCommand.execute(200L, childListener);
+            }
+
+            protected void doInEventThreadIfNotCancelled() throws Exception {
+            }
+        };
+        SwingCommand<Object,String> parentCommand = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return parent;
+            }
+        };
+        parentCommand.setPriority(EventThreadScheduler.Priority.INTERACTIVE);
+        parentCommand.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                finishOrder.add("parent");
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+
+        assertEquals(Task.ExecutionState.SUCCESS, parent.getExecutionState());
+        assertEquals(Arrays.asList("child", "child", "parent"), finishOrder);
+        assertEquals(2, children.size());
+        for ( Task child : children) {
+            assertEquals(Task.ExecutionState.SUCCESS, child.getExecutionState());
+            assertEquals(EventThreadScheduler.Priority.INTERACTIVE, child.getPriority());
+        }
+    }
+
+    private Task<Object,String> execute(final ParentTask parent) {
+        return new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return parent;
+            }
+        }.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                finishOrder.add("parent");
+                latch.countDown();
+            }
+        });
+    }
+
+    private class ParentTask extends InterruptibleTask<Object,String> {
+        private final long childSleep;
+        private final RuntimeException failure;
+        private final boolean waitForCancel;
+        final CountDownLatch backgroundFinished = new CountDownLatch(1);
+
+        public ParentTask(long childSleep, RuntimeException failure, boolean waitForCancel) {
+            this.childSleep = childSleep;
+            this.failure = failure;
+            this.waitForCancel = waitForCancel;
+        }
+
+        protected void doInBackground() throws Exception {
+            try {
+                childCommand.execute(childSleep, childListener);
+                childCommand.execute(childSleep, childListener);
+                childrenStarted.await(10, TimeUnit.SECONDS);
+                if ( failure != null ) {
+                    throw failure;
+                }
+                if ( waitForCancel ) {
+                    Thread.sleep(60000);
+                }
+            } finally {
+                backgroundFinished.countDown();
+            }
+        }
+
+        protected void doInEventThreadIfNotCancelled() throws Exception {
+        }
+    }
+}
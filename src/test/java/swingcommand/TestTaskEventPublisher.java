@@ -0,0 +1,246 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the delivery of task events to Flow subscribers by a TaskEventPublisher
+ */
+public class TestTaskEventPublisher extends AbstractCommandTest {
+
+    private ExecutorService subscriberExecutor;
+
+    protected void doSetUp() {
+        subscriberExecutor = Executors.newFixedThreadPool(2);
+    }
+
+    protected void tearDown() throws Exception {
+        subscriberExecutor.shutdownNow();
+    }
+
+    public void testTaskPublisherDeliversLifecycleAndProgress() throws Exception {
+        ProgressTask task = new ProgressTask(3);
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        task.createEventPublisher(subscriberExecutor).subscribe(subscriber);
+
+        execute(task);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(
+            Arrays.asList(
+                TaskEvent.Type.PENDING, TaskEvent.Type.STARTED,
+                TaskEvent.Type.PROGRESS, TaskEvent.Type.PROGRESS, TaskEvent.Type.PROGRESS,
+                TaskEvent.Type.SUCCESS, TaskEvent.Type.FINISHED
+            ),
+            subscriber.getTypes()
+        );
+        assertEquals("progress2", subscriber.events.get(4).getProgress());
+        assertSame(task, subscriber.events.get(0).getTask());
+        checkFailureText();
+    }
+
+    public void testSlowSubscriberDropsProgressButNotLifecycleEvents() throws Exception {
+        ProgressTask task = new ProgressTask(1000);
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        TaskEventPublisher<String> publisher = task.createEventPublisher(subscriberExecutor, 10);
+        publisher.subscribe(subscriber);
+
+        execute(task);
+        waitForLatch();
+
+        //only the demand signalled so far has been delivered
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList(TaskEvent.Type.PENDING), subscriber.getTypes());
+        assertEquals(1, subscriber.completed.getCount());
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        List<TaskEvent.Type> types = subscriber.getTypes();
+        assertEquals(TaskEvent.Type.STARTED, types.get(1));
+        assertEquals(TaskEvent.Type.SUCCESS, types.get(types.size() - 2));
+        assertEquals(TaskEvent.Type.FINISHED, types.get(types.size() - 1));
+        int progressCount = types.size() - 4;
+        assertTrue("Expected most progress events to be dropped, received " + progressCount, progressCount <= 10);
+        assertEquals(1000 - progressCount, publisher.getDroppedEventCount());
+        checkFailureText();
+    }
+
+    public void testCommandPublisherReceivesEventsForEachTask() throws Exception {
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new ProgressTask(1);
+            }
+        };
+        RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+        TaskEventPublisher<String> publisher = command.createEventPublisher(subscriberExecutor);
+        publisher.subscribe(subscriber);
+
+        latch = new CountDownLatch(2);
+        TaskListener<String> listener = new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        };
+        Task<Object,String> first = command.execute(listener);
+        Task<Object,String> second = command.execute(listener);
+        waitForLatch();
+
+        command.removeEventPublisher(publisher);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(10, subscriber.events.size());
+        assertEquals(5, subscriber.getTypes(first).size());
+        assertEquals(5, subscriber.getTypes(second).size());
+        assertEquals(0, publisher.getSubscriptionCount());
+    }
+
+    public void testStalledSubscriberIsCancelledOnceLifecycleEventsOverflow() throws Exception {
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new ProgressTask(0);
+            }
+        };
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        TaskEventPublisher<String> publisher = command.createEventPublisher(subscriberExecutor, 4);
+        publisher.subscribe(subscriber);
+
+        latch = new CountDownLatch(3);
+        TaskListener<String> listener = new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        };
+        //the subscriber receives the first event, using up its demand, before the buffer can fill
+        command.execute(listener);
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( subscriber.events.isEmpty() && System.currentTimeMillis() < endTime) {
+            Thread.sleep(5);
+        }
+        for ( int loop=0; loop < 2; loop++) {
+            command.execute(listener);
+        }
+        waitForLatch();
+
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalStateException);
+        assertEquals(Collections.singletonList(TaskEvent.Type.PENDING), subscriber.getTypes());
+        assertEquals(0, publisher.getSubscriptionCount());
+        command.removeEventPublisher(publisher);
+    }
+
+    public void testNonPositiveRequestIsAnError() throws Exception {
+        ProgressTask task = new ProgressTask(1);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        task.createEventPublisher(subscriberExecutor).subscribe(subscriber);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+    public void testSubscribingAfterTaskFinishedCompletes() throws Exception {
+        ProgressTask task = new ProgressTask(1);
+        execute(task);
+        waitForLatch();
+
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        task.createEventPublisher(subscriberExecutor).subscribe(subscriber);
+        assertTrue(subscriber.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, subscriber.events.size());
+    }
+
+    private void execute(final ProgressTask task) {
+        new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        }.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+    }
+
+    private class ProgressTask extends BackgroundTask<Object,String> {
+        private final int progressCount;
+
+        public ProgressTask(int progressCount) {
+            this.progressCount = progressCount;
+        }
+
+        protected void doInBackground() throws Exception {
+            for ( int loop=0; loop < progressCount; loop++) {
+                fireProgress("progress" + loop);
+            }
+        }
+
+        protected void doInEventThread() throws Exception {
+        }
+    }
+
+    private class RecordingSubscriber implements Flow.Subscriber<TaskEvent<String>> {
+        private final long initialRequest;
+        final List<TaskEvent<String>> events = Collections.synchronizedList(new ArrayList<TaskEvent<String>>());
+        final CountDownLatch completed = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        public RecordingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(initialRequest);
+        }
+
+        public void onNext(TaskEvent<String> item) {
+            assertNotInEventThread("onNext");
+            events.add(item);
+        }
+
+        public void onError(Throwable throwable) {
+            error = throwable;
+            completed.countDown();
+        }
+
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        public List<TaskEvent.Type> getTypes() {
+            return getTypes(null);
+        }
+
+        public List<TaskEvent.Type> getTypes(Task task) {
+            List<TaskEvent.Type> result = new ArrayList<TaskEvent.Type>();
+            synchronized (events) {
+                for ( TaskEvent<String> event : events) {
+                    if ( task == null || event.getTask() == task) {
+                        result.add(event.getType());
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
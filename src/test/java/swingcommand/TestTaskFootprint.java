@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests that a completed Task handle no longer retains its listeners, parameters or internal bookkeeping
+ */
+public class TestTaskFootprint extends AbstractCommandTest {
+
+    private static final int TASK_COUNT = 2000;
+    private static final int PAYLOAD_SIZE = 16 * 1024;
+
+    //generous, a completed task should retain a few hundred bytes, against more than 16KB before compaction
+    private static final long MAX_RETAINED_BYTES_PER_TASK = 2048;
+
+    public void testListenersAndParametersReleased() {
+        final DummyBackgroundTask task = new DummyBackgroundTask();
+        task.setReleaseParametersOnCompletion(true);
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+        command.addTaskListener(new TaskListenerAdapter<String>());
+        command.execute(testParameter, new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                assertIsTrue(task.getParameters() == testParameter, "parameters should be available in finished");
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+            }
+        });
+
+        assertEquals(0, task.getTaskListeners().size());
+        assertNull(task.getParameters());
+        checkFailureText();
+    }
+
+    public void testCompositeReleasesChildren() {
+        DefaultCompositeCommandTask composite = new DefaultCompositeCommandTask();
+        composite.addCommand(new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return new DummyBackgroundTask();
+            }
+        });
+        executeAndWait(composite, null);
+
+        assertEquals(0, composite.getTotalCommands());
+        assertNull(composite.getCurrentChildTask());
+        assertEquals(Task.ExecutionState.SUCCESS, composite.getExecutionState());
+    }
+
+    public void testRetainedBytesPerCompletedTask() {
+        List<Task> history = new ArrayList<Task>(TASK_COUNT);
+        long usedBefore = usedHeapAfterGc();
+        for ( int loop=0; loop < TASK_COUNT; loop++) {
+            DummyBackgroundTask task = new DummyBackgroundTask();
+            task.setReleaseParametersOnCompletion(true);
+            executeAndWait(task, new byte[PAYLOAD_SIZE]);
+            history.add(task);
+        }
+        long retainedPerTask = (usedHeapAfterGc() - usedBefore) / TASK_COUNT;
+
+        assertEquals(TASK_COUNT, history.size());
+        assertTrue("Retained " + retainedPerTask + " bytes per completed task", retainedPerTask < MAX_RETAINED_BYTES_PER_TASK);
+    }
+
+    private void executeAndWait(final Task<Object,String> task, Object parameters) {
+        final CountDownLatch finished = new CountDownLatch(1);
+        SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+            protected Task<Object,String> createTask() {
+                return task;
+            }
+        };
+        //a listener holding on to a large payload, as a listener in a dialog might
+        command.addTaskListener(new PayloadListener());
+        command.execute(parameters, new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                finished.countDown();
+            }
+        });
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            fail();
+        }
+        //the resources are released after the finished callbacks, in the same event thread runnable
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    private long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for ( int loop=0; loop < 5; loop++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    private static class PayloadListener extends TaskListenerAdapter<String> {
+        private final byte[] payload = new byte[PAYLOAD_SIZE];
+    }
+}
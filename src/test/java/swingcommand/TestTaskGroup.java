@@ -0,0 +1,133 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.awt.event.HierarchyEvent;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for cancelling and awaiting the tasks in a TaskGroup
+ */
+public class TestTaskGroup extends AbstractCommandTest {
+
+    private final CountDownLatch allStarted = new CountDownLatch(3);
+
+    private final SwingCommand<Long,String> sleepCommand = new SwingCommand<Long,String>() {
+        protected Task<Long,String> createTask() {
+            return new InterruptibleTask<Long,String>() {
+                protected void doInBackground() throws Exception {
+                    allStarted.countDown();
+                    Thread.sleep(getParameters());
+                }
+
+                protected void doInEventThreadIfNotCancelled() throws Exception {
+                }
+            };
+        }
+    };
+
+    public void testCancelAllCancelsRunningTasks() throws Exception {
+        TaskGroup group = new TaskGroup();
+        List<Task<Long,String>> tasks = new ArrayList<Task<Long,String>>();
+        for ( int loop=0; loop < 3; loop++) {
+            tasks.add(group.execute(sleepCommand, 60000L));
+        }
+        assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+        assertEquals(3, group.getActiveTaskCount());
+
+        group.cancelAll();
+        assertTrue(group.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(0, group.getActiveTaskCount());
+        for ( Task<Long,String> task : tasks) {
+            assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+        }
+    }
+
+    public void testFinishedTasksLeaveTheGroup() throws Exception {
+        TaskGroup group = new TaskGroup();
+        final CountDownLatch finished = new CountDownLatch(1);
+        Task<Long,String> task = group.execute(sleepCommand, 0L, new TaskListenerAdapter<String>() {
+            public void success(Task task) {
+                assertInEventThread("success");
+            }
+
+            public void finished(Task task) {
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        assertTrue(group.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+
+        //a finished task is not cancelled and cannot rejoin the group
+        group.cancelAll();
+        group.add(task);
+        assertEquals(0, group.getActiveTaskCount());
+        assertEquals(Task.ExecutionState.SUCCESS, task.getExecutionState());
+        checkFailureText();
+    }
+
+    public void testAwaitQuiescenceTimesOut() throws Exception {
+        TaskGroup group = new TaskGroup();
+        Task<Long,String> task = sleepCommand.execute(60000L);
+        group.add(task);
+        assertFalse(group.awaitQuiescence(50, TimeUnit.MILLISECONDS));
+        assertEquals(1, group.getActiveTaskCount());
+
+        task.cancel();
+        assertTrue(group.awaitQuiescence(10, TimeUnit.SECONDS));
+    }
+
+    public void testAwaitQuiescenceCannotBeCalledOnEventThread() {
+        final TaskGroup group = new TaskGroup();
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                try {
+                    group.awaitQuiescence(1, TimeUnit.SECONDS);
+                    assertIsTrue(false, "Expected IllegalStateException");
+                } catch (IllegalStateException e) {
+                    //expected
+                } catch (InterruptedException e) {
+                    assertIsTrue(false, "Interrupted");
+                }
+            }
+        });
+        checkFailureText();
+    }
+
+    public void testCancelOnRemoval() throws Exception {
+        final TaskGroup group = new TaskGroup();
+        final JPanel panel = new JPanel();
+        group.cancelOnRemoval(panel);
+        for ( int loop=0; loop < 3; loop++) {
+            group.execute(sleepCommand, 60000L);
+        }
+        assertTrue(allStarted.await(10, TimeUnit.SECONDS));
+
+        //the panel was never displayable, so this is what removal from a displayed window would deliver
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                panel.dispatchEvent(new HierarchyEvent(panel, HierarchyEvent.HIERARCHY_CHANGED, panel, null, HierarchyEvent.DISPLAYABILITY_CHANGED));
+            }
+        });
+        assertTrue(group.awaitQuiescence(10, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the TaskRegistry and the TaskMonitorPanel which displays it
+ */
+public class TestTaskMonitor extends AbstractCommandTest {
+
+    private final CountDownLatch backgroundStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseBackground = new CountDownLatch(1);
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    private final SwingCommand<Object,String> blockingCommand = new SwingCommand<Object,String>(executor) {
+        protected Task<Object,String> createTask() {
+            return new InterruptibleTask<Object,String>() {
+                protected void doInBackground() throws Exception {
+                    fireProgress("working");
+                    backgroundStarted.countDown();
+                    releaseBackground.await(10, TimeUnit.SECONDS);
+                }
+
+                protected void doInEventThreadIfNotCancelled() throws Exception {
+                }
+            };
+        }
+    };
+
+    protected void doSetUp() {
+        TaskRegistry.setEnabled(true);
+        TaskRegistry.resetCommandStatistics();
+    }
+
+    protected void tearDown() {
+        TaskRegistry.setEnabled(false);
+        TaskRegistry.resetCommandStatistics();
+        executor.shutdown();
+    }
+
+    public void testInFlightTaskIsRegisteredUntilFinished() throws Exception {
+        Task<Object,String> task = blockingCommand.execute(finishedListener());
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+
+        TaskRegistry.TaskInfo info = findTask(TaskRegistry.getInFlightTasks(), task);
+        assertNotNull(info);
+        assertEquals(blockingCommand.getClass(), info.getCommandClass());
+        assertEquals(Task.ExecutionState.STARTED, info.getExecutionState());
+        assertEquals("working", info.getProgress());
+        assertSame(executor, info.getExecutor());
+        assertTrue(info.getAge(TimeUnit.NANOSECONDS) >= info.getQueueWait(TimeUnit.NANOSECONDS));
+
+        releaseBackground.countDown();
+        waitForLatch();
+        waitForEventThread();
+        assertNull(findTask(TaskRegistry.getInFlightTasks(), task));
+
+        List<TaskRegistry.CommandStatistics> statistics = TaskRegistry.getCommandStatistics();
+        assertEquals(1, statistics.size());
+        assertEquals(blockingCommand.getClass(), statistics.get(0).getCommandClass());
+        assertEquals(1, statistics.get(0).getCompletedCount());
+        assertEquals(0, statistics.get(0).getErrorCount());
+        assertTrue(statistics.get(0).getThroughput() > 0);
+        assertTrue(statistics.get(0).getMaxLatency(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    public void testTasksAreNotRegisteredWhileDisabled() throws Exception {
+        TaskRegistry.setEnabled(false);
+        Task<Object,String> task = blockingCommand.execute(finishedListener());
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+        assertNull(findTask(TaskRegistry.getInFlightTasks(), task));
+
+        releaseBackground.countDown();
+        waitForLatch();
+        waitForEventThread();
+        assertTrue(TaskRegistry.getCommandStatistics().isEmpty());
+    }
+
+    public void testPanelShowsSnapshotAndCancelsSelectedTask() throws Exception {
+        final Task<Object,String> task = blockingCommand.execute(finishedListener());
+        assertTrue(backgroundStarted.await(10, TimeUnit.SECONDS));
+
+        final TaskMonitorPanel[] panel = new TaskMonitorPanel[1];
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                panel[0] = new TaskMonitorPanel();
+                panel[0].refresh();
+                TaskMonitorPanel.InFlightTableModel model = panel[0].getInFlightModel();
+                for ( int row=0; row < model.getRowCount(); row++) {
+                    if ( model.getTaskInfo(row).getTask() == task) {
+                        panel[0].getInFlightTable().setRowSelectionInterval(row, row);
+                    }
+                }
+                assertEquals(1, panel[0].getInFlightTable().getSelectedRowCount());
+                panel[0].cancelSelectedTasks();
+            }
+        });
+
+        waitForLatch();
+        waitForEventThread();
+        assertEquals(Task.ExecutionState.CANCELLED, task.getExecutionState());
+
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                panel[0].refresh();
+                assertNull(findTask(TaskRegistry.getInFlightTasks(), task));
+                assertEquals(1, panel[0].getStatisticsModel().getRowCount());
+                assertEquals(1L, panel[0].getStatisticsModel().getStatistics(0).getCompletedCount());
+            }
+        });
+    }
+
+    public void testRegistryIsEnabledOnlyWhileAPanelIsDisplayable() throws Exception {
+        TaskRegistry.setEnabled(false);
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                TaskMonitorPanel first = new TaskMonitorPanel();
+                TaskMonitorPanel second = new TaskMonitorPanel();
+                assertFalse(TaskRegistry.isEnabled());
+
+                first.addNotify();
+                second.addNotify();
+                assertTrue(TaskRegistry.isEnabled());
+                first.removeNotify();
+                assertTrue(TaskRegistry.isEnabled());
+                second.removeNotify();
+                assertFalse(TaskRegistry.isEnabled());
+
+                //enabling the registry explicitly outlasts a monitor
+                TaskRegistry.setEnabled(true);
+                first.addNotify();
+                first.removeNotify();
+                assertTrue(TaskRegistry.isEnabled());
+            }
+        });
+    }
+
+    private TaskListener<String> finishedListener() {
+        return new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        };
+    }
+
+    //the task is removed from the registry on the event thread just after the finished callbacks
+    private void waitForEventThread() {
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+            }
+        });
+    }
+
+    private TaskRegistry.TaskInfo findTask(List<TaskRegistry.TaskInfo> tasks, Task task) {
+        for ( TaskRegistry.TaskInfo info : tasks) {
+            if ( info.getTask() == task) {
+                return info;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import javax.swing.*;
+import java.awt.event.HierarchyEvent;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for pausing, throttling and deferring command executions while a component is hidden
+ */
+public class TestVisibilityBinding extends AbstractCommandTest {
+
+    private final List<Object> executions = Collections.synchronizedList(new ArrayList<Object>());
+
+    private final SwingCommand<String,String> command = new SwingCommand<String,String>() {
+        protected Task<String,String> createTask() {
+            return new BackgroundTask<String,String>() {
+                protected void doInBackground() throws Exception {
+                    executions.add(getParameters() == null ? "execution" : getParameters());
+                }
+
+                protected void doInEventThread() throws Exception {
+                }
+            };
+        }
+    };
+
+    public void testScheduleIsPausedWhileHidden() throws Exception {
+        final TestPanel panel = new TestPanel();
+        final CommandSchedule<String,String> schedule = command.scheduleAtFixedRate(50, 50, TimeUnit.MILLISECONDS);
+        try {
+            final VisibilityBinding[] binding = new VisibilityBinding[1];
+            invokeAndWaitWithFail(new Runnable() {
+                public void run() {
+                    binding[0] = VisibilityBinding.pauseWhileHidden(schedule, panel);
+                }
+            });
+            assertFalse(binding[0].isComponentVisible());
+            assertTrue(schedule.isPaused());
+
+            Thread.sleep(300);
+            assertEquals(0, executions.size());
+
+            //ticks were missed while hidden, so one catch-up execution runs when the panel is shown
+            panel.setShowingOnEventThread(true);
+            assertFalse(schedule.isPaused());
+            waitForExecutions(1);
+        } finally {
+            schedule.cancel();
+        }
+    }
+
+    public void testScheduleIsThrottledWhileHidden() throws Exception {
+        final TestPanel panel = new TestPanel();
+        final CommandSchedule<String,String> schedule = command.scheduleAtFixedRate(100, 20, TimeUnit.MILLISECONDS);
+        try {
+            invokeAndWaitWithFail(new Runnable() {
+                public void run() {
+                    VisibilityBinding.throttleWhileHidden(schedule, panel, 10, TimeUnit.SECONDS);
+                }
+            });
+            assertEquals(10000, schedule.getCurrentPeriod(TimeUnit.MILLISECONDS));
+
+            Thread.sleep(400);
+            assertTrue(executions.size() <= 1);
+
+            panel.setShowingOnEventThread(true);
+            assertEquals(20, schedule.getCurrentPeriod(TimeUnit.MILLISECONDS));
+            waitForExecutions(3);
+        } finally {
+            schedule.cancel();
+        }
+    }
+
+    public void testExecutionsAreDeferredWhileHidden() throws Exception {
+        final TestPanel panel = new TestPanel();
+        final List<VisibilityBinding.CommandBinding<String,String>> binding = new ArrayList<VisibilityBinding.CommandBinding<String,String>>();
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                binding.add(VisibilityBinding.deferWhileHidden(command, panel));
+                assertNull(binding.get(0).execute("first"));
+                assertNull(binding.get(0).execute("second"));
+                assertTrue(binding.get(0).isExecutionDeferred());
+            }
+        });
+
+        Thread.sleep(100);
+        assertEquals(0, executions.size());
+
+        panel.setShowingOnEventThread(true);
+        waitForExecutions(1);
+        assertEquals(Arrays.asList("second"), executions);
+        assertFalse(binding.get(0).isExecutionDeferred());
+
+        //once visible, executions run straight away
+        invokeAndWaitWithFail(new Runnable() {
+            public void run() {
+                assertNotNull(binding.get(0).execute("third"));
+            }
+        });
+        waitForExecutions(2);
+        assertEquals(Arrays.asList("second", "third"), executions);
+    }
+
+    public void testUnbindResumesSchedule() throws Exception {
+        final TestPanel panel = new TestPanel();
+        final CommandSchedule<String,String> schedule = command.scheduleAtFixedRate(1, 1, TimeUnit.SECONDS);
+        try {
+            invokeAndWaitWithFail(new Runnable() {
+                public void run() {
+                    VisibilityBinding binding = VisibilityBinding.pauseWhileHidden(schedule, panel);
+                    assertTrue(schedule.isPaused());
+                    binding.unbind();
+                    assertFalse(schedule.isPaused());
+                    assertTrue(binding.isComponentVisible());
+                }
+            });
+        } finally {
+            schedule.cancel();
+        }
+    }
+
+    public void testBindingDoesNotRetainComponent() throws Exception {
+        final CommandSchedule<String,String> schedule = command.scheduleAtFixedRate(1, 1, TimeUnit.SECONDS);
+        try {
+            final List<VisibilityBinding> bindings = new ArrayList<VisibilityBinding>();
+            final List<WeakReference<TestPanel>> panelReference = new ArrayList<WeakReference<TestPanel>>();
+            invokeAndWaitWithFail(new Runnable() {
+                public void run() {
+                    TestPanel panel = new TestPanel();
+                    panelReference.add(new WeakReference<TestPanel>(panel));
+                    bindings.add(VisibilityBinding.pauseWhileHidden(schedule, panel));
+                    bindings.add(VisibilityBinding.deferWhileHidden(command, panel));
+                }
+            });
+
+            for ( int loop=0; loop < 50 && panelReference.get(0).get() != null; loop++) {
+                System.gc();
+                Thread.sleep(20);
+            }
+            assertNull("panel should not be retained by its bindings", panelReference.get(0).get());
+            assertEquals(2, bindings.size());
+
+            //no further events arrive for a collected panel, but the schedule is still cancelled
+            long endTime = System.currentTimeMillis() + 10000;
+            while ( ! schedule.isCancelled() && System.currentTimeMillis() < endTime) {
+                Thread.sleep(10);
+            }
+            assertTrue(schedule.isCancelled());
+        } finally {
+            schedule.cancel();
+        }
+    }
+
+    private void waitForExecutions(int count) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + 10000;
+        while ( executions.size() < count && System.currentTimeMillis() < endTime) {
+            Thread.sleep(5);
+        }
+        assertTrue("Expected " + count + " executions, was " + executions.size(), executions.size() >= count);
+    }
+
+    /**
+     * A panel whose showing state is controlled by the test, since the tests may run without a display
+     */
+    private class TestPanel extends JPanel {
+        private volatile boolean showing;
+
+        public boolean isShowing() {
+            return showing;
+        }
+
+        public void setShowingOnEventThread(final boolean showing) {
+            invokeAndWaitWithFail(new Runnable() {
+                public void run() {
+                    TestPanel.this.showing = showing;
+                    dispatchEvent(new HierarchyEvent(TestPanel.this, HierarchyEvent.HIERARCHY_CHANGED, TestPanel.this, getParent(), HierarchyEvent.SHOWING_CHANGED));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2009 Object Definitions Ltd.
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package swingcommand;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests for listeners registered weakly with a SwingCommand
+ */
+public class TestWeakTaskListener extends AbstractCommandTest {
+
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    private final TaskListener<String> reachableListener = new EqualCountingListener();
+
+    private final SwingCommand<Object,String> command = new SwingCommand<Object,String>() {
+        protected Task<Object,String> createTask() {
+            return new DummyBackgroundTask();
+        }
+    };
+
+    public void testWeakListenerReceivesEventsWhileReachable() {
+        TaskListener<String> listener = new CountingListener();
+        command.addWeakTaskListener(listener);
+        executeAndWait();
+        assertEquals(1, finishedCount.get());
+
+        command.removeTaskListener(listener);
+        executeAndWait();
+        assertEquals(1, finishedCount.get());
+        assertEquals(0, command.getExpungedListenerCount());
+    }
+
+    public void testCollectedWeakListenerIsExpunged() {
+        command.addTaskListener(new CountingListener());
+        TaskListener<String> weakListener = new CountingListener();
+        WeakReference<TaskListener<String>> collected = new WeakReference<TaskListener<String>>(weakListener);
+        command.addWeakTaskListener(weakListener);
+        weakListener = null;
+
+        for ( int loop=0; loop < 50 && collected.get() != null; loop++) {
+            System.gc();
+            Thread.yield();
+        }
+        assertNull("weakly registered listener should have been collected", collected.get());
+
+        executeAndWait();
+        assertEquals("only the strongly registered listener should receive events", 1, finishedCount.get());
+        assertEquals(1, command.getExpungedListenerCount());
+    }
+
+    public void testListenerIsRemovedByEquality() {
+        command.addTaskListener(new EqualCountingListener());
+        command.addWeakTaskListener(reachableListener);
+        command.removeTaskListener(new EqualCountingListener());
+        executeAndWait();
+        assertEquals("only one of the two equal listeners should have been removed", 1, finishedCount.get());
+
+        command.removeTaskListener(new EqualCountingListener());
+        executeAndWait();
+        assertEquals(1, finishedCount.get());
+    }
+
+    private void executeAndWait() {
+        command.execute(new TaskListenerAdapter<String>() {
+            public void finished(Task task) {
+                latch.countDown();
+            }
+        });
+        waitForLatch();
+        latch = new CountDownLatch(1);
+    }
+
+    private class CountingListener extends TaskListenerAdapter<String> {
+        public void finished(Task task) {
+            finishedCount.incrementAndGet();
+        }
+    }
+
+    //all instances are equal, as a listener which wraps another might be
+    private class EqualCountingListener extends CountingListener {
+        public boolean equals(Object o) {
+            return o instanceof EqualCountingListener;
+        }
+
+        public int hashCode() {
+            return EqualCountingListener.class.hashCode();
+        }
+    }
+}